@@ -0,0 +1,242 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ *  Compact binary representation of a LongSketchSet.
+ *
+ *  Layout is
+ *  <pre>
+ *    byte      format version
+ *    byte      flags ( 0x1 if item strings are included,
+ *                      bits 1-3 hold the SketchHash id )
+ *    varint    max items
+ *    varint    number of hashes
+ *    varlong   first hash, offset by Long.MIN_VALUE
+ *    varlong*  unsigned deltas between consecutive sorted hashes
+ *    ( varint length+1, utf-8 bytes )*  items, if included; length 0 means null
+ *  </pre>
+ *
+ *  Since the hashes are sorted, the deltas for a full 5000 item
+ *   sketch usually fit in 6 or 7 bytes rather than 8.
+ */
+public class BinarySketchSet {
+	public static final byte FORMAT_VERSION = 1;
+	static final int FLAG_HAS_ITEMS = 0x1;
+	static final int HASH_ID_SHIFT = 1;
+	static final int HASH_ID_MASK = 0x7;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	public static byte[] ToBytes( LongSketchSet sketch) {
+		int size = sketch.size();
+		Writer writer = new Writer( 16 + size*8);
+		writer.buff[ writer.pos++] = FORMAT_VERSION;
+		int flags = ( sketch.isKeepItems() ? FLAG_HAS_ITEMS : 0)
+				| ( sketch.getSketchHash().getId() << HASH_ID_SHIFT);
+		writer.buff[ writer.pos++] = (byte) flags;
+		writer.writeVarLong( sketch.getMaxItems());
+		writer.writeVarLong( size);
+		long prev = Long.MIN_VALUE;
+		for(int i=0; i<size; ++i) {
+			long hash = sketch.getHash( i);
+			writer.writeVarLong( hash - prev);
+			prev = hash;
+		}
+		if( sketch.isKeepItems()) {
+			for(int i=0; i<size; ++i) {
+				writer.writeString( sketch.getRawItem( i));
+			}
+		}
+		return writer.toBytes();
+	}
+
+	public static LongSketchSet FromBytes( byte[] bytes) {
+		Reader reader = new Reader( bytes);
+		LongSketchSet sketch = new LongSketchSet( reader.maxItems, reader.hasItems, reader.sketchHash);
+		MergeInto( sketch, reader);
+		return sketch;
+	}
+
+	/**
+	 *  Add all the hashes of a serialized sketch into an existing sketch,
+	 *   without creating an intermediate sketch.
+	 */
+	public static void MergeBytes( LongSketchSet sketch, byte[] bytes) {
+		MergeInto( sketch, new Reader( bytes));
+	}
+
+	private static void MergeInto( LongSketchSet sketch, Reader reader) {
+		sketch.checkSketchHash( reader.sketchHash);
+		if( !reader.hasItems || !sketch.isKeepItems()) {
+			long hash = Long.MIN_VALUE;
+			for(int i=0; i<reader.size; ++i) {
+				hash += reader.readVarLong();
+				if( sketch.size() == sketch.getMaxItems() && hash >= sketch.lastHash()) {
+					/// Hashes are sorted, so nothing further can get in
+					break;
+				}
+				sketch.addHashItem( hash, null);
+			}
+		} else {
+			/// Need to read the hashes first, since items come after
+			long[] hashes = reader.readHashes();
+			for(int i=0; i<hashes.length; ++i) {
+				String item = reader.readString();
+				if( sketch.size() == sketch.getMaxItems() && hashes[i] >= sketch.lastHash()) {
+					break;
+				}
+				sketch.addHashItem( hashes[i], item);
+			}
+		}
+	}
+
+	public static int GetMaxItems( byte[] bytes) {
+		return new Reader( bytes).maxItems;
+	}
+
+	public static boolean HasItems( byte[] bytes) {
+		return new Reader( bytes).hasItems;
+	}
+
+	public static SketchHash GetSketchHash( byte[] bytes) {
+		return new Reader( bytes).sketchHash;
+	}
+
+	/**
+	 *  Return the sorted hashes of a serialized sketch
+	 */
+	public static long[] GetHashes( byte[] bytes) {
+		return new Reader( bytes).readHashes();
+	}
+
+	/**
+	 *  Estimate reach directly from the serialized form,
+	 *   without materializing the sketch.
+	 */
+	public static double EstimatedReach( byte[] bytes) {
+		Reader reader = new Reader( bytes);
+		if( reader.size < reader.maxItems) {
+			return reader.size;
+		}
+		long hash = Long.MIN_VALUE;
+		for(int i=0; i<reader.maxItems; ++i) {
+			hash += reader.readVarLong();
+		}
+		return SketchSet.EstimatedReach( hash, reader.maxItems);
+	}
+
+
+	private static class Writer {
+		byte[] buff;
+		int pos = 0;
+
+		Writer( int initSize) {
+			buff = new byte[ initSize];
+		}
+
+		private void ensure( int len) {
+			if( pos + len > buff.length) {
+				buff = Arrays.copyOf( buff, Math.max( buff.length*2, pos + len));
+			}
+		}
+
+		void writeVarLong( long val) {
+			ensure( 10);
+			while( (val & ~0x7FL) != 0) {
+				buff[ pos++] = (byte)((val & 0x7F) | 0x80);
+				val >>>= 7;
+			}
+			buff[ pos++] = (byte) val;
+		}
+
+		void writeString( String str) {
+			if( str == null) {
+				writeVarLong( 0);
+			} else {
+				byte[] strBytes = str.getBytes( UTF8);
+				writeVarLong( strBytes.length + 1);
+				ensure( strBytes.length);
+				System.arraycopy( strBytes, 0, buff, pos, strBytes.length);
+				pos += strBytes.length;
+			}
+		}
+
+		byte[] toBytes() {
+			return Arrays.copyOf( buff, pos);
+		}
+	}
+
+	private static class Reader {
+		final byte[] buff;
+		int pos = 0;
+		final boolean hasItems;
+		final SketchHash sketchHash;
+		final int maxItems;
+		final int size;
+
+		Reader( byte[] bytes) {
+			this.buff = bytes;
+			if( bytes.length < 4 || bytes[0] != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Not a binary sketch set; unexpected format version");
+			}
+			pos = 1;
+			int flags = buff[ pos++];
+			hasItems = (flags & FLAG_HAS_ITEMS) != 0;
+			sketchHash = SketchHash.FromId( (flags >> HASH_ID_SHIFT) & HASH_ID_MASK);
+			maxItems = (int) readVarLong();
+			size = (int) readVarLong();
+		}
+
+		long readVarLong() {
+			long val = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buff[ pos++];
+				val |= ((long)(b & 0x7F)) << shift;
+				shift += 7;
+			} while( b < 0);
+			return val;
+		}
+
+		long[] readHashes() {
+			long[] hashes = new long[ size];
+			long hash = Long.MIN_VALUE;
+			for(int i=0; i<size; ++i) {
+				hash += readVarLong();
+				hashes[i] = hash;
+			}
+			return hashes;
+		}
+
+		String readString() {
+			int len = (int) readVarLong();
+			if( len == 0) {
+				return null;
+			}
+			String str = new String( buff, pos, len -1, UTF8);
+			pos += len -1;
+			return str;
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  KMV sketch backed by a sorted primitive long array,
+ *   rather than a TreeMap of boxed Longs.
+ *
+ *  Hashes are kept in ascending order, so the current
+ *   threshold is always the last element, and any hash
+ *   above it can be rejected without touching the array.
+ *  The original strings are optionally kept in a parallel array.
+ *
+ *  Estimates are identical to those of SketchSet for the
+ *   same set of hashes.
+ *
+ *  Items are hashed with MD5 by default, for compatibility,
+ *   but a faster SketchHash may be chosen. Sketches built with
+ *   different hashes may not be combined.
+ */
+public class LongSketchSet implements ICountDistinct {
+	private int maxItems = SketchSet.DEFAULT_MAX_ITEMS;
+	private long[] hashes;
+	private String[] items;
+	private int size = 0;
+	private final SketchHash sketchHash;
+	private byte[] longBuffer;
+
+
+	public LongSketchSet() {
+		this( SketchSet.DEFAULT_MAX_ITEMS, true);
+	}
+
+	public LongSketchSet(int max) {
+		this( max, true);
+	}
+
+	/**
+	 * @param max  Number of minimum hashes to retain
+	 * @param keepItems  Whether the original strings should be
+	 *     retained along with the hashes.
+	 */
+	public LongSketchSet(int max, boolean keepItems) {
+		this( max, keepItems, SketchHash.DEFAULT);
+	}
+
+	/**
+	 * @param max  Number of minimum hashes to retain
+	 * @param keepItems  Whether the original strings should be
+	 *     retained along with the hashes.
+	 * @param sketchHash  Hash function used to hash items
+	 */
+	public LongSketchSet(int max, boolean keepItems, SketchHash sketchHash) {
+		this.maxItems = max;
+		this.sketchHash = sketchHash;
+		int initCap = Math.max( 0, Math.min( max, 64));
+		this.hashes = new long[ initCap];
+		if(keepItems) {
+			this.items = new String[ initCap];
+		}
+	}
+
+	public void addHashItem( long hash, String str) {
+		if( size == maxItems && hash >= hashes[ size -1]) {
+			/// Fast reject; above the current threshold
+			return;
+		}
+		int idx = Arrays.binarySearch( hashes, 0, size, hash);
+		if( idx >= 0) {
+			/// Already in the sketch
+			return;
+		}
+		int insertIdx = -(idx + 1);
+		if( size == maxItems) {
+			/// Drop the current max hash to make room
+			size--;
+		} else if( size == hashes.length) {
+			grow();
+		}
+		int numToMove = size - insertIdx;
+		if( numToMove > 0) {
+			System.arraycopy( hashes, insertIdx, hashes, insertIdx + 1, numToMove);
+			if( items != null) {
+				System.arraycopy( items, insertIdx, items, insertIdx + 1, numToMove);
+			}
+		}
+		hashes[ insertIdx] = hash;
+		if( items != null) {
+			items[ insertIdx] = str;
+		}
+		size++;
+	}
+
+	private void grow() {
+		int newCap = Math.min( maxItems, Math.max( hashes.length*2, 16));
+		hashes = Arrays.copyOf( hashes, newCap);
+		if( items != null) {
+			items = Arrays.copyOf( items, newCap);
+		}
+	}
+
+	/**
+	 *   for testing
+	 * @param hash
+	 */
+	public void addHash( long hash) {
+		addHashItem( hash, Long.toString( hash));
+	}
+
+	public void addItem( String str) {
+		this.addHashItem( sketchHash.hashString( str), str);
+	}
+
+	/**
+	 *  Add a long item, hashed as if it were its decimal string,
+	 *   so the sketch is the same as for the equivalent string column.
+	 *  The string is only created if the hash gets into the sketch.
+	 */
+	public void addLongItem( long val) {
+		if( longBuffer == null) {
+			longBuffer = new byte[ SketchHash.LONG_BUFFER_SIZE];
+		}
+		long hash = sketchHash.hashLong( val, longBuffer);
+		if( size == maxItems && hash >= hashes[ size -1]) {
+			return;
+		}
+		addHashItem( hash, (items != null) ? Long.toString( val) : null);
+	}
+
+	/**
+	 *  Add the hash of raw bytes, which have no string form to keep.
+	 */
+	public void addBytesItem( byte[] buff, int off, int len) {
+		addHashItem( sketchHash.hashBytes( buff, off, len), null);
+	}
+
+	public SketchHash getSketchHash() {
+		return sketchHash;
+	}
+
+	/**
+	 *  Check that another sketch was built with the same hash
+	 */
+	public void checkSketchHash( SketchHash otherHash) {
+		if( otherHash != sketchHash) {
+			throw new IllegalArgumentException("Can not combine a sketch hashed with " + otherHash
+					+ " into a sketch hashed with " + sketchHash);
+		}
+	}
+
+	public boolean isKeepItems() {
+		return items != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getHash( int idx) {
+		return hashes[ idx];
+	}
+
+	/**
+	 *  Return the item for the hash at the given position,
+	 *   or the hash as a string if the item was not kept
+	 */
+	public String getItem( int idx) {
+		String item = getRawItem( idx);
+		return item != null ? item : Long.toString( hashes[ idx]);
+	}
+
+	/**
+	 *  Return the item for the hash at the given position,
+	 *   or null if the item was not kept
+	 */
+	public String getRawItem( int idx) {
+		return items != null ? items[ idx] : null;
+	}
+
+	/**
+	 *  Return a copy of the hashes, in ascending order
+	 */
+	public long[] toHashArray() {
+		return Arrays.copyOf( hashes, size);
+	}
+
+	public List<String> getMinHashItems() {
+		List<String> itemList = new ArrayList<String>( size);
+		for(int i=0; i<size; ++i) {
+			itemList.add( getItem( i));
+		}
+		return itemList;
+	}
+
+	public List<Long> getMinHashes() {
+		List<Long> hashList = new ArrayList<Long>( size);
+		for(int i=0; i<size; ++i) {
+			hashList.add( hashes[ i]);
+		}
+		return hashList;
+	}
+
+	/**
+	 *  Return a new map of hashes to items.
+	 *  The map is not backed by the sketch.
+	 */
+	public Map<Long,String> getHashItemMap() {
+		Map<Long,String> hashItemMap = new HashMap<Long,String>( size*2);
+		for(int i=0; i<size; ++i) {
+			hashItemMap.put( hashes[ i], getItem( i));
+		}
+		return hashItemMap;
+	}
+
+	public void clear() {
+		if( items != null) {
+			Arrays.fill( items, 0, size, null);
+		}
+		size = 0;
+	}
+
+	public int getMaxItems() {
+		return maxItems;
+	}
+
+	public long lastHash() {
+		return hashes[ size -1];
+	}
+
+	public String lastItem() {
+		return getItem( size -1);
+	}
+
+	public double estimateReach() {
+		if( size < maxItems) {
+			return size;
+		}
+		return SketchSet.EstimatedReach( hashes[ size -1], maxItems);
+	}
+
+	public long calculateSimHash() {
+		return SimHash.Calculate( hashes, 0, size);
+	}
+
+	public void combine( LongSketchSet other) {
+		checkSketchHash( other.sketchHash);
+		for(int i=0; i<other.size; ++i) {
+			if( size == maxItems && other.hashes[i] >= hashes[ size -1]) {
+				/// Other sketch is sorted, so nothing further can get in
+				break;
+			}
+			addHashItem( other.hashes[ i], other.getRawItem( i));
+		}
+	}
+
+	public void combine( SketchSet other) {
+		checkSketchHash( SketchHash.MD5);
+		for( Map.Entry<Long,String> entry: other.getHashItemMap().entrySet() ) {
+			addHashItem( entry.getKey(), entry.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.util.Arrays;
+
+/**
+ *  SimHash of a set of 64 bit hashes, computed a word at a time.
+ *
+ *  Rather than keeping a counter for each of the 64 bit positions,
+ *   the counters are bit-sliced, so that plane i holds bit i of all
+ *   64 counters. Adding a hash is then a ripple-carry across the planes,
+ *   which on average touches only two of them, and the final majority
+ *   vote is a bitwise compare of the planes against a constant.
+ *
+ *  A bit of the SimHash is set when more than half of the hashes
+ *   have that bit set, matching the original +1/-1 sum table.
+ */
+public class SimHash {
+	/// Enough planes to count up to Integer.MAX_VALUE hashes
+	public static final int MAX_PLANES = 32;
+
+
+	public static long Calculate( long[] hashes) {
+		return Calculate( hashes, 0, hashes.length);
+	}
+
+	public static long Calculate( long[] hashes, int off, int len) {
+		return Calculate( hashes, off, len, new long[ MAX_PLANES]);
+	}
+
+	/**
+	 *  Calculate the SimHash, using the given array of at least
+	 *   MAX_PLANES longs as scratch space, so that callers
+	 *   which compute many SimHashes need not allocate.
+	 */
+	public static long Calculate( long[] hashes, int off, int len, long[] planes) {
+		if( len <= 0) {
+			return 0l;
+		}
+		int numPlanes = SketchSet.SIZEOF_LONG - Long.numberOfLeadingZeros( len);
+		Arrays.fill( planes, 0, numPlanes, 0l);
+		int end = off + len;
+		for(int i=off; i<end; ++i) {
+			long carry = hashes[i];
+			for(int p=0; carry != 0l; ++p) {
+				long plane = planes[p];
+				planes[p] = plane ^ carry;
+				carry &= plane;
+			}
+		}
+		/// Majority means a count of at least len/2 + 1
+		int threshold = (len >>> 1) + 1;
+		long greater = 0l;
+		long equal = -1l;
+		for(int p=numPlanes -1; p >= 0; --p) {
+			if( ((threshold >>> p) & 1) != 0) {
+				equal &= planes[p];
+			} else {
+				greater |= equal & planes[p];
+				equal &= ~planes[p];
+			}
+		}
+		return greater | equal;
+	}
+
+	/**
+	 *  Split a SimHash into numBands bands, and return the bits
+	 *   of the given band, in the low bits of the result.
+	 *  If 64 is not a multiple of numBands, the last band gets the remainder.
+	 */
+	public static long BandKey( long simHash, int band, int numBands) {
+		int bandBits = SketchSet.SIZEOF_LONG / numBands;
+		int shift = band*bandBits;
+		if( band == numBands -1) {
+			bandBits = SketchSet.SIZEOF_LONG - shift;
+		}
+		long bandMask = (bandBits == SketchSet.SIZEOF_LONG) ? -1l : ((1l << bandBits) -1);
+		return (simHash >>> shift) & bandMask;
+	}
+
+	public static int HammingDistance( long a, long b) {
+		return Long.bitCount( a ^ b);
+	}
+
+}
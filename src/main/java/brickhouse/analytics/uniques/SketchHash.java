@@ -0,0 +1,140 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ *  Hash functions which can be used to build a sketch.
+ *
+ *  MD5 is the original, and is needed to stay compatible
+ *   with existing sketches. The others are much faster,
+ *   but sketches built with different hashes can not be combined.
+ *
+ *  The id is what is recorded in a sketch's header.
+ */
+public enum SketchHash {
+	MD5(0) {
+		private final HashFunction md5 = Hashing.md5();
+
+		@Override
+		public long hashString( String str) {
+			return md5.hashString( str).asLong();
+		}
+
+		@Override
+		public long hashBytes( byte[] buff, int off, int len) {
+			return md5.hashBytes( buff, off, len).asLong();
+		}
+	},
+	MURMUR3_128(1) {
+		private final HashFunction murmur = Hashing.murmur3_128();
+
+		@Override
+		public long hashString( String str) {
+			return murmur.hashString( str).asLong();
+		}
+
+		@Override
+		public long hashBytes( byte[] buff, int off, int len) {
+			return murmur.hashBytes( buff, off, len).asLong();
+		}
+	},
+	XXHASH64(2) {
+		@Override
+		public long hashString( String str) {
+			return XxHash64.hashChars( str, 0);
+		}
+
+		@Override
+		public long hashBytes( byte[] buff, int off, int len) {
+			return XxHash64.hash( buff, off, len, 0);
+		}
+	};
+
+	public static final SketchHash DEFAULT = MD5;
+	/// Size of the scratch buffer for hashLong; Long.MIN_VALUE is 20 chars
+	public static final int LONG_BUFFER_SIZE = 40;
+
+	private final int id;
+
+	private SketchHash( int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	abstract public long hashString( String str);
+
+	/**
+	 *  Hash raw bytes. Strings are hashed as their UTF-16LE bytes,
+	 *   so hashString is the same as hashBytes of those.
+	 */
+	abstract public long hashBytes( byte[] buff, int off, int len);
+
+	/**
+	 *  Hash a long as if it were the string Long.toString( val),
+	 *   without creating the string.
+	 *
+	 * @param scratch  buffer of at least LONG_BUFFER_SIZE bytes
+	 */
+	public long hashLong( long val, byte[] scratch) {
+		int pos = LONG_BUFFER_SIZE;
+		/// Work with negative values, so that Long.MIN_VALUE doesn't overflow
+		long neg = (val < 0) ? val : -val;
+		do {
+			long q = neg / 10;
+			int digit = (int)( q*10 - neg);
+			scratch[ --pos] = 0;
+			scratch[ --pos] = (byte)( '0' + digit);
+			neg = q;
+		} while( neg != 0);
+		if( val < 0) {
+			scratch[ --pos] = 0;
+			scratch[ --pos] = '-';
+		}
+		return hashBytes( scratch, pos, LONG_BUFFER_SIZE - pos);
+	}
+
+
+	public static SketchHash FromId( int id) {
+		for( SketchHash hash : values()) {
+			if( hash.id == id) {
+				return hash;
+			}
+		}
+		throw new IllegalArgumentException("Unknown sketch hash id " + id);
+	}
+
+	/**
+	 *  Look up a hash by name, ignoring case,
+	 *   ie. 'md5', 'murmur3_128' or 'xxhash64'
+	 */
+	public static SketchHash FromName( String name) {
+		for( SketchHash hash : values()) {
+			if( hash.name().equalsIgnoreCase( name)) {
+				return hash;
+			}
+		}
+		throw new IllegalArgumentException("Unknown sketch hash " + name + "; expected one of md5, murmur3_128 or xxhash64");
+	}
+
+}
@@ -21,7 +21,6 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.SortedMap;
@@ -33,6 +32,7 @@ import com.google.common.hash.Hashing;
 
 public class SketchSet implements ICountDistinct {
 	static final int SIZEOF_LONG = 64;
+	private static final double MAX_LONG_DOUBLE = (double) Long.MAX_VALUE;
 	
     public  static int DEFAULT_MAX_ITEMS = 5000;
     private  int maxItems = DEFAULT_MAX_ITEMS;
@@ -117,8 +117,67 @@ public class SketchSet implements ICountDistinct {
 		long maxHash = HASH.hashString(lastItem).asLong();
 		return EstimatedReach( maxHash, maxItems);
 	}
+
+	static public double EstimatedReach( String lastItem, int maxItems, SketchHash sketchHash) {
+		return EstimatedReach( sketchHash.hashString( lastItem), maxItems);
+	}
 	
+	/**
+	 *  Estimate reach from the maximum hash of a full sketch.
+	 *
+	 *  The hash is mapped onto the unit interval in double arithmetic,
+	 *   and the result rounded half-even to a whole number, without allocating.
+	 *   It agrees with EstimatedReachBigDecimal to within a relative
+	 *   error of about 1e-15, which is within one for estimates below 2^50.
+	 *
+	 *  Long.MIN_VALUE, which can't be the maximum of a real sketch,
+	 *   gives the largest finite estimate rather than Infinity.
+	 */
 	static public double EstimatedReach( long maxHash, int maxItems) {
+		return Math.rint( (2.0*maxItems)*MAX_LONG_DOUBLE / ShiftedMaxHash( maxHash));
+	}
+
+	/**
+	 *  maxHash + Long.MAX_VALUE, as a double.
+	 *   Non-positive hashes are shifted in exact long arithmetic, so that
+	 *   hashes near -Long.MAX_VALUE, which give very large estimates,
+	 *   don't lose their precision to cancellation.
+	 */
+	static private double ShiftedMaxHash( long maxHash) {
+		if( maxHash <= 0) {
+			return (double) Math.max( 1L, maxHash + Long.MAX_VALUE);
+		}
+		return (double)maxHash + MAX_LONG_DOUBLE;
+	}
+
+	/**
+	 *  Estimate reach for many sketches at once.
+	 *
+	 * @param maxHashes  The maximum hash of each full sketch
+	 * @param maxItems  The size of each sketch
+	 * @param reach  Array to write the estimates to; must be at least as long as maxHashes
+	 */
+	static public void EstimatedReach( long[] maxHashes, int[] maxItems, double[] reach) {
+		for(int i=0; i< maxHashes.length; ++i) {
+			reach[i] = Math.rint( (2.0*maxItems[i])*MAX_LONG_DOUBLE / ShiftedMaxHash( maxHashes[i]));
+		}
+	}
+
+	/**
+	 *  Estimate reach for many sketches of the same size at once.
+	 */
+	static public void EstimatedReach( long[] maxHashes, int maxItems, double[] reach) {
+		double numerator = (2.0*maxItems)*MAX_LONG_DOUBLE;
+		for(int i=0; i< maxHashes.length; ++i) {
+			reach[i] = Math.rint( numerator / ShiftedMaxHash( maxHashes[i]));
+		}
+	}
+
+	/**
+	 *  Original arbitrary precision estimate, kept as a reference
+	 *   for the double precision version.
+	 */
+	static public double EstimatedReachBigDecimal( long maxHash, int maxItems) {
 		BigDecimal maxHashShifted = new BigDecimal(BigInteger.valueOf( maxHash).add( BigInteger.valueOf( Long.MAX_VALUE)));
 		
 		BigDecimal bigMaxItems = new BigDecimal( maxItems*2).multiply( BigDecimal.valueOf( Long.MAX_VALUE));
@@ -128,30 +187,12 @@ public class SketchSet implements ICountDistinct {
 	
 	
 	public long calculateSimHash() {
-		int[] sumTable = new int[ SIZEOF_LONG];
-		
-		Iterator<Long> hashes = getHashItemMap().keySet().iterator();
-		while( hashes.hasNext() ) {
-			long hash = hashes.next();
-			long mask = 1l;
-			for(int pos =0; pos < SIZEOF_LONG; ++pos ) {
-				if( (hash & mask) != 0l) {
-					sumTable[pos]++;
-				} else {
-					sumTable[pos]--;
-				}
-				mask <<=  1;
-			}
-		}
-		long simHash = 0l;
-		long mask = 1l;
-		for(int pos=0; pos <SIZEOF_LONG; ++pos) {
-			if( sumTable[pos] > 0) {
-				simHash |= mask;
-			}
-			mask <<=1;
+		long[] hashArr = new long[ sortedMap.size()];
+		int i=0;
+		for( long hash : sortedMap.keySet()) {
+			hashArr[i++] = hash;
 		}
-		return simHash;
+		return SimHash.Calculate( hashArr);
 	}
 	
 	
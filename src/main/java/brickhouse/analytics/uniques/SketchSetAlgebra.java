@@ -0,0 +1,130 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+/**
+ *  Set operations on two KMV sketches, computed directly
+ *   from their sorted hashes, in the style of theta sketches.
+ *
+ *  The threshold theta is the smaller of the two sketches'
+ *   maximum hashes ( or unbounded if a sketch is not full ).
+ *  Hashes at or below theta are a uniform sample of both sets,
+ *   so the counts of shared and unshared hashes in a single
+ *   merge pass, scaled by theta, estimate the intersection
+ *   and differences.
+ */
+public class SketchSetAlgebra {
+	private static final double MAX_LONG_DOUBLE = (double) Long.MAX_VALUE;
+
+	/// Hashes at or below theta found in both, only A, or only B
+	private int countBoth;
+	private int countAOnly;
+	private int countBOnly;
+	private long theta;
+
+
+	/**
+	 * @param a  Sorted hashes of the first sketch
+	 * @param aMax  Maximum size of the first sketch
+	 * @param b  Sorted hashes of the second sketch
+	 * @param bMax  Maximum size of the second sketch
+	 */
+	public SketchSetAlgebra( long[] a, int aMax, long[] b, int bMax) {
+		compute( a, a.length, aMax, b, b.length, bMax);
+	}
+
+	public SketchSetAlgebra( LongSketchSet a, LongSketchSet b) {
+		compute( a.toHashArray(), a.size(), a.getMaxItems(), b.toHashArray(), b.size(), b.getMaxItems());
+	}
+
+	private void compute( long[] a, int aLen, int aMax, long[] b, int bLen, int bMax) {
+		theta = Long.MAX_VALUE;
+		if( aLen >= aMax && aLen > 0) {
+			theta = a[ aMax -1];
+		}
+		if( bLen >= bMax && bLen > 0) {
+			theta = Math.min( theta, b[ bMax -1]);
+		}
+		int i=0;
+		int j=0;
+		while( i < aLen && j < bLen) {
+			long aHash = a[i];
+			long bHash = b[j];
+			if( aHash > theta && bHash > theta) {
+				break;
+			}
+			if( aHash == bHash) {
+				countBoth++;
+				i++;
+				j++;
+			} else if( aHash < bHash) {
+				countAOnly++;
+				i++;
+			} else {
+				countBOnly++;
+				j++;
+			}
+		}
+		while( i < aLen && a[i] <= theta) {
+			countAOnly++;
+			i++;
+		}
+		while( j < bLen && b[j] <= theta) {
+			countBOnly++;
+			j++;
+		}
+	}
+
+	/**
+	 *  Fraction of the hash space sampled by the sketches;
+	 *   one if neither sketch is full, and the counts are exact.
+	 */
+	public double getSampleFraction() {
+		if( theta == Long.MAX_VALUE) {
+			return 1.0;
+		}
+		return ( (double)theta + MAX_LONG_DOUBLE) / ( 2.0*MAX_LONG_DOUBLE);
+	}
+
+	public double estimateIntersection() {
+		return Math.rint( countBoth / getSampleFraction());
+	}
+
+	/**
+	 *  Estimated size of A - B
+	 */
+	public double estimateDifference() {
+		return Math.rint( countAOnly / getSampleFraction());
+	}
+
+	public double estimateUnion() {
+		return Math.rint( ( countBoth + countAOnly + countBOnly) / getSampleFraction());
+	}
+
+	/**
+	 *  Jaccard similarity, | A intersect B | / | A union B |
+	 */
+	public double jaccard() {
+		int countUnion = countBoth + countAOnly + countBOnly;
+		if( countUnion == 0) {
+			return 0.0;
+		}
+		return ((double) countBoth) / countUnion;
+	}
+
+}
@@ -0,0 +1,191 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+/**
+ *  xxHash64, a fast non-cryptographic 64 bit hash.
+ *
+ *  Strings are hashed directly from their chars, giving the
+ *   same result as hashing their UTF-16LE bytes,
+ *   which is also how Guava hashes a CharSequence.
+ */
+public class XxHash64 {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+
+	public static long hash( byte[] buff, int off, int len, long seed) {
+		int end = off + len;
+		int pos = off;
+		long h;
+		if( len >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			int limit = end - 32;
+			do {
+				v1 = round( v1, getLong( buff, pos));
+				v2 = round( v2, getLong( buff, pos + 8));
+				v3 = round( v3, getLong( buff, pos + 16));
+				v4 = round( v4, getLong( buff, pos + 24));
+				pos += 32;
+			} while( pos <= limit);
+			h = mergeAccumulators( v1, v2, v3, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+		h += len;
+		while( pos + 8 <= end) {
+			h = mixLong( h, getLong( buff, pos));
+			pos += 8;
+		}
+		if( pos + 4 <= end) {
+			h = mixInt( h, getInt( buff, pos));
+			pos += 4;
+		}
+		while( pos < end) {
+			h = mixByte( h, buff[ pos] & 0xFF);
+			pos++;
+		}
+		return avalanche( h);
+	}
+
+	/**
+	 *  Hash the chars of a string, as if they were UTF-16LE bytes,
+	 *   without encoding the string.
+	 */
+	public static long hashChars( CharSequence str, long seed) {
+		int numChars = str.length();
+		int len = numChars*2;
+		int pos = 0;
+		long h;
+		if( numChars >= 16) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			int limit = numChars - 16;
+			do {
+				v1 = round( v1, getCharsLong( str, pos));
+				v2 = round( v2, getCharsLong( str, pos + 4));
+				v3 = round( v3, getCharsLong( str, pos + 8));
+				v4 = round( v4, getCharsLong( str, pos + 12));
+				pos += 16;
+			} while( pos <= limit);
+			h = mergeAccumulators( v1, v2, v3, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+		h += len;
+		while( pos + 4 <= numChars) {
+			h = mixLong( h, getCharsLong( str, pos));
+			pos += 4;
+		}
+		if( pos + 2 <= numChars) {
+			h = mixInt( h, ((long) str.charAt( pos)) | (((long) str.charAt( pos + 1)) << 16));
+			pos += 2;
+		}
+		if( pos < numChars) {
+			char c = str.charAt( pos);
+			h = mixByte( h, c & 0xFF);
+			h = mixByte( h, c >>> 8);
+		}
+		return avalanche( h);
+	}
+
+	public static long hashLong( long val, long seed) {
+		long h = seed + PRIME5 + 8;
+		h = mixLong( h, val);
+		return avalanche( h);
+	}
+
+	private static long round( long acc, long lane) {
+		acc += lane*PRIME2;
+		acc = Long.rotateLeft( acc, 31);
+		return acc*PRIME1;
+	}
+
+	private static long mergeAccumulators( long v1, long v2, long v3, long v4) {
+		long h = Long.rotateLeft( v1, 1) + Long.rotateLeft( v2, 7)
+				+ Long.rotateLeft( v3, 12) + Long.rotateLeft( v4, 18);
+		h = mergeRound( h, v1);
+		h = mergeRound( h, v2);
+		h = mergeRound( h, v3);
+		h = mergeRound( h, v4);
+		return h;
+	}
+
+	private static long mergeRound( long acc, long val) {
+		acc ^= round( 0, val);
+		return acc*PRIME1 + PRIME4;
+	}
+
+	private static long mixLong( long h, long lane) {
+		h ^= round( 0, lane);
+		return Long.rotateLeft( h, 27)*PRIME1 + PRIME4;
+	}
+
+	private static long mixInt( long h, long unsignedInt) {
+		h ^= unsignedInt*PRIME1;
+		return Long.rotateLeft( h, 23)*PRIME2 + PRIME3;
+	}
+
+	private static long mixByte( long h, int unsignedByte) {
+		h ^= unsignedByte*PRIME5;
+		return Long.rotateLeft( h, 11)*PRIME1;
+	}
+
+	private static long avalanche( long h) {
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long getLong( byte[] buff, int pos) {
+		return (buff[pos] & 0xFFL)
+				| ((buff[pos + 1] & 0xFFL) << 8)
+				| ((buff[pos + 2] & 0xFFL) << 16)
+				| ((buff[pos + 3] & 0xFFL) << 24)
+				| ((buff[pos + 4] & 0xFFL) << 32)
+				| ((buff[pos + 5] & 0xFFL) << 40)
+				| ((buff[pos + 6] & 0xFFL) << 48)
+				| ((buff[pos + 7] & 0xFFL) << 56);
+	}
+
+	private static long getInt( byte[] buff, int pos) {
+		return (buff[pos] & 0xFFL)
+				| ((buff[pos + 1] & 0xFFL) << 8)
+				| ((buff[pos + 2] & 0xFFL) << 16)
+				| ((buff[pos + 3] & 0xFFL) << 24);
+	}
+
+	private static long getCharsLong( CharSequence str, int pos) {
+		return ((long) str.charAt( pos))
+				| (((long) str.charAt( pos + 1)) << 16)
+				| (((long) str.charAt( pos + 2)) << 32)
+				| (((long) str.charAt( pos + 3)) << 48);
+	}
+
+}
@@ -0,0 +1,231 @@
+package brickhouse.hbase;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  Writes batches of mutations to HBase from background threads,
+ *   so that the Hive operator thread doesn't stall while
+ *   the RegionServers process each batch.
+ *
+ *  At most async_queue_size batches may be waiting; after that
+ *   submit blocks until a flusher thread takes one. The first
+ *   failure is remembered, and is thrown from the next submit, await or close.
+ *  Callers must close the writer once they are done, so that every
+ *   batch is known to be written before the task reports success.
+ *
+ *  Enabled by adding "async_threads" to the config map, ie.
+ *   map( "table_name", "mytable", ... , "async_threads", "4", "async_queue_size", "8")
+ */
+public class AsyncTableWriter {
+    private static final Logger LOG = Logger.getLogger(AsyncTableWriter.class);
+
+    public static final String ASYNC_THREADS_TAG = "async_threads";
+    public static final String ASYNC_QUEUE_SIZE_TAG = "async_queue_size";
+
+    private final Map<String, String> configMap;
+    private final BlockingQueue<List<? extends Row>> queue;
+    private final Thread[] flushers;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final Object lock = new Object();
+    private int numOutstanding = 0;
+    private volatile boolean closed = false;
+
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numRows = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+
+    /**
+     *  Return true if the config map asks for asynchronous writes
+     */
+    public static boolean isAsync(Map<String, String> configMap) {
+        return configMap.containsKey(ASYNC_THREADS_TAG)
+                && Integer.parseInt(configMap.get(ASYNC_THREADS_TAG)) > 0;
+    }
+
+    public AsyncTableWriter(Map<String, String> configMap) {
+        /// Copy the config, since the evaluator keeps changing its own in merge
+        this.configMap = new HashMap<String, String>(configMap);
+        int numThreads = Integer.parseInt(configMap.get(ASYNC_THREADS_TAG));
+        int queueSize = configMap.containsKey(ASYNC_QUEUE_SIZE_TAG)
+                ? Integer.parseInt(configMap.get(ASYNC_QUEUE_SIZE_TAG)) : 2 * numThreads;
+        this.queue = new ArrayBlockingQueue<List<? extends Row>>(queueSize);
+
+        LOG.info(" Starting " + numThreads + " HBase flusher threads for " + configMap.get(HTableFactory.TABLE_NAME_TAG)
+                + " with up to " + queueSize + " queued batches");
+        flushers = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            flushers[i] = new Thread(new Flusher(), "brickhouse-hbase-flusher-" + i);
+            flushers[i].setDaemon(true);
+            flushers[i].start();
+        }
+    }
+
+    /**
+     *  Queue a batch to be written, blocking if too many are already waiting.
+     *  The list is handed over, and must not be changed by the caller afterwards.
+     */
+    public void submit(List<? extends Row> batch) throws IOException {
+        if (closed) {
+            throw new IOException("Asynchronous HBase writer is closed");
+        }
+        checkFailure();
+        if (batch.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            ++numOutstanding;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            finished();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing HBase batch");
+        }
+        blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     *  Wait until every submitted batch has been written,
+     *   and throw the first failure if there was one.
+     */
+    public void await() throws IOException {
+        synchronized (lock) {
+            while (numOutstanding > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for HBase batches");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     *  Wait for every submitted batch, as in await,
+     *   and then stop the flusher threads.
+     */
+    public void close() throws IOException {
+        closed = true;
+        try {
+            await();
+        } finally {
+            for (Thread flusher : flushers) {
+                flusher.interrupt();
+            }
+        }
+    }
+
+    /**
+     *  Write one batch; called from the flusher threads.
+     *   Tests override this to avoid needing an HBase cluster.
+     */
+    protected void writeBatch(List<? extends Row> batch) throws IOException, InterruptedException {
+        /// Each flusher thread gets its own table handle on the shared connection
+        HTable htable = HTableFactory.getHTable(configMap);
+        htable.batch(batch, new Object[batch.size()]);
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Asynchronous HBase write failed", t);
+        }
+    }
+
+    private void finished() {
+        synchronized (lock) {
+            --numOutstanding;
+            lock.notifyAll();
+        }
+    }
+
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+    public long getNumRows() {
+        return numRows.get();
+    }
+
+    /**
+     *  Time the caller spent blocked because the queue was full
+     */
+    public long getBlockedMillis() {
+        return blockedNanos.get() / 1000000L;
+    }
+
+    public String getStats() {
+        return "Async HBase batches = " + numBatches.get() + " ; rows = " + numRows.get()
+                + " ; blocked ms = " + getBlockedMillis();
+    }
+
+
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            while (!(closed && queue.isEmpty())) {
+                List<? extends Row> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    /// Once something has failed, just drain the queue
+                    if (failure.get() == null) {
+                        write(batch);
+                    }
+                } catch (Throwable t) {
+                    LOG.error("Error while writing HBase batch of " + batch.size() + " rows", t);
+                    failure.compareAndSet(null, t);
+                } finally {
+                    finished();
+                }
+            }
+        }
+
+        private void write(List<? extends Row> batch) throws IOException, InterruptedException {
+            writeBatch(batch);
+            numBatches.incrementAndGet();
+            numRows.addAndGet(batch.size());
+        }
+    }
+
+}
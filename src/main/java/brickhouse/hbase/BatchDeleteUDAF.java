@@ -1,6 +1,5 @@
 package brickhouse.hbase;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.HTable;
@@ -75,9 +74,6 @@ import java.util.Map;
 public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
     private static final Logger LOG = Logger.getLogger(BatchDeleteUDAF.class);
 
-    private static Map<String, HTable> htableMap = new HashMap<String,HTable>();
-    private static Configuration hbConfig;
-
     @Override
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
             throws SemanticException {
@@ -154,6 +150,7 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
         private Map<String,String> configMap;
 
         private HTable table;
+        private BatchTableWriter tableWriter;
 
 
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -207,6 +204,9 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
                 listKVOI = (StandardListObjectInspector) parameters[0];
             }
 
+            tableWriter = new BatchTableWriter(configMap, BatchDeleteUDAFCounter.NUMBER_OF_SUCCESSFUL_DELETES,
+                    BatchDeleteUDAFCounter.NUMBER_OF_BATCH_OPERATIONS);
+
             if( m == Mode.PARTIAL1 || m  == Mode.PARTIAL2) {
                 return ObjectInspectorFactory
                         .getStandardListObjectInspector(
@@ -255,7 +255,8 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
                 if (writeBufferSizeBytes > 0)
                     htable.setWriteBufferSize(writeBufferSizeBytes);
                 System.out.println("deleting" + kvBuff.deleteList + "size" + kvBuff.deleteList.size());
-                if (flushCommits)
+                AsyncTableWriter writer = tableWriter.getAsyncWriter();
+                if (writer == null && flushCommits)
                     htable.flushCommits();
                 numDeleteRecords += kvBuff.deleteList.size();
                 if (kvBuff.deleteList.size() > 0)
@@ -263,10 +264,19 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
                 else
                     LOG.info(" Doing Batch Delete with ZERO 0 records");
 
-                getReporter().getCounter(BatchDeleteUDAFCounter.NUMBER_OF_SUCCESSFUL_DELETES).increment(kvBuff.deleteList.size());
-                getReporter().getCounter(BatchDeleteUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
-                htable.delete(kvBuff.deleteList);
-                kvBuff.deleteList.clear();
+                if (writer == null) {
+                    /// Asynchronous writes are counted once they are written
+                    getReporter().getCounter(BatchDeleteUDAFCounter.NUMBER_OF_SUCCESSFUL_DELETES).increment(kvBuff.deleteList.size());
+                    getReporter().getCounter(BatchDeleteUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
+                }
+                if (writer != null) {
+                    /// Hand the list over to the writer
+                    writer.submit(kvBuff.deleteList);
+                    kvBuff.deleteList = new ArrayList<Delete>();
+                } else {
+                    htable.delete(kvBuff.deleteList);
+                    kvBuff.deleteList.clear();
+                }
             } catch (IOException e) {
                 throw new HiveException(e);
             }
@@ -318,6 +328,7 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
         public Object terminate(AggregationBuffer agg) throws HiveException {
             DeleteBuffer myagg = (DeleteBuffer) agg;
             batchUpdate(myagg, true);
+            tableWriter.close(getReporter());
             return "Finished Batch updates ; Num Deletes = " + numDeleteRecords;
 
         }
@@ -326,6 +337,7 @@ public class BatchDeleteUDAF extends AbstractGenericUDAFResolver {
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             DeleteBuffer myagg = (DeleteBuffer) agg;
+            tableWriter.close(getReporter());
 
             ArrayList<List<String>> ret = new ArrayList<List<String>>();
             ArrayList tname = new ArrayList<String>();
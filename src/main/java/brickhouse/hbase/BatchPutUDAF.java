@@ -155,6 +155,7 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
 		private Map<String,String> configMap;
 		
 		private HTable table;
+		private BatchTableWriter tableWriter;
 
 
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -182,7 +183,9 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
 				
 				try {
 					LOG.info(" Initializing HTable ");
-					table = HTableFactory.getHTable( configMap);
+					if( !HFileBulkWriter.isBulkLoad( configMap)) {
+						table = HTableFactory.getHTable( configMap);
+					}
 					
 					if(configMap.containsKey(BATCH_SIZE_TAG)) {
 						batchSize = Integer.parseInt( configMap.get( BATCH_SIZE_TAG));
@@ -210,6 +213,9 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
 			  listKVOI = (StandardListObjectInspector) parameters[0];
 			}
 			
+			tableWriter = new BatchTableWriter(configMap, BatchPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS,
+					BatchPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS);
+			
 			if( m == Mode.PARTIAL1 || m  == Mode.PARTIAL2) {
 			   return ObjectInspectorFactory
 						.getStandardListObjectInspector(
@@ -249,6 +255,12 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
 
         protected void batchUpdate(PutBuffer kvBuff, boolean flushCommits) throws HiveException {
             try {
+                if (HFileBulkWriter.isBulkLoad(configMap)) {
+                    tableWriter.bulkWrite(kvBuff.putList, flushCommits, getReporter());
+                    numPutRecords += kvBuff.putList.size();
+                    kvBuff.putList.clear();
+                    return;
+                }
 
                 HTable htable = HTableFactory.getHTable(configMap);
                 // Disable auto flush when specified so in the config map
@@ -259,18 +271,35 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
                 if (writeBufferSizeBytes > 0)
                     htable.setWriteBufferSize(writeBufferSizeBytes);
 
-                htable.put(kvBuff.putList);
-                if (flushCommits)
-                    htable.flushCommits();
-                numPutRecords += kvBuff.putList.size();
+                AsyncTableWriter writer = tableWriter.getAsyncWriter();
+                RegionBatcher batcher = tableWriter.getRegionBatcher(htable, batchSize);
+                int numWritten = kvBuff.putList.size();
+                if (batcher != null) {
+                    /// The batcher counts rows once it writes them, not while it holds them
+                    numWritten = tableWriter.writeRegionBatches(kvBuff.putList, flushCommits, htable, getReporter());
+                } else if (writer == null) {
+                    htable.put(kvBuff.putList);
+                    if (flushCommits)
+                        htable.flushCommits();
+                }
+                numPutRecords += numWritten;
                 if (kvBuff.putList.size() > 0)
                     LOG.info(" Doing Batch Put " + kvBuff.putList.size() + " records; Total put records = " + numPutRecords + " ; Start = " + (new String(kvBuff.putList.get(0).getRow())) + " ; End = " + (new String(kvBuff.putList.get(kvBuff.putList.size() - 1).getRow())));
                 else
                     LOG.info(" Doing Batch Put with ZERO 0 records");
 
-                getReporter().getCounter(BatchPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
-                getReporter().getCounter(BatchPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
-                kvBuff.putList.clear();
+                if (writer == null && batcher == null) {
+                    /// Asynchronous and region batched writes are counted once they are written
+                    getReporter().getCounter(BatchPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
+                    getReporter().getCounter(BatchPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
+                }
+                if (writer != null && batcher == null) {
+                    /// Hand the list over to the writer
+                    writer.submit(kvBuff.putList);
+                    kvBuff.putList = new ArrayList<Put>();
+                } else {
+                    kvBuff.putList.clear();
+                }
             } catch (IOException e) {
                 throw new HiveException(e);
             }
@@ -326,6 +355,7 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
         public Object terminate(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
             batchUpdate(myagg, true);
+            tableWriter.close(getReporter());
             return "Finished Batch updates ; Num Puts = " + numPutRecords;
 
         }
@@ -334,6 +364,7 @@ public class BatchPutUDAF extends AbstractGenericUDAFResolver {
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
+            tableWriter.close(getReporter());
 
 
             ArrayList<List<String>> ret = new ArrayList<List<String>>();
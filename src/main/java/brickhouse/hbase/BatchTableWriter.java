@@ -0,0 +1,144 @@
+package brickhouse.hbase;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  The optional write paths shared by the batch put and delete UDAFs;
+ *   the asynchronous writer, the region batcher and the HFile bulk writer.
+ *  Each is created lazily, as the config map asks, since in FINAL mode
+ *   the config only arrives in merge.
+ *
+ *  Rows written through these paths are counted on the task's Reporter,
+ *   under the UDAF's own counters, once they are known to be written.
+ */
+public class BatchTableWriter {
+    private static final Logger LOG = Logger.getLogger(BatchTableWriter.class);
+
+    /// The evaluator's config map, which merge may still be filling in
+    private final Map<String, String> configMap;
+    private final Enum<?> rowsCounter;
+    private final Enum<?> batchesCounter;
+
+    private AsyncTableWriter asyncWriter;
+    private RegionBatcher regionBatcher;
+    private HFileBulkWriter bulkWriter;
+
+
+    public BatchTableWriter(Map<String, String> configMap, Enum<?> rowsCounter, Enum<?> batchesCounter) {
+        this.configMap = configMap;
+        this.rowsCounter = rowsCounter;
+        this.batchesCounter = batchesCounter;
+    }
+
+    /**
+     *  Writer for the async_threads mode, or null if writes are synchronous.
+     */
+    public AsyncTableWriter getAsyncWriter() {
+        if (asyncWriter == null && AsyncTableWriter.isAsync(configMap)) {
+            asyncWriter = new AsyncTableWriter(configMap);
+        }
+        return asyncWriter;
+    }
+
+    /**
+     *  Batcher for the region_batching mode, or null if rows are
+     *   written in arrival order.
+     */
+    public RegionBatcher getRegionBatcher(HTable htable, int batchSize) throws IOException {
+        if (regionBatcher == null && RegionBatcher.isRegionBatching(configMap)) {
+            regionBatcher = RegionBatcher.forTable(htable, configMap, batchSize);
+        }
+        return regionBatcher;
+    }
+
+    /**
+     *  Add rows to the region batcher. Only the rows it writes out are counted,
+     *   and not those it is still holding for their sub-batch to fill.
+     *
+     * @return the number of rows written, or handed to the async writer
+     */
+    public int writeRegionBatches(List<? extends Row> rows, boolean flush, HTable htable, Reporter reporter) throws IOException {
+        long numRows = regionBatcher.getNumRows();
+        long numBatches = regionBatcher.getNumBatches();
+        regionBatcher.write(rows, flush, htable, asyncWriter);
+        int rowsWritten = (int) (regionBatcher.getNumRows() - numRows);
+        if (asyncWriter == null) {
+            /// Asynchronous writes are counted once they are written
+            reporter.getCounter(rowsCounter).increment(rowsWritten);
+            reporter.getCounter(batchesCounter).increment(regionBatcher.getNumBatches() - numBatches);
+        }
+        return rowsWritten;
+    }
+
+    /**
+     *  In bulk load mode, puts are written to HFiles instead of the table,
+     *   and are counted once they are buffered.
+     */
+    public void bulkWrite(List<Put> puts, boolean flush, Reporter reporter) throws IOException {
+        if (bulkWriter == null) {
+            bulkWriter = new HFileBulkWriter(configMap);
+        }
+        bulkWriter.add(puts);
+        reporter.getCounter(rowsCounter).increment(puts.size());
+        if (flush) {
+            bulkWriter.flush();
+        }
+    }
+
+    /**
+     *  Write out any rows still held by the region batcher or the bulk writer,
+     *   and wait for the asynchronous writer to finish and stop its threads.
+     *  Asynchronous writes are only counted as successful once they have been written.
+     */
+    public void close(Reporter reporter) throws HiveException {
+        try {
+            if (regionBatcher != null && regionBatcher.getNumHeld() > 0) {
+                HTable htable = HTableFactory.getHTable(configMap);
+                writeRegionBatches(Collections.<Row>emptyList(), true, htable, reporter);
+            }
+            if (asyncWriter != null) {
+                AsyncTableWriter writer = asyncWriter;
+                asyncWriter = null;
+                try {
+                    writer.close();
+                } finally {
+                    LOG.info(writer.getStats());
+                }
+                reporter.getCounter(rowsCounter).increment(writer.getNumRows());
+                reporter.getCounter(batchesCounter).increment(writer.getNumBatches());
+            }
+            if (bulkWriter != null) {
+                bulkWriter.flush();
+            }
+        } catch (IOException e) {
+            throw new HiveException(e);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package brickhouse.hbase;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.Map;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.log4j.Logger;
+
+/**
+ *  Load the HFiles written by hbase_batch_put or hbase_multicolumn_put
+ *   in bulk load mode into their table, with LoadIncrementalHFiles.
+ *
+ *  The load is only done once, on the first row, so
+ *   this is meant to be run from a single row query, ie.
+ *   select hbase_bulk_load( map( ... , "bulk_load_dir", "hdfs:///tmp/mytable_load")) from dual;
+ */
+@Description(name="hbase_bulk_load",
+value = "_FUNC_(config) - Load the HFiles under the config's bulk_load_dir into its table "
+)
+@UDFType(deterministic=false)
+public class BulkLoadUDF extends GenericUDF {
+	private static final Logger LOG = Logger.getLogger( BulkLoadUDF.class);
+	private Map<String,String> configMap;
+	private String result;
+
+
+	@Override
+	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		if( result == null) {
+			try {
+				HFileBulkWriter.bulkLoad( configMap);
+				result = "Loaded " + configMap.get( HFileBulkWriter.BULK_LOAD_DIR_TAG) + " into " + configMap.get( HTableFactory.TABLE_NAME_TAG);
+				LOG.info( result);
+			} catch(Exception exc) {
+				LOG.error(" Error while bulk loading HFiles ", exc);
+				throw new HiveException( exc);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String getDisplayString(String[] arg0) {
+		return "hbase_bulk_load( " + arg0[0] + " ) ";
+	}
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		if( arg0.length != 1 || arg0[0].getCategory() != Category.MAP) {
+			throw new UDFArgumentException(" hbase_bulk_load expects a config map");
+		}
+		configMap = HTableFactory.getConfigFromConstMapInspector(arg0[0]);
+		if( !configMap.containsKey( HTableFactory.TABLE_NAME_TAG)
+				|| !configMap.containsKey( HTableFactory.ZOOKEEPER_QUORUM_TAG)
+				|| !HFileBulkWriter.isBulkLoad( configMap)) {
+			throw new UDFArgumentException(" hbase_bulk_load config must contain " + HTableFactory.TABLE_NAME_TAG
+					+ ", " + HTableFactory.ZOOKEEPER_QUORUM_TAG + " and " + HFileBulkWriter.BULK_LOAD_DIR_TAG);
+		}
+		return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+	}
+
+}
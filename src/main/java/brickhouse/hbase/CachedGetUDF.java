@@ -1,8 +1,20 @@
 package brickhouse.hbase;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
@@ -12,18 +24,22 @@ import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import brickhouse.udf.json.InspectorHandle;
+import brickhouse.udf.json.JsonMapperFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.Weigher;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
@@ -41,25 +57,58 @@ import com.google.common.util.concurrent.UncheckedExecutionException;
  *     JSON strings, and using a template object similiar to the one used in 
  *     the from_json UDF. An example would be storing a map<string,double> as 
  *     a bag-of-words, or an array&lt;string&gt; to store a sketch-set
+ *
+ *   If an array of keys is passed instead of a single key, an array of
+ *     values is returned, and all the keys which aren't cached are fetched
+ *     with multi-gets of multiget_batch_size keys, rather than a Get per key.
+ *     With multiget_threads set in the config map, the batches are fetched
+ *     concurrently, and each is parsed as soon as it arrives, while
+ *     later batches are still in flight.
+ *
+ *   The cache is bounded by the estimated heap size of the parsed values,
+ *     brickhouse.hbase.cache.maxBytes ( default a quarter of the heap ), unless
+ *     brickhouse.hbase.cache.maxSize is given, in which case it is bounded
+ *     by count as before. brickhouse.hbase.cache.ttlSeconds expires values
+ *     after they are written. Keys with no value are cached as missing, so
+ *     they aren't fetched again, unless brickhouse.hbase.cache.negative is false.
+ *     Hits, misses, load time and evictions are published as Hadoop counters.
  *    
  *
  */
 @Description(name="hbase_cached_get",
-value = "_FUNC_(configMap,key,template) - Returns a cached object, given an HBase config, a key, and a template object used to interpret JSON" 
+value = "_FUNC_(configMap,key,template) - Returns a cached object, given an HBase config, a key, and a template object used to interpret JSON. "
+  + " If key is an array of keys, an array of objects is returned, and misses are fetched with multi-gets. "
 )
 public class CachedGetUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger(CachedGetUDF.class);
 	private Cache<String,Object> cache;
 	private Map<String,String> configMap;
 	private StringObjectInspector strInspector;
+	private ListObjectInspector keyListInspector;
 	private InspectorHandle jsonInspectorHandle;
+	private int multiGetBatchSize = DEFAULT_MULTIGET_BATCH_SIZE;
+	private ExecutorService multiGetPool;
+	private boolean negativeCache = true;
+	private Reporter reporter;
 	
 	private static final String MAX_SIZE_KEY = "brickhouse.hbase.cache.maxSize";
+	private static final String MAX_BYTES_KEY = "brickhouse.hbase.cache.maxBytes";
+	private static final String TTL_SECONDS_KEY = "brickhouse.hbase.cache.ttlSeconds";
+	private static final String NEGATIVE_CACHE_KEY = "brickhouse.hbase.cache.negative";
+	/// Cached in place of rows which have no value
+	static final Object MISSING = new Object();
+	private static final int STATS_INTERVAL = 10000;
+	private static final String MULTIGET_BATCH_SIZE_TAG = "multiget_batch_size";
+	private static final String MULTIGET_THREADS_TAG = "multiget_threads";
+	private static final int DEFAULT_MULTIGET_BATCH_SIZE = 100;
 	
 	
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		if( keyListInspector != null) {
+			return getValues( arg0[1].get());
+		}
 		return getValue( strInspector.getPrimitiveJavaObject( arg0[1].get()));
 	}
 	
@@ -67,19 +116,16 @@ public class CachedGetUDF extends GenericUDF {
 
 		@Override
 		public Object load(String key) throws Exception {
-			String jsonString = loadString( key);
-			if( (++numLoaded % 1000) ==0 ) {
-				LOG.info(" loaded " + numLoaded+ " records; Key = " + key + " json =" + jsonString);
-			}
-			
-			
-			if( jsonInspectorHandle != null) {
-			    ObjectMapper jacksonParser = new ObjectMapper();
-				JsonNode jsonNode = jacksonParser.readTree( jsonString);
-				
-				return jsonInspectorHandle.parseJson( jsonNode);
-			} else {
-				return jsonString;
+			long start = System.nanoTime();
+			try {
+				String jsonString = loadString( key);
+				++numLoaded;
+				if( jsonString == null) {
+					return missingValue( key);
+				}
+				return parseValue( jsonString);
+			} finally {
+				loadNanos += System.nanoTime() - start;
 			}
 		}
 			
@@ -95,9 +141,9 @@ public class CachedGetUDF extends GenericUDF {
 			HTable htable = HTableFactory.getHTable( configMap);
 
 			Result res = htable.get( keyGet);
-			KeyValue kv = res.getColumnLatest(configMap.get( HTableFactory.FAMILY_TAG).getBytes() ,configMap.get( HTableFactory.QUALIFIER_TAG).getBytes() );
+			KeyValue kv = getColumn( res);
 			if(kv == null) {
-				throw new NoSuchElementException("No value found for " + key);
+				return null;
 			}
 			byte[] bytes = kv.getValue();
 			if(bytes != null) {
@@ -110,11 +156,166 @@ public class CachedGetUDF extends GenericUDF {
 		}
 		
 	};
+
+	/**
+	 *  Value to cache for a row with no value; either
+	 *   the MISSING marker, or an exception if negative caching is off.
+	 */
+	private Object missingValue( String key) {
+		++numMissingRows;
+		if( negativeCache) {
+			return MISSING;
+		}
+		throw new NoSuchElementException("No value found for " + key);
+	}
+
+	private KeyValue getColumn( Result res) {
+		return res.getColumnLatest(configMap.get( HTableFactory.FAMILY_TAG).getBytes() ,configMap.get( HTableFactory.QUALIFIER_TAG).getBytes() );
+	}
+
+	private Object parseValue( String jsonString) throws Exception {
+		if( jsonInspectorHandle != null) {
+			return JsonMapperFactory.ParseJson( jsonString, jsonInspectorHandle);
+		} else {
+			return jsonString;
+		}
+	}
+
+	/**
+	 *  Look up an array of keys, fetching all the misses
+	 *   with multi-gets instead of one Get per key.
+	 *  Values are taken from the fetched results rather than re-read
+	 *   from the cache, since they may already have been evicted.
+	 */
+	public Object getValues( Object keyListObj) throws HiveException {
+		if( keyListObj == null) {
+			return null;
+		}
+		int numKeys = keyListInspector.getListLength( keyListObj);
+		String[] keys = new String[ numKeys];
+		Map<String,Object> found = new HashMap<String,Object>();
+		Set<String> missSet = new LinkedHashSet<String>();
+		for(int i=0; i<numKeys; ++i) {
+			keys[i] = strInspector.getPrimitiveJavaObject( keyListInspector.getListElement( keyListObj, i));
+			if( keys[i] != null && !found.containsKey( keys[i])) {
+				Object value = cache.getIfPresent( keys[i]);
+				if( value != null) {
+					found.put( keys[i], value);
+				} else {
+					missSet.add( keys[i]);
+				}
+			}
+		}
+		List<String> misses = new ArrayList<String>( missSet);
+		/// Null and repeated keys aren't lookups, so aren't counted as hits
+		numCalls += found.size() + misses.size();
+		if( misses.size() > 0) {
+			numMisses += misses.size();
+			long start = System.nanoTime();
+			try {
+				multiGet( misses, found);
+			} catch (Exception exc) {
+				LOG.error("Error while fetching " + misses.size() + " keys from HBase ", exc);
+				throw new HiveException( exc);
+			} finally {
+				loadNanos += System.nanoTime() - start;
+			}
+		}
+
+		List<Object> values = new ArrayList<Object>( numKeys);
+		for(int i=0; i<numKeys; ++i) {
+			Object value = ( keys[i] == null) ? null : found.get( keys[i]);
+			values.add( value == MISSING ? null : value);
+		}
+		maybePublishStats();
+		return values;
+	}
+
+	/**
+	 *  Fetch keys in batches of multiGetBatchSize, and cache the parsed values,
+	 *   adding them to found as well.
+	 *  With a pool, all batches are sent at once, and each is parsed
+	 *   as it comes back while the others are still in flight.
+	 */
+	private void multiGet( List<String> keys, Map<String,Object> found) throws Exception {
+		List<List<String>> batches = new ArrayList<List<String>>();
+		for(int start = 0; start < keys.size(); start += multiGetBatchSize) {
+			batches.add( keys.subList( start, Math.min( start + multiGetBatchSize, keys.size())));
+		}
+		if( multiGetPool == null) {
+			for( List<String> batch : batches) {
+				cacheResults( batch, fetchBatch( batch), found);
+			}
+		} else {
+			List<Future<Result[]>> fetches = new ArrayList<Future<Result[]>>( batches.size());
+			for( final List<String> batch : batches) {
+				fetches.add( multiGetPool.submit( new Callable<Result[]>() {
+					@Override
+					public Result[] call() throws Exception {
+						return fetchBatch( batch);
+					}
+				}));
+			}
+			for(int i=0; i<batches.size(); ++i) {
+				cacheResults( batches.get(i), fetches.get(i).get(), found);
+			}
+		}
+	}
+
+	/**
+	 *  One multi-get; called from the pool threads, which each
+	 *   get their own table handle from HTableFactory.
+	 *  Tests override this to avoid needing an HBase cluster.
+	 */
+	protected Result[] fetchBatch( List<String> batch) throws Exception {
+		List<Get> gets = new ArrayList<Get>( batch.size());
+		for( String key : batch) {
+			gets.add( new Get( key.getBytes()));
+		}
+		HTable htable = HTableFactory.getHTable( configMap);
+		return htable.get( gets);
+	}
+
+	/**
+	 *  A value which can't be parsed is returned as null, and isn't cached,
+	 *   as for a single key, rather than failing the whole array.
+	 */
+	private void cacheResults( List<String> batch, Result[] results, Map<String,Object> found) {
+		for(int i=0; i<batch.size(); ++i) {
+			KeyValue kv = ( results[i] == null) ? null : getColumn( results[i]);
+			if( kv != null && kv.getValue() != null) {
+				Object value = null;
+				try {
+					value = parseValue( new String( kv.getValue()));
+				} catch (Exception exc) {
+					if( (++numErrors % 1000) == 0 ) {
+					    LOG.error("Error while parsing string " , exc);
+						LOG.info( "Num Errors = " + numErrors + "; Missed " + numMisses + " features key = " + batch.get(i) + " Num hits = " + (numCalls - numMisses));
+					}
+				}
+				if( value != null) {
+					cache.put( batch.get(i), value);
+					found.put( batch.get(i), value);
+				}
+			} else {
+				++numMissingRows;
+				if( negativeCache) {
+					cache.put( batch.get(i), MISSING);
+				}
+			}
+			++numLoaded;
+		}
+	}
 	
 	private int numLoaded = 0;
     private int numCalls = 0;
 	private int numMisses = 0;
 	private int numErrors = 0;
+	private int numMissingRows = 0;
+	private long loadNanos = 0;
+	private int nextStatsCall = STATS_INTERVAL;
+	/// What has already been published to the Reporter
+	private long[] published = new long[ CachedGetUDFCounter.values().length];
 	
 	public Object getValue(final String key) {
 		try {
@@ -128,10 +329,8 @@ public class CachedGetUDF extends GenericUDF {
                     return valueLoader.load(key);
                 }
             });
-			if( ((numCalls - numMisses) % 1000) == 0 ) {
-				LOG.info( "Retrieved " + (numCalls - numMisses) + " features  key = " + key + " Num misses =" + numMisses);
-			}
-			return l;
+			maybePublishStats();
+			return ( l == MISSING) ? null : l;
 		} catch (UncheckedExecutionException e) {
 			if( (++numErrors % 1000) == 0 ) {
 			    LOG.error("Error while parsing string " , e);
@@ -147,6 +346,120 @@ public class CachedGetUDF extends GenericUDF {
 		}
 	}
 
+	int getNumCalls() {
+		return numCalls;
+	}
+
+	int getNumMisses() {
+		return numMisses;
+	}
+
+	private void maybePublishStats() {
+		if( numCalls >= nextStatsCall) {
+			publishStats();
+			nextStatsCall = numCalls + STATS_INTERVAL;
+		}
+	}
+
+	/**
+	 *  Publish the counts since the last call as Hadoop counters
+	 */
+	private void publishStats() {
+		long[] current = new long[ published.length];
+		current[ CachedGetUDFCounter.CACHE_HITS.ordinal()] = numCalls - numMisses;
+		current[ CachedGetUDFCounter.CACHE_MISSES.ordinal()] = numMisses;
+		current[ CachedGetUDFCounter.MISSING_ROWS.ordinal()] = numMissingRows;
+		current[ CachedGetUDFCounter.LOAD_MILLIS.ordinal()] = loadNanos / 1000000L;
+		current[ CachedGetUDFCounter.EVICTIONS.ordinal()] = cache.stats().evictionCount();
+		current[ CachedGetUDFCounter.ERRORS.ordinal()] = numErrors;
+		LOG.info( "hbase_cached_get calls = " + numCalls + " ; hits = " + current[0] + " ; misses = " + numMisses
+				+ " ; missing rows = " + numMissingRows + " ; load ms = " + current[ CachedGetUDFCounter.LOAD_MILLIS.ordinal()]
+				+ " ; evictions = " + current[ CachedGetUDFCounter.EVICTIONS.ordinal()] + " ; errors = " + numErrors
+				+ " ; cached = " + cache.size());
+		Reporter rep = getReporter();
+		if( rep != null) {
+			for( CachedGetUDFCounter counter : CachedGetUDFCounter.values()) {
+				long delta = current[ counter.ordinal()] - published[ counter.ordinal()];
+				if( delta > 0) {
+					rep.incrCounter( counter, delta);
+				}
+			}
+		}
+		published = current;
+	}
+
+	/**
+	 *  The task's Reporter, or null if not running in a task
+	 */
+	private Reporter getReporter() {
+		try {
+			if (reporter == null) {
+				Class clazz = Class.forName("org.apache.hadoop.hive.ql.exec.MapredContext");
+				Method staticGetMethod = clazz.getMethod("get");
+				Object mapredObj = staticGetMethod.invoke(null);
+				if( mapredObj != null) {
+					Method getReporter = mapredObj.getClass().getMethod("getReporter");
+					reporter = (Reporter) getReporter.invoke(mapredObj);
+				}
+			}
+			return reporter;
+		} catch (Exception e) {
+			LOG.warn("Unable to access Hadoop counters", e);
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( multiGetPool != null) {
+			multiGetPool.shutdown();
+			multiGetPool = null;
+		}
+		if( cache != null) {
+			publishStats();
+		}
+	}
+
+	/**
+	 *  Rough estimate of the heap retained by a parsed value,
+	 *   for weighing cache entries.
+	 */
+	static int EstimateSize( Object obj) {
+		if( obj == null || obj == MISSING) {
+			return 0;
+		}
+		if( obj instanceof String) {
+			return 40 + 2*((String) obj).length();
+		}
+		if( obj instanceof byte[]) {
+			return 16 + ((byte[]) obj).length;
+		}
+		if( obj instanceof List) {
+			int size = 40;
+			for( Object elem : (List) obj) {
+				size += 8 + EstimateSize( elem);
+			}
+			return size;
+		}
+		if( obj instanceof Map) {
+			int size = 48;
+			for( Object entryObj : ((Map) obj).entrySet()) {
+				Map.Entry entry = (Map.Entry) entryObj;
+				size += 32 + EstimateSize( entry.getKey()) + EstimateSize( entry.getValue());
+			}
+			return size;
+		}
+		/// Boxed primitives and timestamps
+		return 24;
+	}
+
+	private ObjectInspector getReturnType( ObjectInspector valueInspector) {
+		if( keyListInspector != null) {
+			return ObjectInspectorFactory.getStandardListObjectInspector( valueInspector);
+		}
+		return valueInspector;
+	}
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		return "hbase_cache_array(" + arg0[0] + " , " + arg0[1] + ")";
@@ -162,16 +475,53 @@ public class CachedGetUDF extends GenericUDF {
 			throws UDFArgumentException {
 		
 		this.configMap = HTableFactory.getConfigFromConstMapInspector(parameters[0]);
-		this.strInspector = (StringObjectInspector) parameters[1];
+		if( parameters[1].getCategory() == Category.LIST) {
+			this.keyListInspector = (ListObjectInspector) parameters[1];
+			this.strInspector = (StringObjectInspector) keyListInspector.getListElementObjectInspector();
+		} else {
+			this.strInspector = (StringObjectInspector) parameters[1];
+		}
+		if(configMap.containsKey( MULTIGET_BATCH_SIZE_TAG)) {
+			multiGetBatchSize = Integer.parseInt( configMap.get( MULTIGET_BATCH_SIZE_TAG));
+		}
+		if(configMap.containsKey( MULTIGET_THREADS_TAG)) {
+			int numThreads = Integer.parseInt( configMap.get( MULTIGET_THREADS_TAG));
+			if( numThreads > 0) {
+				multiGetPool = Executors.newFixedThreadPool( numThreads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread( r, "brickhouse-hbase-multiget");
+						thread.setDaemon( true);
+						return thread;
+					}
+				});
+			}
+		}
 		
-		//// If each JSON is about 2K, this would be about 100 megs ...
-		////  Alter the setting if you run into OutOfMemory errors...
-		int size = 500000;
+		/// Needed for the EVICTIONS counter
+		CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder().recordStats();
 		if(configMap.containsKey( MAX_SIZE_KEY)) {
-			size = Integer.parseInt( configMap.get(MAX_SIZE_KEY));
+			builder.maximumSize( Integer.parseInt( configMap.get(MAX_SIZE_KEY)));
+		} else {
+			long maxBytes = Runtime.getRuntime().maxMemory() / 4;
+			if(configMap.containsKey( MAX_BYTES_KEY)) {
+				maxBytes = Long.parseLong( configMap.get( MAX_BYTES_KEY));
+			}
+			builder.maximumWeight( maxBytes).weigher( new Weigher<String,Object>() {
+				@Override
+				public int weigh(String key, Object value) {
+					return EstimateSize( key) + EstimateSize( value);
+				}
+			});
+		}
+		if(configMap.containsKey( TTL_SECONDS_KEY)) {
+			builder.expireAfterWrite( Long.parseLong( configMap.get( TTL_SECONDS_KEY)), TimeUnit.SECONDS);
+		}
+		if(configMap.containsKey( NEGATIVE_CACHE_KEY)) {
+			negativeCache = Boolean.valueOf( configMap.get( NEGATIVE_CACHE_KEY));
 		}
 		
-		this.cache = CacheBuilder.newBuilder().maximumSize(size).build(valueLoader);
+		this.cache = builder.build(valueLoader);
 		
 		/**
 		 *  If a third parameter is passed in, then 
@@ -179,12 +529,15 @@ public class CachedGetUDF extends GenericUDF {
 		if( parameters.length > 2) {
 			jsonInspectorHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle( parameters[2]);
 			
-			return jsonInspectorHandle.getReturnType();
+			return getReturnType( jsonInspectorHandle.getReturnType());
 			
 		} else {
-			return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+			return getReturnType( PrimitiveObjectInspectorFactory.javaStringObjectInspector);
 		}
 	}
-	
+
+	private static enum CachedGetUDFCounter {
+		CACHE_HITS, CACHE_MISSES, MISSING_ROWS, LOAD_MILLIS, EVICTIONS, ERRORS;
+	}
 
 }
@@ -0,0 +1,311 @@
+package brickhouse.hbase;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ *  Writes Puts into sorted HFiles, rather than through the RegionServers,
+ *   so that large backfills skip the WAL, memstore and flushes.
+ *
+ *  Cells are partitioned by the table's region boundaries, and held in memory
+ *   until bulk_load_buffer_mb is reached or the writer is flushed. Each
+ *   partition is then sorted and written as one HFile per family, under
+ *   <pre>
+ *     bulk_load_dir/family/brickhouse-uuid-partition-spill
+ *   </pre>
+ *   which is the layout LoadIncrementalHFiles expects.
+ *
+ *  Region boundaries come from the table, unless bulk_load_split_keys
+ *   lists them explicitly ( comma separated), in which case HBase is
+ *   not contacted at all. With a file:// directory, files can then be
+ *   written without a live cluster.
+ *
+ *  Each family's files use the compression, data block encoding and
+ *   block size of the table's column family, so that they match the files
+ *   the RegionServers write. When the table isn't contacted, these are
+ *   uncompressed, unencoded 64KB blocks. Either way, they can be set with
+ *   bulk_load_compression ( ie. "snappy" or "gz"), bulk_load_encoding
+ *   ( ie. "FAST_DIFF") and bulk_load_block_size, in bytes.
+ *
+ *  Every task writes its own file for each region its rows fall in, so the
+ *   input should be distributed by region ( ie. "distribute by" a key range
+ *   matching the splits); otherwise the files per region grow with the
+ *   number of tasks. hbase_bulk_load allows up to 2048 files per region and
+ *   family, which can be changed with
+ *   hbase.mapreduce.bulkload.max.hfiles.perRegion.perFamily in the config map.
+ *
+ *  Enabled by adding "bulk_load_dir" to the config map, ie.
+ *   map( "table_name", "mytable", ... , "bulk_load_dir", "hdfs:///tmp/mytable_load")
+ *  The files are loaded afterwards with hbase_bulk_load.
+ */
+public class HFileBulkWriter {
+    private static final Logger LOG = Logger.getLogger(HFileBulkWriter.class);
+
+    public static final String BULK_LOAD_DIR_TAG = "bulk_load_dir";
+    public static final String BULK_LOAD_SPLIT_KEYS_TAG = "bulk_load_split_keys";
+    public static final String BULK_LOAD_BUFFER_MB_TAG = "bulk_load_buffer_mb";
+    public static final String BULK_LOAD_COMPRESSION_TAG = "bulk_load_compression";
+    public static final String BULK_LOAD_ENCODING_TAG = "bulk_load_encoding";
+    public static final String BULK_LOAD_BLOCK_SIZE_TAG = "bulk_load_block_size";
+    public static final int DEFAULT_BUFFER_MB = 128;
+    /// LoadIncrementalHFiles only allows 32 files per region and family by default
+    public static final int DEFAULT_MAX_HFILES_PER_REGION = 2048;
+
+    private final Configuration config;
+    private final FileSystem fs;
+    private final Path outputDir;
+    private final byte[][] startKeys;
+    private final List<KeyValue>[] partitions;
+    private final long maxBufferBytes;
+    private final String fileId = UUID.randomUUID().toString().replace("-", "");
+    private final byte[] bulkLoadTime;
+    /// The table's families, or null if the split keys were given
+    private final HTableDescriptor tableDescriptor;
+    /// Settings from the config map, or null to use the family's own
+    private final Compression.Algorithm compression;
+    private final DataBlockEncoding encoding;
+    private final Integer blockSize;
+    private final Map<byte[], HFileContext> fileContexts = new TreeMap<byte[], HFileContext>(Bytes.BYTES_COMPARATOR);
+
+    private long bufferBytes = 0;
+    private int numSpills = 0;
+    private long numCells = 0;
+    private int numFiles = 0;
+
+
+    /**
+     *  Return true if the config map asks for HFiles rather than Puts
+     */
+    public static boolean isBulkLoad(Map<String, String> configMap) {
+        return configMap.containsKey(BULK_LOAD_DIR_TAG);
+    }
+
+    @SuppressWarnings("unchecked")
+    public HFileBulkWriter(Map<String, String> configMap) throws IOException {
+        this.config = HTableFactory.createConfiguration(configMap);
+        this.outputDir = new Path(configMap.get(BULK_LOAD_DIR_TAG));
+        this.fs = outputDir.getFileSystem(config);
+        this.startKeys = getStartKeys(configMap);
+        this.partitions = new List[Math.max(startKeys.length, 1)];
+        for (int i = 0; i < partitions.length; ++i) {
+            partitions[i] = new ArrayList<KeyValue>();
+        }
+        int bufferMb = configMap.containsKey(BULK_LOAD_BUFFER_MB_TAG)
+                ? Integer.parseInt(configMap.get(BULK_LOAD_BUFFER_MB_TAG)) : DEFAULT_BUFFER_MB;
+        this.maxBufferBytes = bufferMb * 1024L * 1024L;
+        this.bulkLoadTime = Bytes.toBytes(System.currentTimeMillis());
+        this.tableDescriptor = configMap.containsKey(BULK_LOAD_SPLIT_KEYS_TAG)
+                ? null : HTableFactory.getHTable(configMap).getTableDescriptor();
+        this.compression = configMap.containsKey(BULK_LOAD_COMPRESSION_TAG)
+                ? Compression.getCompressionAlgorithmByName(configMap.get(BULK_LOAD_COMPRESSION_TAG).toLowerCase()) : null;
+        this.encoding = configMap.containsKey(BULK_LOAD_ENCODING_TAG)
+                ? DataBlockEncoding.valueOf(configMap.get(BULK_LOAD_ENCODING_TAG).toUpperCase()) : null;
+        this.blockSize = configMap.containsKey(BULK_LOAD_BLOCK_SIZE_TAG)
+                ? Integer.valueOf(configMap.get(BULK_LOAD_BLOCK_SIZE_TAG)) : null;
+        LOG.info(" Writing HFiles for " + configMap.get(HTableFactory.TABLE_NAME_TAG) + " to " + outputDir
+                + " in " + partitions.length + " region partitions");
+    }
+
+    /**
+     *  Sorted region start keys, either from the config map or from the table.
+     */
+    static byte[][] getStartKeys(Map<String, String> configMap) throws IOException {
+        if (configMap.containsKey(BULK_LOAD_SPLIT_KEYS_TAG)) {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            /// The first region always starts at the empty key
+            keys.add(new byte[0]);
+            for (String split : configMap.get(BULK_LOAD_SPLIT_KEYS_TAG).split(",")) {
+                if (split.length() > 0) {
+                    keys.add(split.getBytes());
+                }
+            }
+            Collections.sort(keys, Bytes.BYTES_COMPARATOR);
+            return keys.toArray(new byte[keys.size()][]);
+        }
+        HTable table = HTableFactory.getHTable(configMap);
+        return table.getStartKeys();
+    }
+
+    /**
+     *  Compression, data block encoding and block size for a family's HFiles;
+     *   from the config map if given there, otherwise from the table's column family.
+     */
+    HFileContext getFileContext(byte[] family) {
+        HFileContext context = fileContexts.get(family);
+        if (context == null) {
+            HColumnDescriptor columnDesc = (tableDescriptor != null) ? tableDescriptor.getFamily(family) : null;
+            Compression.Algorithm familyCompression = Compression.Algorithm.NONE;
+            DataBlockEncoding familyEncoding = DataBlockEncoding.NONE;
+            int familyBlockSize = HColumnDescriptor.DEFAULT_BLOCKSIZE;
+            if (columnDesc != null) {
+                familyCompression = columnDesc.getCompression();
+                familyEncoding = columnDesc.getDataBlockEncoding();
+                familyBlockSize = columnDesc.getBlocksize();
+            }
+            context = new HFileContextBuilder()
+                    .withCompression(compression != null ? compression : familyCompression)
+                    .withDataBlockEncoding(encoding != null ? encoding : familyEncoding)
+                    .withBlockSize(blockSize != null ? blockSize : familyBlockSize)
+                    .build();
+            LOG.info(" HFiles for family " + Bytes.toString(family) + " use compression = " + context.getCompression()
+                    + " ; encoding = " + context.getDataBlockEncoding() + " ; block size = " + context.getBlocksize());
+            fileContexts.put(family, context);
+        }
+        return context;
+    }
+
+    /**
+     *  Index of the region a row belongs to
+     */
+    int getPartition(byte[] row) {
+        return RegionBatcher.findRegion(startKeys, row);
+    }
+
+    /**
+     *  Add the cells of some Puts, spilling to HFiles if the buffer is full.
+     *  Cells without an explicit timestamp get the time the writer was created.
+     */
+    public void add(List<Put> puts) throws IOException {
+        for (Put put : puts) {
+            int partition = getPartition(put.getRow());
+            for (List<Cell> cells : put.getFamilyCellMap().values()) {
+                for (Cell cell : cells) {
+                    KeyValue kv = KeyValueUtil.ensureKeyValue(cell);
+                    kv.updateLatestStamp(bulkLoadTime);
+                    partitions[partition].add(kv);
+                    bufferBytes += kv.getLength();
+                    ++numCells;
+                }
+            }
+        }
+        if (bufferBytes >= maxBufferBytes) {
+            spill();
+        }
+    }
+
+    /**
+     *  Write everything held to HFiles.
+     */
+    public void flush() throws IOException {
+        spill();
+        LOG.info(getStats());
+    }
+
+    private void spill() throws IOException {
+        if (bufferBytes == 0) {
+            return;
+        }
+        for (int i = 0; i < partitions.length; ++i) {
+            List<KeyValue> partition = partitions[i];
+            if (partition.isEmpty()) {
+                continue;
+            }
+            Collections.sort(partition, KeyValue.COMPARATOR);
+            writePartition(i, partition);
+            partition.clear();
+        }
+        bufferBytes = 0;
+        ++numSpills;
+    }
+
+    /**
+     *  Write one sorted partition, as one HFile for each family in it.
+     */
+    private void writePartition(int partitionIdx, List<KeyValue> sortedKvs) throws IOException {
+        TreeMap<byte[], List<KeyValue>> byFamily = new TreeMap<byte[], List<KeyValue>>(Bytes.BYTES_COMPARATOR);
+        for (KeyValue kv : sortedKvs) {
+            byte[] family = kv.getFamily();
+            List<KeyValue> familyKvs = byFamily.get(family);
+            if (familyKvs == null) {
+                familyKvs = new ArrayList<KeyValue>();
+                byFamily.put(family, familyKvs);
+            }
+            familyKvs.add(kv);
+        }
+
+        CacheConfig cacheConfig = new CacheConfig(config);
+        for (Map.Entry<byte[], List<KeyValue>> entry : byFamily.entrySet()) {
+            Path familyDir = new Path(outputDir, Bytes.toString(entry.getKey()));
+            Path hfilePath = new Path(familyDir, "brickhouse-" + fileId + "-" + partitionIdx + "-" + numSpills);
+            HFile.Writer writer = HFile.getWriterFactory(config, cacheConfig)
+                    .withPath(fs, hfilePath)
+                    .withComparator(KeyValue.COMPARATOR)
+                    .withFileContext(getFileContext(entry.getKey()))
+                    .create();
+            try {
+                for (KeyValue kv : entry.getValue()) {
+                    writer.append(kv);
+                }
+                writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, bulkLoadTime);
+                writer.appendFileInfo(StoreFile.BULKLOAD_TASK_KEY, Bytes.toBytes(fileId));
+                writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+            } finally {
+                writer.close();
+            }
+            ++numFiles;
+        }
+    }
+
+    public String getStats() {
+        return "HFile bulk writer: cells = " + numCells + " ; files = " + numFiles + " ; spills = " + numSpills;
+    }
+
+
+    /**
+     *  Load the HFiles under a directory into a table,
+     *   splitting any which now cross region boundaries.
+     */
+    public static void bulkLoad(Map<String, String> configMap) throws Exception {
+        Configuration config = HTableFactory.createConfiguration(configMap);
+        if (!configMap.containsKey(LoadIncrementalHFiles.MAX_FILES_PER_REGION_PER_FAMILY)) {
+            config.setInt(LoadIncrementalHFiles.MAX_FILES_PER_REGION_PER_FAMILY, DEFAULT_MAX_HFILES_PER_REGION);
+        }
+        Path dir = new Path(configMap.get(BULK_LOAD_DIR_TAG));
+        HTable table = HTableFactory.getHTable(configMap);
+        LOG.info(" Bulk loading " + dir + " into " + table.getName());
+        new LoadIncrementalHFiles(config).doBulkLoad(dir, table);
+    }
+
+}
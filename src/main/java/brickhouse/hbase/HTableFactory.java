@@ -5,9 +5,19 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
@@ -41,37 +51,175 @@ public class HTableFactory {
 	  static  String ZOOKEEPER_QUORUM_TAG = "hbase.zookeeper.quorum";
 	  static  String AUTOFLUSH_TAG = "hbase.client.autoflush";
       static  String OVERWRITE_CELL_TAG = "brickhouse.overwrite.cell";
+	  static  String BRICKHOUSE_PREFIX = "brickhouse.";
 
-	  private static Map<String, HTable> htableMap = new HashMap<String,HTable>();
-	  private static Configuration hbConfig;
-	  
+	  /// One shared connection per cluster and client settings
+	  private static ConcurrentMap<String, ClusterConnection> connectionMap = new ConcurrentHashMap<String, ClusterConnection>();
+	  /// HTables are not thread-safe, so each thread gets its own handles
+	  private static ThreadLocal<Map<String, HTable>> threadTables = new ThreadLocal<Map<String, HTable>>() {
+		  @Override
+		  protected Map<String, HTable> initialValue() {
+			  return new HashMap<String, HTable>();
+		  }
+	  };
+
+	  private static final AtomicLong connectionsCreated = new AtomicLong();
+	  private static final AtomicLong connectionsReused = new AtomicLong();
+	  private static final AtomicLong tablesCreated = new AtomicLong();
+	  private static final AtomicLong tablesReused = new AtomicLong();
+
+
+	  /**
+	   *  A shared HConnection, along with the thread pool
+	   *   which its table handles use for batch operations.
+	   */
+	  private static class ClusterConnection {
+		  private final HConnection connection;
+		  private final ExecutorService pool;
+
+		  ClusterConnection( Configuration config) throws IOException {
+			  this.connection = HConnectionManager.createConnection( config);
+			  this.pool = Executors.newCachedThreadPool( new ThreadFactory() {
+				  private final AtomicLong numThreads = new AtomicLong();
+
+				  @Override
+				  public Thread newThread(Runnable r) {
+					  Thread thread = new Thread( r, "brickhouse-htable-" + numThreads.incrementAndGet());
+					  thread.setDaemon( true);
+					  return thread;
+				  }
+			  });
+		  }
+
+		  HTable newTable( String tableName) throws IOException {
+			  return new HTable( TableName.valueOf( tableName), connection, pool);
+		  }
+	  }
 
+
+	  /**
+	   *  Return a table handle for the calling thread.
+	   *
+	   *  Handles for the same quorum and client settings share
+	   *   a single HConnection, so only the first handle for a cluster
+	   *   pays for the ZooKeeper and region lookups.
+	   *  The same thread asking for the same table and settings gets
+	   *   the same handle back, so buffered writes are kept.
+	   */
 	  public static HTable getHTable(Map<String,String> configMap) throws IOException {
 		  String tableName = configMap.get(TABLE_NAME_TAG);
-		  HTable table = htableMap.get(tableName);
+		  String connKey = getConnectionKey( configMap);
+		  String tableKey = tableName + "@" + connKey;
+
+		  Map<String, HTable> tables = threadTables.get();
+		  HTable table = tables.get( tableKey);
 		  if(table == null) {
-			  if(hbConfig == null) {
-				  Configuration config = new Configuration(true);
-				  config.set("hbase.zookeeper.quorum", configMap.get( ZOOKEEPER_QUORUM_TAG));
-				  for( Entry<String,String> entry : configMap.entrySet()) {
-					  config.set( entry.getKey(), entry.getValue());
-				  }
-				  hbConfig = HBaseConfiguration.create(config);
-			  }
+			  ClusterConnection conn = getClusterConnection( connKey, configMap);
+			  table = conn.newTable( tableName);
 
-			  table = new HTable(hbConfig, tableName);
-			  
 			  if(configMap.containsKey(AUTOFLUSH_TAG)) {
 				  Boolean flushFlag = Boolean.valueOf( configMap.get(AUTOFLUSH_TAG));
 				  table.setAutoFlush(flushFlag);
 			  }
-			 
-			  htableMap.put(tableName, table);
+
+			  tables.put( tableKey, table);
+			  tablesCreated.incrementAndGet();
+			  LOG.info(" Created HTable " + tableName + " on " + configMap.get( ZOOKEEPER_QUORUM_TAG) + " ; " + getConnectionStats());
+		  } else {
+			  tablesReused.incrementAndGet();
 		  }
 
 		  return table;
 	  }
-	  
+
+	  /**
+	   *  Return the shared connection for a config map's cluster and settings.
+	   */
+	  public static HConnection getConnection(Map<String,String> configMap) throws IOException {
+		  return getClusterConnection( getConnectionKey( configMap), configMap).connection;
+	  }
+
+	  private static ClusterConnection getClusterConnection( String connKey, Map<String,String> configMap) throws IOException {
+		  ClusterConnection conn = connectionMap.get( connKey);
+		  if(conn != null) {
+			  connectionsReused.incrementAndGet();
+			  return conn;
+		  }
+		  synchronized( connectionMap) {
+			  conn = connectionMap.get( connKey);
+			  if(conn == null) {
+				  conn = new ClusterConnection( createConfiguration( configMap));
+				  connectionMap.put( connKey, conn);
+				  connectionsCreated.incrementAndGet();
+				  LOG.info(" Created HConnection for " + connKey);
+			  } else {
+				  connectionsReused.incrementAndGet();
+			  }
+			  return conn;
+		  }
+	  }
+
+	  /**
+	   *  Build an HBase configuration from a config map.
+	   */
+	  public static Configuration createConfiguration(Map<String,String> configMap) {
+		  Configuration config = new Configuration(true);
+		  config.set("hbase.zookeeper.quorum", configMap.get( ZOOKEEPER_QUORUM_TAG));
+		  for( Entry<String,String> entry : configMap.entrySet()) {
+			  config.set( entry.getKey(), entry.getValue());
+		  }
+		  return HBaseConfiguration.create(config);
+	  }
+
+	  /**
+	   *  The quorum plus any client settings which change the connection.
+	   *   Settings look like Hadoop properties ( ie. contain a '.'); table level
+	   *   options like family, batch_size or brickhouse.* are left out,
+	   *   so that they don't force a separate connection.
+	   */
+	  static String getConnectionKey(Map<String,String> configMap) {
+		  StringBuilder sb = new StringBuilder( String.valueOf( configMap.get( ZOOKEEPER_QUORUM_TAG)));
+		  TreeMap<String,String> settings = new TreeMap<String,String>();
+		  for( Entry<String,String> entry : configMap.entrySet()) {
+			  String key = entry.getKey();
+			  if( key.indexOf('.') >= 0
+					  && !key.equals( ZOOKEEPER_QUORUM_TAG)
+					  && !key.equals( AUTOFLUSH_TAG)
+					  && !key.startsWith( BRICKHOUSE_PREFIX)) {
+				  settings.put( key, entry.getValue());
+			  }
+		  }
+		  for( Entry<String,String> setting : settings.entrySet()) {
+			  sb.append( ';');
+			  sb.append( setting.getKey());
+			  sb.append( '=');
+			  sb.append( setting.getValue());
+		  }
+		  return sb.toString();
+	  }
+
+	  public static long getConnectionsCreated() {
+		  return connectionsCreated.get();
+	  }
+
+	  public static long getConnectionsReused() {
+		  return connectionsReused.get();
+	  }
+
+	  public static long getTablesCreated() {
+		  return tablesCreated.get();
+	  }
+
+	  public static long getTablesReused() {
+		  return tablesReused.get();
+	  }
+
+	  public static String getConnectionStats() {
+		  return "HBase connections = " + connectionMap.size()
+				  + " ; connections created = " + connectionsCreated.get() + " reused = " + connectionsReused.get()
+				  + " ; tables created = " + tablesCreated.get() + " reused = " + tablesReused.get();
+	  }
+
 	  public static Map<String,String> getConfigFromConstMapInspector(ObjectInspector objInspector) throws UDFArgumentException {
 			if( ! ( ObjectInspectorUtils.isConstantObjectInspector(objInspector))
 					|| !(objInspector instanceof StandardConstantMapObjectInspector)) {
@@ -173,6 +173,7 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
         private Map<String, String> configMap;
 
         private HTable table;
+        private BatchTableWriter tableWriter;
 
 
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
@@ -201,7 +202,9 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
 
                 try {
                     LOG.info(" Initializing HTable ");
-                    table = HTableFactory.getHTable(configMap);
+                    if (!HFileBulkWriter.isBulkLoad(configMap)) {
+                        table = HTableFactory.getHTable(configMap);
+                    }
 
                     if (configMap.containsKey(BATCH_SIZE_TAG)) {
                         batchSize = Integer.parseInt(configMap.get(BATCH_SIZE_TAG));
@@ -228,6 +231,9 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
                 listKVOI = (StandardListObjectInspector) parameters[0];
             }
 
+            tableWriter = new BatchTableWriter(configMap, MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS,
+                    MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS);
+
             if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
                 return ObjectInspectorFactory
                         .getStandardListObjectInspector(
@@ -333,6 +339,12 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
 
         protected void batchUpdate(PutBuffer kvBuff, boolean flushCommits) throws HiveException {
             try {
+                if (HFileBulkWriter.isBulkLoad(configMap)) {
+                    tableWriter.bulkWrite(kvBuff.putList, flushCommits, getReporter());
+                    numPutRecords += kvBuff.putList.size();
+                    kvBuff.putList.clear();
+                    return;
+                }
 
                 HTable htable = HTableFactory.getHTable(configMap);
                 // Disable auto flush when specified so in the config map
@@ -343,10 +355,18 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
                 if (writeBufferSizeBytes > 0)
                     htable.setWriteBufferSize(writeBufferSizeBytes);
 
-                htable.put(kvBuff.putList);
-                if (flushCommits)
-                    htable.flushCommits();
-                numPutRecords += kvBuff.putList.size();
+                AsyncTableWriter writer = tableWriter.getAsyncWriter();
+                RegionBatcher batcher = tableWriter.getRegionBatcher(htable, batchSize);
+                int numWritten = kvBuff.putList.size();
+                if (batcher != null) {
+                    /// The batcher counts rows once it writes them, not while it holds them
+                    numWritten = tableWriter.writeRegionBatches(kvBuff.putList, flushCommits, htable, getReporter());
+                } else if (writer == null) {
+                    htable.put(kvBuff.putList);
+                    if (flushCommits)
+                        htable.flushCommits();
+                }
+                numPutRecords += numWritten;
                 if (kvBuff.putList.size() > 0) {
                     LOG.info(" Doing Batch Put " + kvBuff.putList.size() + " records; Total put records = "
                             + numPutRecords + " ; Start = " + (new String(kvBuff.putList.get(0).getRow()))
@@ -354,9 +374,18 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
                 } else {
                     LOG.info(" Doing Batch Put with ZERO 0 records");
                 }
-                getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
-                getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
-                kvBuff.putList.clear();
+                if (writer == null && batcher == null) {
+                    /// Asynchronous and region batched writes are counted once they are written
+                    getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
+                    getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
+                }
+                if (writer != null && batcher == null) {
+                    /// Hand the list over to the writer
+                    writer.submit(kvBuff.putList);
+                    kvBuff.putList = new ArrayList<Put>();
+                } else {
+                    kvBuff.putList.clear();
+                }
             } catch (IOException e) {
                 throw new HiveException(e);
             }
@@ -427,6 +456,7 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
         public Object terminate(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
             batchUpdate(myagg, true);
+            tableWriter.close(getReporter());
             return "Finished Batch updates ; Num Puts = " + numPutRecords;
 
         }
@@ -435,6 +465,7 @@ public class MultiColumnPutUDAF extends AbstractGenericUDAFResolver {
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
+            tableWriter.close(getReporter());
 
             ArrayList<List<String>> ret = new ArrayList<List<String>>();
             ArrayList tname = new ArrayList<String>();
@@ -185,6 +185,7 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
         private String sketchSetColumnFamily;
 
         private HTable table;
+        private BatchTableWriter tableWriter;
 
 
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
@@ -248,6 +249,9 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
                 listKVOI = (StandardListObjectInspector) parameters[0];
             }
 
+            tableWriter = new BatchTableWriter(configMap, MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS,
+                    MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS);
+
             if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
                 return ObjectInspectorFactory
                         .getStandardListObjectInspector(
@@ -371,10 +375,18 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
                 if (writeBufferSizeBytes > 0)
                     htable.setWriteBufferSize(writeBufferSizeBytes);
 
-                htable.put(kvBuff.putList);
-                if (flushCommits)
-                    htable.flushCommits();
-                numPutRecords += kvBuff.putList.size();
+                AsyncTableWriter writer = tableWriter.getAsyncWriter();
+                RegionBatcher batcher = tableWriter.getRegionBatcher(htable, batchSize);
+                int numWritten = kvBuff.putList.size();
+                if (batcher != null) {
+                    /// The batcher counts rows once it writes them, not while it holds them
+                    numWritten = tableWriter.writeRegionBatches(kvBuff.putList, flushCommits, htable, getReporter());
+                } else if (writer == null) {
+                    htable.put(kvBuff.putList);
+                    if (flushCommits)
+                        htable.flushCommits();
+                }
+                numPutRecords += numWritten;
                 if (kvBuff.putList.size() > 0) {
                     LOG.info(" Doing Batch Put " + kvBuff.putList.size() + " records; Total put records = "
                             + numPutRecords + " ; Start = " + (new String(kvBuff.putList.get(0).getRow()))
@@ -382,9 +394,18 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
                 } else {
                     LOG.info(" Doing Batch Put with ZERO 0 records");
                 }
-                getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
-                getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
-                kvBuff.putList.clear();
+                if (writer == null && batcher == null) {
+                    /// Asynchronous and region batched writes are counted once they are written
+                    getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_SUCCESSFUL_PUTS).increment(kvBuff.putList.size());
+                    getReporter().getCounter(MultiColumnPutUDAFCounter.NUMBER_OF_BATCH_OPERATIONS).increment(1);
+                }
+                if (writer != null && batcher == null) {
+                    /// Hand the list over to the writer
+                    writer.submit(kvBuff.putList);
+                    kvBuff.putList = new ArrayList<Put>();
+                } else {
+                    kvBuff.putList.clear();
+                }
             } catch (IOException e) {
                 throw new HiveException(e);
             }
@@ -470,6 +491,7 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
         public Object terminate(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
             batchUpdate(myagg, true);
+            tableWriter.close(getReporter());
             return "Finished Batch updates ; Num Puts = " + numPutRecords;
 
         }
@@ -478,6 +500,7 @@ public class MultiColumnWithSketchsetPutUDAF extends AbstractGenericUDAFResolver
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             PutBuffer myagg = (PutBuffer) agg;
+            tableWriter.close(getReporter());
 
             ArrayList<List<String>> ret = new ArrayList<List<String>>();
             ArrayList tname = new ArrayList<String>();
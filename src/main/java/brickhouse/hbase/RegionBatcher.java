@@ -0,0 +1,217 @@
+package brickhouse.hbase;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ *  Groups buffered mutations by the RegionServer which hosts their row,
+ *   so that each flush goes to a single server, rather than
+ *   every batch fanning out to every region.
+ *
+ *  Rows are held per server until that server's sub-batch fills;
+ *   each sub-batch is sorted by row key before it is written.
+ *  Region boundaries are read once, when the batcher is created.
+ *   If regions move or split afterwards, HBase still routes each
+ *   row correctly; the grouping is just less exact.
+ *
+ *  Enabled by adding "region_batching" to the config map, ie.
+ *   map( "table_name", "mytable", ... , "region_batching", "true", "region_batch_size", "2000")
+ */
+public class RegionBatcher {
+    private static final Logger LOG = Logger.getLogger(RegionBatcher.class);
+
+    public static final String REGION_BATCHING_TAG = "region_batching";
+    public static final String REGION_BATCH_SIZE_TAG = "region_batch_size";
+
+    /// Sorted region start keys, and the server index of each region
+    private final byte[][] startKeys;
+    private final int[] regionServers;
+    private final List<Row>[] serverBatches;
+    private final int subBatchSize;
+
+    /// Rows and sub-batches written out, or handed to the async writer
+    private long numRows = 0;
+    private long numBatches = 0;
+
+
+    /**
+     *  Return true if the config map asks for region-aware batching
+     */
+    public static boolean isRegionBatching(Map<String, String> configMap) {
+        return configMap.containsKey(REGION_BATCHING_TAG)
+                && Boolean.valueOf(configMap.get(REGION_BATCHING_TAG));
+    }
+
+    /**
+     *  Create a batcher from the table's current region locations.
+     *
+     * @param batchSize  sub-batch size, unless region_batch_size is given
+     */
+    public static RegionBatcher forTable(HTable table, Map<String, String> configMap, int batchSize) throws IOException {
+        int subBatchSize = configMap.containsKey(REGION_BATCH_SIZE_TAG)
+                ? Integer.parseInt(configMap.get(REGION_BATCH_SIZE_TAG)) : batchSize;
+
+        NavigableMap<HRegionInfo, ServerName> locations = table.getRegionLocations();
+        byte[][] startKeys = new byte[locations.size()][];
+        int[] regionServers = new int[locations.size()];
+        Map<ServerName, Integer> serverIndex = new HashMap<ServerName, Integer>();
+        int i = 0;
+        for (Map.Entry<HRegionInfo, ServerName> entry : locations.entrySet()) {
+            startKeys[i] = entry.getKey().getStartKey();
+            Integer idx = serverIndex.get(entry.getValue());
+            if (idx == null) {
+                idx = serverIndex.size();
+                serverIndex.put(entry.getValue(), idx);
+            }
+            regionServers[i++] = idx;
+        }
+        LOG.info(" Batching " + table.getName() + " by region; " + startKeys.length + " regions on "
+                + serverIndex.size() + " servers ; sub-batch size = " + subBatchSize);
+        return new RegionBatcher(startKeys, regionServers, serverIndex.size(), subBatchSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    RegionBatcher(byte[][] startKeys, int[] regionServers, int numServers, int subBatchSize) {
+        this.startKeys = startKeys;
+        this.regionServers = regionServers;
+        this.subBatchSize = subBatchSize;
+        this.serverBatches = new List[Math.max(numServers, 1)];
+        for (int i = 0; i < serverBatches.length; ++i) {
+            serverBatches[i] = new ArrayList<Row>();
+        }
+    }
+
+    /**
+     *  Index of the server hosting a row
+     */
+    int getServerIndex(byte[] row) {
+        return startKeys.length == 0 ? 0 : regionServers[findRegion(startKeys, row)];
+    }
+
+    /**
+     *  Index of the last region whose start key is not after the row,
+     *   given the table's sorted region start keys.
+     */
+    static int findRegion(byte[][] startKeys, byte[] row) {
+        int lo = 0;
+        int hi = startKeys.length - 1;
+        int region = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Bytes.compareTo(startKeys[mid], row) <= 0) {
+                region = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return region;
+    }
+
+    /**
+     *  Add rows to their server's sub-batch, and write out
+     *   each sub-batch which fills. If flush is true, everything
+     *   held is written as well.
+     *
+     *  Sub-batches are handed to the async writer if there is one,
+     *   otherwise written directly with HTable.batch.
+     */
+    public void write(List<? extends Row> rows, boolean flush, HTable htable, AsyncTableWriter writer) throws IOException {
+        for (Row row : rows) {
+            int server = getServerIndex(row.getRow());
+            List<Row> serverBatch = serverBatches[server];
+            serverBatch.add(row);
+            if (serverBatch.size() >= subBatchSize) {
+                writeBatch(server, htable, writer);
+            }
+        }
+        if (flush) {
+            for (int i = 0; i < serverBatches.length; ++i) {
+                if (!serverBatches[i].isEmpty()) {
+                    writeBatch(i, htable, writer);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Number of rows held, waiting for their sub-batch to fill
+     */
+    public int getNumHeld() {
+        int numHeld = 0;
+        for (List<Row> serverBatch : serverBatches) {
+            numHeld += serverBatch.size();
+        }
+        return numHeld;
+    }
+
+    /**
+     *  Rows written out, or handed to the async writer.
+     *   Rows still held are not counted until their sub-batch is written.
+     */
+    public long getNumRows() {
+        return numRows;
+    }
+
+    public long getNumBatches() {
+        return numBatches;
+    }
+
+    private void writeBatch(int server, HTable htable, AsyncTableWriter writer) throws IOException {
+        List<Row> serverBatch = serverBatches[server];
+        int batchSize = serverBatch.size();
+        Collections.sort(serverBatch);
+        if (writer != null) {
+            writer.submit(serverBatch);
+            serverBatches[server] = new ArrayList<Row>();
+        } else {
+            batch(htable, serverBatch);
+            serverBatch.clear();
+        }
+        numRows += batchSize;
+        ++numBatches;
+    }
+
+    /**
+     *  Write one sub-batch directly, when there is no async writer.
+     *   Tests override this to avoid needing an HBase cluster.
+     */
+    protected void batch(HTable htable, List<Row> serverBatch) throws IOException {
+        try {
+            htable.batch(serverBatch, new Object[serverBatch.size()]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing HBase batch");
+        }
+    }
+
+}
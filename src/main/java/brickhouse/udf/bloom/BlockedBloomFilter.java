@@ -0,0 +1,315 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+
+import brickhouse.analytics.uniques.XxHash64;
+
+/**
+ *  A blocked Bloom filter, which confines all the probes for
+ *   a key to a single 64-byte block, so that a membership test
+ *   costs one cache miss rather than one per hash function.
+ *
+ *  Keys are hashed once with a 64 bit hash; the high half selects
+ *   the block, and the probes within the block are derived from the
+ *   low half by repeated multiplication.
+ *
+ *  Blocking costs a little in false positive rate for the same
+ *   number of bits, so BloomFactory sizes these filters with some slack.
+ *
+ *  The serialized form starts with FORMAT_MAGIC, which can't be the
+ *   start of a Hadoop BloomFilter, so the two can be told apart.
+ */
+public class BlockedBloomFilter extends Filter {
+	/// "BBF" followed by the format version
+	public static final int FORMAT_MAGIC = 0x42424601;
+	public static final int BLOCK_BITS = 512;
+	static final int LONGS_PER_BLOCK = BLOCK_BITS / 64;
+	static final int PROBE_MULTIPLIER = 0x9E3779B9;
+	/// The vector size is an int, so at most this many whole blocks fit
+	public static final int MAX_BLOCKS = Integer.MAX_VALUE / BLOCK_BITS;
+	public static final int MAX_VECTOR_SIZE = MAX_BLOCKS*BLOCK_BITS;
+
+	long[] bits;
+	int numBlocks;
+
+
+	/** Default constructor - use with readFields */
+	public BlockedBloomFilter() {
+		super();
+	}
+
+	/**
+	 * @param vectorSize  Minimum number of bits; rounded up to whole blocks,
+	 *    and at most MAX_VECTOR_SIZE
+	 * @param nbHash  Number of probes per key
+	 */
+	public BlockedBloomFilter( int vectorSize, int nbHash) {
+		long blocks = ( (long) vectorSize + BLOCK_BITS - 1) / BLOCK_BITS;
+		if( blocks > MAX_BLOCKS) {
+			throw new IllegalArgumentException("Blocked bloom filter of " + vectorSize + " bits is larger than the maximum of "
+					+ MAX_VECTOR_SIZE + " bits");
+		}
+		this.numBlocks = (int) Math.max( blocks, 1);
+		this.vectorSize = this.numBlocks*BLOCK_BITS;
+		this.nbHash = nbHash;
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		this.bits = new long[ this.numBlocks*LONGS_PER_BLOCK];
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public int getVectorSize() {
+		return vectorSize;
+	}
+
+	public int getNumHashes() {
+		return nbHash;
+	}
+
+	/**
+	 *  Estimate the number of distinct keys added, from the
+	 *   fraction of bits which are set.
+	 */
+	public double estimateCount() {
+		long setBits = 0;
+		for(int i=0; i<bits.length; ++i) {
+			setBits += Long.bitCount( bits[i]);
+		}
+		return EstimateCount( setBits, vectorSize, nbHash);
+	}
+
+	/**
+	 *  Estimate the number of distinct keys in the union of this
+	 *   filter and another of the same size, without or-ing them.
+	 */
+	public double estimateUnionCount( BlockedBloomFilter other) {
+		long[] otherBits = checkCompatible( other, "or-ed").bits;
+		long setBits = 0;
+		for(int i=0; i<bits.length; ++i) {
+			setBits += Long.bitCount( bits[i] | otherBits[i]);
+		}
+		return EstimateCount( setBits, vectorSize, nbHash);
+	}
+
+	private static double EstimateCount( long setBits, int vectorSize, int nbHash) {
+		if( setBits >= vectorSize) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return -((double) vectorSize/nbHash)*Math.log( 1.0 - (double) setBits/vectorSize);
+	}
+
+	/**
+	 *  Hash of the key bytes, shared by add and membershipTest
+	 */
+	static long HashKey( byte[] bytes, int off, int len) {
+		return XxHash64.hash( bytes, off, len, 0);
+	}
+
+	/**
+	 *  Index of the first long of the block for a hash
+	 */
+	static int BlockOffset( long hash, int numBlocks) {
+		/// Multiply-shift maps the high 32 bits onto [0,numBlocks) without a division
+		return (int)( ((hash >>> 32)*numBlocks) >>> 32)*LONGS_PER_BLOCK;
+	}
+
+	public void addHash( long hash) {
+		int offset = BlockOffset( hash, numBlocks);
+		int h = (int) hash;
+		for(int i=0; i<nbHash; ++i) {
+			int bit = h >>> 23;
+			bits[ offset + (bit >>> 6)] |= 1L << bit;
+			h *= PROBE_MULTIPLIER;
+		}
+	}
+
+	public boolean membershipTestHash( long hash) {
+		int offset = BlockOffset( hash, numBlocks);
+		int h = (int) hash;
+		for(int i=0; i<nbHash; ++i) {
+			int bit = h >>> 23;
+			if( (bits[ offset + (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			h *= PROBE_MULTIPLIER;
+		}
+		return true;
+	}
+
+	public void addBytes( byte[] bytes, int off, int len) {
+		addHash( HashKey( bytes, off, len));
+	}
+
+	public boolean membershipTestBytes( byte[] bytes, int off, int len) {
+		return membershipTestHash( HashKey( bytes, off, len));
+	}
+
+	@Override
+	public void add( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		addBytes( bytes, 0, bytes.length);
+	}
+
+	@Override
+	public boolean membershipTest( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		return membershipTestBytes( bytes, 0, bytes.length);
+	}
+
+	private BlockedBloomFilter checkCompatible( Filter filter, String op) {
+		if( filter instanceof MappedBloomFilter) {
+			filter = ((MappedBloomFilter) filter).toBlockedBloom();
+		}
+		if( !(filter instanceof BlockedBloomFilter)) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		BlockedBloomFilter other = (BlockedBloomFilter) filter;
+		if( other.numBlocks != this.numBlocks || other.nbHash != this.nbHash) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		return other;
+	}
+
+	@Override
+	public void and( Filter filter) {
+		long[] other = checkCompatible( filter, "and-ed").bits;
+		for(int i=0; i<bits.length; ++i) {
+			bits[i] &= other[i];
+		}
+	}
+
+	@Override
+	public void or( Filter filter) {
+		long[] other = checkCompatible( filter, "or-ed").bits;
+		for(int i=0; i<bits.length; ++i) {
+			bits[i] |= other[i];
+		}
+	}
+
+	@Override
+	public void xor( Filter filter) {
+		long[] other = checkCompatible( filter, "xor-ed").bits;
+		for(int i=0; i<bits.length; ++i) {
+			bits[i] ^= other[i];
+		}
+	}
+
+	@Override
+	public void not() {
+		for(int i=0; i<bits.length; ++i) {
+			bits[i] = ~bits[i];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BlockedBloomFilter( blocks = " + numBlocks + " , hashes = " + nbHash + " )";
+	}
+
+	// Writable
+
+	/**
+	 *  Size of the serialized filter; a header of three ints, then the words
+	 */
+	public int getSerializedSize() {
+		return 12 + bits.length*8;
+	}
+
+	@Override
+	public void write( DataOutput out) throws IOException {
+		out.write( toBytes());
+	}
+
+	@Override
+	public void readFields( DataInput in) throws IOException {
+		byte[] header = new byte[ 12];
+		in.readFully( header);
+		ByteBuffer headerBuff = ByteBuffer.wrap( header);
+		readHeader( headerBuff);
+		byte[] words = new byte[ bits.length*8];
+		in.readFully( words);
+		ByteBuffer.wrap( words).asLongBuffer().get( bits);
+	}
+
+	/**
+	 *  Serialize directly into a byte array, copying the
+	 *   vector a word at a time. Same layout as write().
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buff = ByteBuffer.allocate( getSerializedSize());
+		buff.putInt( FORMAT_MAGIC);
+		buff.putInt( nbHash);
+		buff.putInt( numBlocks);
+		buff.asLongBuffer().put( bits);
+		return buff.array();
+	}
+
+	public static BlockedBloomFilter FromBytes( byte[] bytes) throws IOException {
+		return FromBytes( bytes, 0, bytes.length);
+	}
+
+	public static BlockedBloomFilter FromBytes( byte[] bytes, int off, int len) throws IOException {
+		if( len < 12) {
+			throw new IOException("Blocked bloom filter is truncated");
+		}
+		ByteBuffer buff = ByteBuffer.wrap( bytes, off, len);
+		BlockedBloomFilter filter = new BlockedBloomFilter();
+		filter.readHeader( buff);
+		if( buff.remaining() < filter.bits.length*8) {
+			throw new IOException("Blocked bloom filter is truncated");
+		}
+		buff.asLongBuffer().get( filter.bits);
+		return filter;
+	}
+
+	static int CheckNumBlocks( int numBlocks) throws IOException {
+		if( numBlocks < 1 || numBlocks > MAX_BLOCKS) {
+			throw new IOException("Blocked bloom filter has an invalid number of blocks " + numBlocks);
+		}
+		return numBlocks;
+	}
+
+	private void readHeader( ByteBuffer buff) throws IOException {
+		int magic = buff.getInt();
+		if( magic != FORMAT_MAGIC) {
+			throw new IOException("Not a blocked bloom filter; unexpected format " + Integer.toHexString( magic));
+		}
+		this.nbHash = buff.getInt();
+		this.numBlocks = CheckNumBlocks( buff.getInt());
+		this.vectorSize = numBlocks*BLOCK_BITS;
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		this.bits = new long[ numBlocks*LONGS_PER_BLOCK];
+	}
+
+}
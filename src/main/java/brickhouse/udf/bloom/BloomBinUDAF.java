@@ -0,0 +1,213 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+
+import java.io.IOException;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.log4j.Logger;
+
+
+/**
+ *  Construct a bloom by aggregating over a set of keys,
+ *   and return it as raw bytes, rather than as a Base64 string.
+ *
+ *  Partial results are passed as bytes as well, so the shuffle
+ *   doesn't pay for encoding and decoding the whole bit vector.
+ *
+ *  The bloom is a fixed size BlockedBloomFilter, sized for the expected
+ *   number of keys if one is given, and BloomFactory.DEFAULT_NUM_ELEMENTS
+ *   otherwise. Use scalable_bloom for a bloom which grows as needed.
+ *
+ *  The bytes are the same as the decoded string from bloom(),
+ *   and can be used with the binary versions of bloom_contains,
+ *   bloom_and, bloom_or and bloom_not.
+ */
+@Description(name="bloom_bin",
+    value = "_FUNC_(x, expected_keys, false_pos_prob) - Constructs a bloom filter by aggregating a set of string or binary keys, and returns it as binary. "
+    + " The optional expected_keys defaults to 10000000. "
+)
+public class BloomBinUDAF extends AbstractGenericUDAFResolver {
+  private static final Logger LOG = Logger.getLogger(BloomBinUDAF.class);
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+          throws SemanticException {
+      checkParameters( "bloom_bin", parameters);
+      return new BloomBinUDAFEvaluator();
+  }
+
+  static void checkParameters( String funcName, TypeInfo[] parameters) throws SemanticException {
+      if( parameters.length < 1 || parameters.length > 3) {
+          throw new SemanticException(funcName + " takes a key, and optionally the expected number of keys and false positive probability");
+      }
+      String typeName = parameters[0].getTypeName();
+      if( !typeName.equals("string") && !typeName.equals("binary")) {
+          throw new SemanticException(funcName + " UDAF only takes String or binary keys; not " + typeName);
+      }
+      if((parameters.length > 1) && !parameters[1].getTypeName().equals("int")) {
+          throw new SemanticException("Expected number of keys must be an int; Got " + parameters[1].getTypeName());
+      }
+      if((parameters.length > 2) && !parameters[2].getTypeName().equals("double")) {
+          throw new SemanticException("False positive probability must be a double; Got " + parameters[2].getTypeName());
+      }
+  }
+
+
+  static class BloomBuffer implements AggregationBuffer {
+      Filter bloom;
+
+      void merge( byte[] bytes) throws IOException {
+          Filter partial = BloomFactory.ReadBloomFromBytes( bytes);
+          if( bloom == null) {
+              bloom = partial;
+          } else {
+              bloom.or( partial);
+          }
+      }
+  }
+
+
+  public static class BloomBinUDAFEvaluator extends GenericUDAFEvaluator {
+	  private PrimitiveObjectInspector inputOI;
+	  private BinaryObjectInspector partialOI;
+	  protected int expectedKeys = -1;
+	  protected double falsePositiveProb = BloomFactory.DEFAULT_FALSE_POS_PROB;
+
+
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+        throws HiveException {
+      super.init(m, parameters);
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+    	  //// iterate() gets called.. string or binary keys are passed in
+    	  this.inputOI = (PrimitiveObjectInspector) parameters[0];
+    	  if( parameters.length > 1) {
+    	    if(!( parameters[1] instanceof ConstantObjectInspector ) ) {
+    	        throw new HiveException("Expected number of keys must be a constant");
+    	    }
+    	    this.expectedKeys = PrimitiveObjectInspectorUtils.getInt(
+    	            ((ConstantObjectInspector) parameters[1]).getWritableConstantValue(), (PrimitiveObjectInspector) parameters[1]);
+    	  }
+    	  if( parameters.length > 2) {
+    	    if(!( parameters[2] instanceof ConstantObjectInspector ) ) {
+    	        throw new HiveException("False positive probability must be a constant");
+    	    }
+    	    this.falsePositiveProb = PrimitiveObjectInspectorUtils.getDouble(
+    	            ((ConstantObjectInspector) parameters[2]).getWritableConstantValue(), (PrimitiveObjectInspector) parameters[2]);
+    	    if( falsePositiveProb <= 0.0 || falsePositiveProb >= 1.0) {
+    	        throw new HiveException("False positive probability must be between 0 and 1; Got " + falsePositiveProb);
+    	    }
+    	  }
+      } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
+    	  /// merge() gets called ... binary bloom is passed in ..
+    	  this.partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+    }
+
+    /**
+     *  The bloom which keys are added to, before any partials are merged
+     */
+    protected Filter newBloom() {
+      int numKeys = ( expectedKeys > 0) ? expectedKeys : BloomFactory.DEFAULT_NUM_ELEMENTS;
+      return BloomFactory.NewBloomInstance( numKeys, falsePositiveProb);
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new BloomBuffer();
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+        throws HiveException {
+      Object keyObj = parameters[0];
+      if (keyObj != null) {
+          BloomBuffer myagg = (BloomBuffer) agg;
+          if( myagg.bloom == null) {
+              myagg.bloom = newBloom();
+          }
+          if( inputOI instanceof BinaryObjectInspector) {
+              BytesWritable bytes = ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject( keyObj);
+              BloomFactory.AddBytes( myagg.bloom, bytes.getBytes(), 0, bytes.getLength());
+          } else {
+              /// Text holds the UTF-8 bytes, which are what bloom() uses for the key
+              Text text = ((StringObjectInspector) inputOI).getPrimitiveWritableObject( keyObj);
+              BloomFactory.AddBytes( myagg.bloom, text.getBytes(), 0, text.getLength());
+          }
+      }
+    }
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+        throws HiveException {
+        if( partial != null) {
+            byte[] partialBytes = partialOI.getPrimitiveJavaObject( partial);
+            if( partialBytes != null) {
+                try {
+                    ((BloomBuffer) agg).merge( partialBytes);
+                } catch(IOException ioExc) {
+                    LOG.error(" Error while merging bloom ", ioExc);
+                    throw new HiveException( ioExc);
+                } catch(IllegalArgumentException illArg) {
+                    throw new HiveException( illArg);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset(AggregationBuffer buff) throws HiveException {
+      ((BloomBuffer) buff).bloom = null;
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      BloomBuffer myagg = (BloomBuffer) agg;
+      try {
+          return BloomFactory.WriteBloomToBytes( myagg.bloom);
+      } catch(IOException ioExc) {
+          LOG.error(" Error while evaluating bloom ", ioExc);
+          throw new HiveException( ioExc);
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate( agg);
+    }
+  }
+
+
+}
@@ -17,36 +17,114 @@ package brickhouse.udf.bloom;
  **/
 
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
-import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
-import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.util.bloom.Filter;
-import org.apache.hadoop.util.bloom.Key;
 
 /**
- *   Returns true if the bloom (probably) contains the string
+ *   Returns true if the bloom (probably) contains the key
+ *
+ *   Keys of any primitive type are hashed as read by KeyBytesReader,
+ *    so bloom_contains( bigint_id, ...) finds ids added as strings.
  *   
+ *   When the bloom is a constant, such as an inline literal,
+ *    it is looked up on the first row and kept for the rest,
+ *    rather than hashing the whole serialized bloom for every row.
  *
  */
 @Description(
 		 name = "bloom_contains",
 		 value =  " Returns true if the referenced bloom filter contains the key.. \n " +
-		          "_FUNC_(string key, string bloomfilter) "
+		          "_FUNC_(key, string bloomfilter) \n" +
+		          "_FUNC_(key, binary bloomfilter) "
 		)
-public class BloomContainsUDF extends UDF {
+public class BloomContainsUDF extends GenericUDF {
+	private KeyBytesReader keyReader;
+	private StringObjectInspector bloomStringInspector;
+	private BinaryObjectInspector bloomBinaryInspector;
+	private boolean isConstantBloom;
+	/// The bloom for a constant argument, once it has been looked up
+	private Filter constantBloom;
+
 
+	@Override
+	public Object evaluate( DeferredObject[] arguments) throws HiveException {
+		if( !keyReader.read( arguments[0].get())) {
+			return null;
+		}
+		Filter bloom = constantBloom;
+		if( bloom == null) {
+			bloom = getBloom( arguments[1].get());
+			if( bloom == null) {
+				return null;
+			}
+			if( isConstantBloom) {
+				constantBloom = bloom;
+			}
+		}
+		return BloomFactory.ContainsBytes( bloom, keyReader.getBytes(), 0, keyReader.getLength());
+	}
 
-	public Boolean evaluate( String key, String bloomFilter) throws HiveException {
-		Filter bloom = BloomFactory.GetBloomFilter(bloomFilter);
-		if( bloom != null) {
-			return bloom.membershipTest( new Key(key.getBytes()));
+	private Filter getBloom( Object bloomObj) throws HiveException {
+		if( bloomStringInspector != null) {
+			String bloomFilter = bloomStringInspector.getPrimitiveJavaObject( bloomObj);
+			if( bloomFilter == null) {
+				return null;
+			}
+			Filter bloom = BloomFactory.GetBloomFilter( bloomFilter);
+			if( bloom == null) {
+				throw new HiveException("Unable to find bloom " + bloomFilter);
+			}
+			return bloom;
 		} else {
-			throw new HiveException("Unable to find bloom " + bloomFilter);
+			BytesWritable bloomBytes = bloomBinaryInspector.getPrimitiveWritableObject( bloomObj);
+			if( bloomBytes == null) {
+				return null;
+			}
+			try {
+				return BloomFactory.GetBloomFilter( bloomBytes.getBytes(), 0, bloomBytes.getLength());
+			} catch(IOException ioExc) {
+				throw new HiveException("Unable to read binary bloom", ioExc);
+			}
 		}
 	}
 
+
+	@Override
+	public String getDisplayString( String[] arg0) {
+		return "bloom_contains( " + arg0[0] + " , " + arg0[1] + " )";
+	}
+
+
+	@Override
+	public ObjectInspector initialize( ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		if( arg0.length != 2 || arg0[0].getCategory() != Category.PRIMITIVE) {
+			throw new UDFArgumentException("bloom_contains takes a primitive key and a string or binary bloom");
+		}
+		this.keyReader = new KeyBytesReader( arg0[0]);
+		if( arg0[1] instanceof StringObjectInspector) {
+			this.bloomStringInspector = (StringObjectInspector) arg0[1];
+		} else if( arg0[1] instanceof BinaryObjectInspector) {
+			this.bloomBinaryInspector = (BinaryObjectInspector) arg0[1];
+		} else {
+			throw new UDFArgumentException("bloom_contains takes a primitive key and a string or binary bloom");
+		}
+		this.isConstantBloom = ( arg0[1] instanceof ConstantObjectInspector);
+		this.constantBloom = null;
+
+		return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
+	}
+
 }
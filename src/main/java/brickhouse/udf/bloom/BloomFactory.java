@@ -24,34 +24,85 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.hadoop.util.bloom.BloomFilter;
 import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
 import org.apache.hadoop.util.hash.Hash;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.XxHash64;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  *  Utility class for construction and serialization of BloomFilters ...
  *  
+ *  New blooms are BlockedBloomFilters; scalable_bloom builds
+ *   ScalableBloomFilters, and counting_bloom CountingBloomFilters.
+ *   Blooms in the older Hadoop
+ *   BloomFilter format can still be read; the formats are told apart
+ *   by the header at the start of the serialized bloom.
  *
  */
 public class BloomFactory {
 	private static final Logger LOG = Logger.getLogger( BloomFactory.class);
-	private static Map<String,Filter> localBloomMap = new HashMap<String,Filter>();
 
 	public static final int DEFAULT_NUM_ELEMENTS = 10000000;
 	public static final double DEFAULT_FALSE_POS_PROB = 0.005;
 	public static final int DEFAULT_HASH_TYPE = Hash.JENKINS_HASH;
 	public static final int NUMBER_OF_BLOOMS = 5;
+	public static final double BLOCKED_SIZE_FACTOR = 1.1;
+	public static final String CACHE_MAX_BYTES_PROPERTY = "brickhouse.bloom.cache.maxBytes";
+
+	/// Blooms registered by name, ie. from distributed_bloom
+	private static ConcurrentMap<String,Filter> localBloomMap = new ConcurrentHashMap<String,Filter>();
+	/// Blooms decoded from inline strings or bytes, keyed by a hash of their content
+	private static Cache<ContentKey,Filter> decodedBloomCache = CacheBuilder.newBuilder()
+			.maximumWeight( Long.getLong( CACHE_MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory()/4))
+			.weigher( new Weigher<ContentKey,Filter>() {
+				@Override
+				public int weigh( ContentKey key, Filter bloom) {
+					return WeighBloom( bloom);
+				}
+			})
+			.build();
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+	private static final AtomicLong decodeNanos = new AtomicLong();
 
 	
+	/**
+	 *  The default bloom has a fixed size, so that it can be and-ed,
+	 *   negated and memory-mapped, and so partials can be or-ed
+	 *   without losing precision.
+	 */
 	public static Filter NewBloomInstance() {
 		return NewBloomInstance( DEFAULT_NUM_ELEMENTS, DEFAULT_FALSE_POS_PROB);
 	}
 
+	public static CountingBloomFilter NewCountingBloomInstance( int expectedNumberOfElements, double falsePositiveProbability ) {
+		int k = (int)Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)));
+		double c = k / Math.log(2);
+		LOG.info("Creating new counting Bloom filter C = " + c + " N =  " + expectedNumberOfElements  + " K = " + k );
+		double numCounters = Math.ceil(c*expectedNumberOfElements);
+		if( numCounters > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A counting bloom for " + expectedNumberOfElements + " keys at a false positive rate of "
+					+ falsePositiveProbability + " needs " + (long) numCounters + " counters, more than the maximum of " + Integer.MAX_VALUE);
+		}
+		return new CountingBloomFilter( (int) numCounters, k);
+	}
+
 	static Filter NewVesselBloom() {
 		return new BloomFilter();
 	}
@@ -65,8 +116,16 @@ public class BloomFactory {
 	
 	public static Filter NewBloomInstance( double c, int n, int k) {
 		LOG.info("Creating new Bloom filter C = " + c + " N =  " + n  + " K = " + k );
-		BloomFilter dbf = new BloomFilter((int)Math.ceil(c*n), 
-				      k , DEFAULT_HASH_TYPE);
+		/// Confining the probes to a block skews the load a little,
+		///  so give the blocked bloom some extra bits
+		double numBits = Math.ceil(c*n*BLOCKED_SIZE_FACTOR);
+		if( numBits > BlockedBloomFilter.MAX_VECTOR_SIZE) {
+			/// Larger blooms can't be addressed with an int vector size, so the false positive rate will be higher than asked for
+			LOG.warn("Bloom filter for " + n + " keys needs " + (long) numBits + " bits; capping it at "
+					+ BlockedBloomFilter.MAX_VECTOR_SIZE + " bits, which gives a higher false positive rate");
+			numBits = BlockedBloomFilter.MAX_VECTOR_SIZE;
+		}
+		BlockedBloomFilter dbf = new BlockedBloomFilter((int) numBits, k);
 		return dbf;
 	}
 	/**
@@ -74,24 +133,160 @@ public class BloomFactory {
 	 *   First, the local map is checked for a bloom loaded from 
 	 *   the distributed cache. Next the bloom is attempted to be 
 	 *    parsed from UUencoded format.
+	 *   
+	 *   Parsed blooms are cached by a hash of the string, so an inline
+	 *    bloom is only decoded once per JVM, rather than once per row.
+	 *    The result is shared, and must not be modified.
 	 * @param name
 	 * @return
 	 */
-	public static Filter GetBloomFilter( String str) {
+	public static Filter GetBloomFilter( final String str) {
 		Filter bloom = GetNamedBloomFilter( str);
-		if( bloom == null) {
-			try {
-				bloom = ReadBloomFromString( str);
-				return bloom;
-			} catch (IOException e) {
-				LOG.error(" Unable to get bloom for string " + str);
-				return null;
+		if( bloom != null) {
+			return bloom;
+		}
+		try {
+			return GetCachedBloom( new ContentKey( XxHash64.hashChars( str, 0), str.length()), new Callable<Filter>() {
+				@Override
+				public Filter call() throws IOException {
+					return ReadBloomFromString( str);
+				}
+			});
+		} catch (IOException e) {
+			LOG.error(" Unable to get bloom for string " + str);
+			return null;
+		}
+	}
+
+	/**
+	 *   Get a shared, cached BloomFilter from its serialized bytes
+	 */
+	public static Filter GetBloomFilter( final byte[] bytes, final int off, final int len) throws IOException {
+		return GetCachedBloom( new ContentKey( XxHash64.hash( bytes, off, len, 0), len), new Callable<Filter>() {
+			@Override
+			public Filter call() throws IOException {
+				return ReadBloomFromBytes( bytes, off, len);
 			}
-		} else {
+		});
+	}
+
+	private static Filter GetCachedBloom( ContentKey key, final Callable<Filter> decoder) throws IOException {
+		Filter bloom = decodedBloomCache.getIfPresent( key);
+		if( bloom != null) {
+			cacheHits.incrementAndGet();
 			return bloom;
 		}
+		try {
+			return decodedBloomCache.get( key, new Callable<Filter>() {
+				@Override
+				public Filter call() throws Exception {
+					cacheMisses.incrementAndGet();
+					long start = System.nanoTime();
+					Filter decoded = decoder.call();
+					decodeNanos.addAndGet( System.nanoTime() - start);
+					LOG.info(" Decoded bloom " + decoded + "; " + CacheStatsString());
+					return decoded;
+				}
+			});
+		} catch (ExecutionException e) {
+			if( e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException( e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw new IOException( e.getCause());
+		}
 	}
-	
+
+	/**
+	 *  Approximate heap size of a bloom, in bytes
+	 */
+	static int WeighBloom( Filter bloom) {
+		if( bloom instanceof BlockedBloomFilter) {
+			return ((BlockedBloomFilter) bloom).getSerializedSize();
+		} else if( bloom instanceof ScalableBloomFilter) {
+			return ((ScalableBloomFilter) bloom).getSerializedSize();
+		} else if( bloom instanceof CountingBloomFilter) {
+			return ((CountingBloomFilter) bloom).getSerializedSize();
+		} else if( bloom instanceof BloomFilter) {
+			return ((BloomFilter) bloom).getVectorSize()/8;
+		} else {
+			return 1;
+		}
+	}
+
+	/**
+	 *  Add a key from a slice of a byte array, without copying it
+	 *   when the bloom supports that.
+	 */
+	static void AddBytes( Filter bloom, byte[] bytes, int off, int len) {
+		if( bloom instanceof BlockedBloomFilter) {
+			((BlockedBloomFilter) bloom).addBytes( bytes, off, len);
+		} else if( bloom instanceof ScalableBloomFilter) {
+			((ScalableBloomFilter) bloom).addBytes( bytes, off, len);
+		} else if( bloom instanceof CountingBloomFilter) {
+			((CountingBloomFilter) bloom).addBytes( bytes, off, len);
+		} else {
+			bloom.add( new Key( Arrays.copyOfRange( bytes, off, off + len)));
+		}
+	}
+
+	/**
+	 *  Test a key from a slice of a byte array. Blocked, scalable and counting
+	 *   blooms derive all their probes from a single 64 bit hash of the bytes;
+	 *   older Hadoop blooms still need a Key, for their Jenkins hashes.
+	 */
+	static boolean ContainsBytes( Filter bloom, byte[] bytes, int off, int len) {
+		if( bloom instanceof BlockedBloomFilter) {
+			return ((BlockedBloomFilter) bloom).membershipTestBytes( bytes, off, len);
+		} else if( bloom instanceof MappedBloomFilter) {
+			return ((MappedBloomFilter) bloom).membershipTestBytes( bytes, off, len);
+		} else if( bloom instanceof ScalableBloomFilter) {
+			return ((ScalableBloomFilter) bloom).membershipTestBytes( bytes, off, len);
+		} else if( bloom instanceof CountingBloomFilter) {
+			return ((CountingBloomFilter) bloom).membershipTestBytes( bytes, off, len);
+		} else {
+			return bloom.membershipTest( new Key( Arrays.copyOfRange( bytes, off, off + len)));
+		}
+	}
+
+	public static long GetCacheHits() {
+		return cacheHits.get();
+	}
+
+	public static long GetCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	public static long GetDecodeMillis() {
+		return decodeNanos.get()/1000000;
+	}
+
+	public static String CacheStatsString() {
+		return "bloom cache hits = " + GetCacheHits() + " misses = " + GetCacheMisses()
+				+ " decode ms = " + GetDecodeMillis() + " cached = " + decodedBloomCache.size();
+	}
+
+	/**
+	 *  Like GetBloomFilter, but never returns a shared bloom,
+	 *   so that the result can be modified.
+	 */
+	public static Filter GetBloomFilterCopy( String str) {
+		Filter bloom = GetNamedBloomFilter( str);
+		try {
+			if( bloom == null) {
+				return ReadBloomFromString( str);
+			}
+			if( bloom instanceof MappedBloomFilter) {
+				return ((MappedBloomFilter) bloom).toBlockedBloom();
+			}
+			return ReadBloomFromBytes( WriteBloomToBytes( bloom));
+		} catch (IOException e) {
+			LOG.error(" Unable to get bloom for string " + str);
+			return null;
+		}
+	}
+
 	public static Filter GetNamedBloomFilter( String name) {
 		return localBloomMap.get( name);
 	}
@@ -99,6 +294,34 @@ public class BloomFactory {
 	public static void PutNamedBloomFilter( String name, Filter bloom) {
 		localBloomMap.put( name,bloom);
 	}
+
+	/**
+	 *  Key for a decoded bloom; a 64 bit hash of the serialized
+	 *   bloom along with its length.
+	 */
+	private static class ContentKey {
+		private final long hash;
+		private final int length;
+
+		ContentKey( long hash, int length) {
+			this.hash = hash;
+			this.length = length;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)( hash ^ (hash >>> 32)) * 31 + length;
+		}
+
+		@Override
+		public boolean equals( Object obj) {
+			if( !(obj instanceof ContentKey)) {
+				return false;
+			}
+			ContentKey other = (ContentKey) obj;
+			return hash == other.hash && length == other.length;
+		}
+	}
 	
 	
 	public static Filter ReadBloomFromStream( InputStream stream) throws IOException {
@@ -123,22 +346,67 @@ public class BloomFactory {
 	
 	public static Filter ReadBloomFromString( String str) throws IOException {
 		if( str != null ) {
-			Filter filter = NewVesselBloom();
 			byte[] decoded = Base64.decodeBase64( str.getBytes());
-			DataInputStream dataInput = new DataInputStream( new ByteArrayInputStream(decoded));
-		
-			filter.readFields(dataInput);
-			return filter;
+			return ReadBloomFromBytes( decoded);
 		} else {
 			return NewBloomInstance();
 		}
 	}
 
+	/**
+	 *  Read a serialized bloom, checking the format header
+	 *   to see whether it is blocked or a legacy Hadoop bloom.
+	 */
+	public static Filter ReadBloomFromBytes( byte[] bytes) throws IOException {
+		return ReadBloomFromBytes( bytes, 0, bytes.length);
+	}
+
+	public static Filter ReadBloomFromBytes( byte[] bytes, int off, int len) throws IOException {
+		switch( ReadFormatHeader( bytes, off, len)) {
+		case BlockedBloomFilter.FORMAT_MAGIC:
+			return BlockedBloomFilter.FromBytes( bytes, off, len);
+		case ScalableBloomFilter.FORMAT_MAGIC:
+			return ScalableBloomFilter.FromBytes( bytes, off, len);
+		case CountingBloomFilter.FORMAT_MAGIC:
+			return CountingBloomFilter.FromBytes( bytes, off, len);
+		}
+		Filter filter = NewVesselBloom();
+		DataInputStream dataInput = new DataInputStream( new ByteArrayInputStream(bytes, off, len));
+		filter.readFields(dataInput);
+		return filter;
+	}
+
+	static int ReadFormatHeader( byte[] bytes, int off, int len) {
+		if( len < 4) {
+			return 0;
+		}
+		return ((bytes[off] & 0xFF) << 24) | ((bytes[off + 1] & 0xFF) << 16)
+				| ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 3] & 0xFF);
+	}
+
+	/**
+	 *  Serialize a bloom to raw bytes, for the binary bloom functions,
+	 *   which avoids the Base64 encoding of the string format.
+	 */
+	public static byte[] WriteBloomToBytes( Filter bloom) throws IOException {
+		if( bloom == null) {
+			return null;
+		}
+		if( bloom instanceof BlockedBloomFilter) {
+			return ((BlockedBloomFilter) bloom).toBytes();
+		} else if( bloom instanceof ScalableBloomFilter) {
+			return ((ScalableBloomFilter) bloom).toBytes();
+		} else if( bloom instanceof CountingBloomFilter) {
+			return ((CountingBloomFilter) bloom).toBytes();
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		bloom.write( new DataOutputStream(buffer));
+		return buffer.toByteArray();
+	}
+
 	public static String WriteBloomToString( Filter bloom) throws IOException {
 		if( bloom != null ) {
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			bloom.write( new DataOutputStream(buffer));
-			byte[] encodedBloom = Base64.encodeBase64( buffer.toByteArray());
+			byte[] encodedBloom = Base64.encodeBase64( WriteBloomToBytes( bloom));
 			return new String(encodedBloom);
 		} else {
 			return null;
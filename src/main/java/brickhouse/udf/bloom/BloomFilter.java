@@ -81,9 +81,14 @@ import org.apache.log4j.Logger;
     * @see Filter The general behavior of a filter
     * 
     * @see <a href="http://portal.acm.org/citation.cfm?id=362692&dl=ACM&coll=portal">Space/Time Trade-Offs in Hash Coding with Allowable Errors</a>
+    *
+    * @deprecated Not used by any of the bloom UDFs, which read and write legacy
+    *  blooms as org.apache.hadoop.util.bloom.BloomFilter, and build new ones
+    *  as {@link BlockedBloomFilter}. Kept only for code which references it.
     */
    ///@InterfaceAudience.Public
    ///@InterfaceStability.Stable
+   @Deprecated
    public class BloomFilter extends Filter {
 	   private static final Logger LOG = Logger.getLogger(BloomFilter.class);
      private static final byte[] bitvalues = new byte[] {
@@ -20,22 +20,32 @@ import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.util.bloom.Filter;
 
 
 @Description(
 		 name = "bloom_not",
 		 value =  " Returns the logical NOT of a bloom filters; representing the set of values NOT in bloom1   \n " +
-		          "_FUNC_(string bloom) "
+		          "_FUNC_(string bloom) \n" +
+		          "_FUNC_(binary bloom) "
 		)
 public class BloomNotUDF extends UDF {
 
 	public String evaluate( String bloomStr ) throws IOException {
-		Filter bloom = BloomFactory.GetBloomFilter( bloomStr);
+		Filter bloom = BloomFactory.GetBloomFilterCopy( bloomStr);
 		
 		/// Perform a logical not 
 		bloom.not();
 		
 		return BloomFactory.WriteBloomToString( bloom);
 	}
+
+	public BytesWritable evaluate( BytesWritable bloomBytes ) throws IOException {
+		Filter bloom = BloomFactory.ReadBloomFromBytes( bloomBytes.getBytes(), 0, bloomBytes.getLength());
+
+		bloom.not();
+
+		return new BytesWritable( BloomFactory.WriteBloomToBytes( bloom));
+	}
 }
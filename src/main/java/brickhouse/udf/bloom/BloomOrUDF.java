@@ -21,6 +21,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.util.bloom.Filter;
 
 
@@ -28,16 +29,26 @@ import org.apache.hadoop.util.bloom.Filter;
 @Description(
 		 name = "bloom_or",
 		 value =  " Returns the logical OR of two bloom filters; representing the intersection of values in either bloom1 OR bloom2  \n " +
-		          "_FUNC_(string bloom1, string bloom2) "
+		          "_FUNC_(string bloom1, string bloom2) \n" +
+		          "_FUNC_(binary bloom1, binary bloom2) "
 		)
 public class BloomOrUDF extends UDF {
 
 	public String evaluate( String bloom1Str, String bloom2Str ) throws IOException {
-		Filter bloom1 = BloomFactory.GetBloomFilter( bloom1Str);
+		Filter bloom1 = BloomFactory.GetBloomFilterCopy( bloom1Str);
 		Filter bloom2 = BloomFactory.GetBloomFilter( bloom2Str);
 		
 		bloom1.or( bloom2);
 		
 		return BloomFactory.WriteBloomToString( bloom1);
 	}
+
+	public BytesWritable evaluate( BytesWritable bloom1Bytes, BytesWritable bloom2Bytes ) throws IOException {
+		Filter bloom1 = BloomFactory.ReadBloomFromBytes( bloom1Bytes.getBytes(), 0, bloom1Bytes.getLength());
+		Filter bloom2 = BloomFactory.ReadBloomFromBytes( bloom2Bytes.getBytes(), 0, bloom2Bytes.getLength());
+
+		bloom1.or( bloom2);
+
+		return new BytesWritable( BloomFactory.WriteBloomToBytes( bloom1));
+	}
 }
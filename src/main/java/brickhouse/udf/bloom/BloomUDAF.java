@@ -23,15 +23,16 @@ import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDAF;
 import org.apache.hadoop.hive.ql.exec.UDAFEvaluator;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.bloom.Filter;
-import org.apache.hadoop.util.bloom.Key;
 import org.apache.log4j.Logger;
 
 
 /**
  *   Construct a BloomFilter by aggregating on keys
  *   
- *   Uses hadoop util BloomFilter class
+ *   Builds a fixed size BlockedBloomFilter; see scalable_bloom for one
+ *    which starts small and grows as keys are added
  *  Use with bloom_contains( key, bloomfile );
  *  
  *  insert overwrite local directory bloomfile
@@ -77,12 +78,16 @@ public class BloomUDAF extends UDAF {
 		}
 
 		
-		public boolean iterate( String key) {
+		/**
+		 *  Takes the key as Text, so its UTF-8 bytes can be hashed in place,
+		 *   without creating a String, a byte array and a Key for every row.
+		 */
+		public boolean iterate( Text key) {
 			if( key != null) {
 			  if( bloomFilter == null) {
 				  init();
 			  }
-			  bloomFilter.add( new Key(key.getBytes()));
+			  BloomFactory.AddBytes( bloomFilter, key.getBytes(), 0, key.getLength());
 			  
 			  /**
 			  try {
@@ -0,0 +1,298 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+
+/**
+ *  A counting Bloom filter, with a 4-bit counter in place of each bit,
+ *   so that keys can be removed as well as added.
+ *
+ *  Counters are packed sixteen to a long. A counter which reaches 15
+ *   sticks there, since its true count is no longer known, and
+ *   is never decremented.
+ *
+ *  Or-ing two counting filters adds their counters, and subtract
+ *   removes the keys of one from the other, so a filter can be kept up
+ *   to date from daily deltas rather than rebuilt.
+ *
+ *  Probes use double hashing of the two halves of a 64 bit hash.
+ */
+public class CountingBloomFilter extends Filter {
+	/// "BBC" followed by the format version
+	public static final int FORMAT_MAGIC = 0x42424301;
+	static final int COUNTERS_PER_LONG = 16;
+	static final int MAX_COUNT = 15;
+
+	long[] counters;
+
+
+	/** Default constructor - use with readFields */
+	public CountingBloomFilter() {
+		super();
+	}
+
+	/**
+	 * @param vectorSize  Number of counters
+	 * @param nbHash  Number of probes per key
+	 */
+	public CountingBloomFilter( int vectorSize, int nbHash) {
+		super();
+		this.vectorSize = Math.max( vectorSize, 1);
+		this.nbHash = nbHash;
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		this.counters = new long[ NumWords( this.vectorSize)];
+	}
+
+	/**
+	 *  Longs needed for a number of counters, computed in long
+	 *   so that it doesn't overflow near Integer.MAX_VALUE
+	 */
+	static int NumWords( int vectorSize) {
+		if( vectorSize < 1) {
+			throw new IllegalArgumentException("Counting bloom filter has an invalid number of counters " + vectorSize);
+		}
+		return (int)( ( (long) vectorSize + COUNTERS_PER_LONG - 1) / COUNTERS_PER_LONG);
+	}
+
+	public int getVectorSize() {
+		return vectorSize;
+	}
+
+	private int position( int h1, int h2, int i) {
+		return (int)( ((h1 + i*h2) & 0xFFFFFFFFL) % vectorSize);
+	}
+
+	int getCount( int pos) {
+		return (int)( counters[ pos >>> 4] >>> ((pos & 15) << 2)) & MAX_COUNT;
+	}
+
+	private void setCount( int pos, int count) {
+		int shift = (pos & 15) << 2;
+		counters[ pos >>> 4] = ( counters[ pos >>> 4] & ~((long) MAX_COUNT << shift)) | ((long) count << shift);
+	}
+
+	public void addHash( long hash) {
+		int h1 = (int) hash;
+		int h2 = (int)( hash >>> 32);
+		for(int i=0; i<nbHash; ++i) {
+			int pos = position( h1, h2, i);
+			int count = getCount( pos);
+			if( count < MAX_COUNT) {
+				setCount( pos, count + 1);
+			}
+		}
+	}
+
+	/**
+	 *  Remove a key, if it is (probably) present
+	 */
+	public void deleteHash( long hash) {
+		if( !membershipTestHash( hash)) {
+			return;
+		}
+		int h1 = (int) hash;
+		int h2 = (int)( hash >>> 32);
+		for(int i=0; i<nbHash; ++i) {
+			int pos = position( h1, h2, i);
+			int count = getCount( pos);
+			if( count > 0 && count < MAX_COUNT) {
+				setCount( pos, count - 1);
+			}
+		}
+	}
+
+	public boolean membershipTestHash( long hash) {
+		return approximateCountHash( hash) > 0;
+	}
+
+	/**
+	 *  Upper bound on the number of times a key was added;
+	 *   the smallest of its counters.
+	 */
+	public int approximateCountHash( long hash) {
+		int h1 = (int) hash;
+		int h2 = (int)( hash >>> 32);
+		int minCount = MAX_COUNT;
+		for(int i=0; i<nbHash && minCount > 0; ++i) {
+			minCount = Math.min( minCount, getCount( position( h1, h2, i)));
+		}
+		return minCount;
+	}
+
+	public void addBytes( byte[] bytes, int off, int len) {
+		addHash( BlockedBloomFilter.HashKey( bytes, off, len));
+	}
+
+	public boolean membershipTestBytes( byte[] bytes, int off, int len) {
+		return membershipTestHash( BlockedBloomFilter.HashKey( bytes, off, len));
+	}
+
+	@Override
+	public void add( Key key) {
+		addHash( hashKey( key));
+	}
+
+	public void delete( Key key) {
+		deleteHash( hashKey( key));
+	}
+
+	@Override
+	public boolean membershipTest( Key key) {
+		return membershipTestHash( hashKey( key));
+	}
+
+	public int approximateCount( Key key) {
+		return approximateCountHash( hashKey( key));
+	}
+
+	private static long hashKey( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		return BlockedBloomFilter.HashKey( bytes, 0, bytes.length);
+	}
+
+	private CountingBloomFilter checkCompatible( Filter filter, String op) {
+		if( !(filter instanceof CountingBloomFilter)) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		CountingBloomFilter other = (CountingBloomFilter) filter;
+		if( other.vectorSize != this.vectorSize || other.nbHash != this.nbHash) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		return other;
+	}
+
+	/**
+	 *  Add the counters of another filter, as if its keys had been added
+	 */
+	@Override
+	public void or( Filter filter) {
+		CountingBloomFilter other = checkCompatible( filter, "or-ed");
+		for(int pos=0; pos<vectorSize; ++pos) {
+			int otherCount = other.getCount( pos);
+			if( otherCount > 0) {
+				setCount( pos, Math.min( getCount( pos) + otherCount, MAX_COUNT));
+			}
+		}
+	}
+
+	/**
+	 *  Keep the smaller of each pair of counters
+	 */
+	@Override
+	public void and( Filter filter) {
+		CountingBloomFilter other = checkCompatible( filter, "and-ed");
+		for(int pos=0; pos<vectorSize; ++pos) {
+			setCount( pos, Math.min( getCount( pos), other.getCount( pos)));
+		}
+	}
+
+	/**
+	 *  Remove the keys of another filter, which should
+	 *   all have been added to this one.
+	 */
+	public void subtract( Filter filter) {
+		CountingBloomFilter other = checkCompatible( filter, "subtracted");
+		for(int pos=0; pos<vectorSize; ++pos) {
+			int count = getCount( pos);
+			if( count < MAX_COUNT) {
+				setCount( pos, Math.max( count - other.getCount( pos), 0));
+			}
+		}
+	}
+
+	@Override
+	public void xor( Filter filter) {
+		throw new UnsupportedOperationException("xor() is undefined for " + this.getClass().getName());
+	}
+
+	@Override
+	public void not() {
+		throw new UnsupportedOperationException("not() is undefined for " + this.getClass().getName());
+	}
+
+	@Override
+	public String toString() {
+		return "CountingBloomFilter( counters = " + vectorSize + " , hashes = " + nbHash + " )";
+	}
+
+	// Writable
+
+	public int getSerializedSize() {
+		return 12 + counters.length*8;
+	}
+
+	@Override
+	public void write( DataOutput out) throws IOException {
+		out.write( toBytes());
+	}
+
+	@Override
+	public void readFields( DataInput in) throws IOException {
+		int magic = in.readInt();
+		if( magic != FORMAT_MAGIC) {
+			throw new IOException("Not a counting bloom filter; unexpected format " + Integer.toHexString( magic));
+		}
+		this.nbHash = in.readInt();
+		this.vectorSize = in.readInt();
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		byte[] words = new byte[ NumWords( vectorSize)*8];
+		in.readFully( words);
+		this.counters = new long[ words.length/8];
+		ByteBuffer.wrap( words).asLongBuffer().get( counters);
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buff = ByteBuffer.allocate( getSerializedSize());
+		buff.putInt( FORMAT_MAGIC);
+		buff.putInt( nbHash);
+		buff.putInt( vectorSize);
+		buff.asLongBuffer().put( counters);
+		return buff.array();
+	}
+
+	public static CountingBloomFilter FromBytes( byte[] bytes, int off, int len) throws IOException {
+		if( len < 12) {
+			throw new IOException("Counting bloom filter is truncated");
+		}
+		ByteBuffer buff = ByteBuffer.wrap( bytes, off, len);
+		if( buff.getInt() != FORMAT_MAGIC) {
+			throw new IOException("Not a counting bloom filter");
+		}
+		CountingBloomFilter filter = new CountingBloomFilter();
+		filter.nbHash = buff.getInt();
+		filter.vectorSize = buff.getInt();
+		filter.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		filter.counters = new long[ NumWords( filter.vectorSize)];
+		if( buff.remaining() < filter.counters.length*8) {
+			throw new IOException("Counting bloom filter is truncated");
+		}
+		buff.asLongBuffer().get( filter.counters);
+		return filter;
+	}
+
+}
@@ -0,0 +1,62 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.IOException;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.util.bloom.Filter;
+
+
+@Description(
+		 name = "counting_bloom_subtract",
+		 value =  " Returns a counting bloom with the keys of bloom2 removed from bloom1; bloom2 should only contain keys which were added to bloom1  \n " +
+		          "_FUNC_(binary bloom1, binary bloom2) \n" +
+		          "_FUNC_(string bloom1, string bloom2) "
+		)
+public class CountingBloomSubtractUDF extends UDF {
+
+	public BytesWritable evaluate( BytesWritable bloom1Bytes, BytesWritable bloom2Bytes ) throws IOException, HiveException {
+		Filter bloom1 = BloomFactory.ReadBloomFromBytes( bloom1Bytes.getBytes(), 0, bloom1Bytes.getLength());
+		Filter bloom2 = BloomFactory.ReadBloomFromBytes( bloom2Bytes.getBytes(), 0, bloom2Bytes.getLength());
+
+		return new BytesWritable( BloomFactory.WriteBloomToBytes( subtract( bloom1, bloom2)));
+	}
+
+	public String evaluate( String bloom1Str, String bloom2Str ) throws IOException, HiveException {
+		Filter bloom1 = BloomFactory.GetBloomFilterCopy( bloom1Str);
+		Filter bloom2 = BloomFactory.GetBloomFilter( bloom2Str);
+
+		return BloomFactory.WriteBloomToString( subtract( bloom1, bloom2));
+	}
+
+	private static Filter subtract( Filter bloom1, Filter bloom2) throws HiveException {
+		if( !(bloom1 instanceof CountingBloomFilter)) {
+			throw new HiveException("counting_bloom_subtract only works on blooms from counting_bloom");
+		}
+		try {
+			((CountingBloomFilter) bloom1).subtract( bloom2);
+		} catch(IllegalArgumentException illArg) {
+			throw new HiveException( illArg);
+		}
+		return bloom1;
+	}
+}
@@ -0,0 +1,62 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.util.bloom.Filter;
+
+
+/**
+ *  Construct a counting bloom, which supports removal of keys,
+ *   by aggregating over a set of keys. Merging partials adds
+ *   their counters.
+ *
+ *  Use with counting_bloom_subtract to remove a day's deletes
+ *   from an existing bloom, and bloom_or to add a day's inserts,
+ *   rather than rebuilding it.
+ */
+@Description(name="counting_bloom",
+    value = "_FUNC_(x, expected_keys, false_pos_prob) - Constructs a counting bloom filter by aggregating a set of string or binary keys, and returns it as binary. "
+    + " Counting blooms use four bits per position, and default to 1000000 expected keys. "
+)
+public class CountingBloomUDAF extends BloomBinUDAF {
+  public static final int DEFAULT_EXPECTED_KEYS = 1000000;
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+          throws SemanticException {
+      checkParameters( "counting_bloom", parameters);
+      return new CountingBloomUDAFEvaluator();
+  }
+
+
+  public static class CountingBloomUDAFEvaluator extends BloomBinUDAFEvaluator {
+
+    @Override
+    protected Filter newBloom() {
+      int numKeys = ( expectedKeys > 0) ? expectedKeys : DEFAULT_EXPECTED_KEYS;
+      return BloomFactory.NewCountingBloomInstance( numKeys, falsePositiveProb);
+    }
+  }
+
+}
@@ -19,7 +19,6 @@ package brickhouse.udf.bloom;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -73,32 +72,47 @@ public class DistributedBloomUDF extends GenericUDF {
 	 *    BloomFilters need to be single files right now, containing only one 
 	 *     bloom filter
 	 *    
+	 *    Blocked blooms are memory-mapped rather than read onto the heap.
+	 *     A bloom in the raw binary format is mapped directly; a Base64 bloom
+	 *     is decoded once into a raw copy in MappedBloomFilter.LocalRawDir(),
+	 *     which other task JVMs of the job on the node then map as well.
+	 *    
 	 * @param mapFilename
 	 * @return
 	 * @throws IOException
 	 */
 	static Filter loadBloom(String mapFilename) throws IOException {
-		File mapFile  = new File( mapFilename);
-		if(!mapFile.exists()) {
-			throw new FileNotFoundException(mapFilename + " not found.");
+		File bloomFile = MappedBloomFilter.FindCachedFile( mapFilename);
+		if( MappedBloomFilter.IsRawBloomFile( bloomFile)) {
+			LOG.info(" Mapping raw bloom " + bloomFile);
+			return MappedBloomFilter.Map( bloomFile);
+		}
+		File rawFile = localRawBloomFile( bloomFile);
+		if( rawFile.exists()) {
+			LOG.info(" Mapping local raw copy " + rawFile + " of bloom " + bloomFile);
+			return MappedBloomFilter.Map( rawFile);
 		}
 
-		if( mapFile.isDirectory() ) {
-			String[] subFiles = mapFile.list();
-			for( String subFile : subFiles) {
-				if( subFile.endsWith("crc")) {
-					LOG.info(" Ignoring CRC file " + mapFilename);
-					continue;
-				} else {
-					FileInputStream inStream = new FileInputStream( mapFilename + "/" + subFile);
-					return BloomFactory.ReadBloomFromStream( inStream);
-				}
+		Filter bloom;
+		FileInputStream inStream = new FileInputStream( bloomFile);
+		try {
+			bloom = BloomFactory.ReadBloomFromStream( inStream);
+		} finally {
+			inStream.close();
+		}
+		if( bloom instanceof BlockedBloomFilter) {
+			try {
+				MappedBloomFilter.WriteRawBloomFile( (BlockedBloomFilter) bloom, rawFile);
+				return MappedBloomFilter.Map( rawFile);
+			} catch(IOException ioExc) {
+				LOG.warn(" Unable to write local raw copy of bloom " + bloomFile + "; keeping it on the heap", ioExc);
 			}
-			throw new FileNotFoundException(mapFilename + " not found.");
-		} else {
-			FileInputStream inStream = new FileInputStream(mapFilename);
-			return BloomFactory.ReadBloomFromStream(inStream);
 		}
+		return bloom;
+	}
+
+	private static File localRawBloomFile( File bloomFile) throws IOException {
+		return MappedBloomFilter.LocalRawFile( bloomFile, "brickhouse-bloom-", ".bloom");
 	}
 	
 	
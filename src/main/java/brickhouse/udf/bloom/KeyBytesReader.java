@@ -0,0 +1,91 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ *  Reads the key of bloom_contains or filter_contains as bytes, without copying.
+ *
+ *  Keys of any primitive type are read as the UTF-8 bytes of their
+ *   text, as they were when Hive converted them to a string for the
+ *   old UDFs, so a bigint id finds the same id added as a string.
+ *   Binary keys are read as their bytes.
+ */
+public class KeyBytesReader {
+	private StringObjectInspector strInspector;
+	private BinaryObjectInspector binaryInspector;
+	/// Converts other primitive keys to their text
+	private PrimitiveObjectInspectorConverter.TextConverter converter;
+	private byte[] bytes;
+	private int length;
+
+
+	public KeyBytesReader( ObjectInspector keyInspector) throws UDFArgumentException {
+		if( keyInspector.getCategory() != Category.PRIMITIVE) {
+			throw new UDFArgumentException("Key must be a primitive type, not " + keyInspector.getTypeName());
+		}
+		if( keyInspector instanceof StringObjectInspector) {
+			strInspector = (StringObjectInspector) keyInspector;
+		} else if( keyInspector instanceof BinaryObjectInspector) {
+			binaryInspector = (BinaryObjectInspector) keyInspector;
+		} else {
+			converter = new PrimitiveObjectInspectorConverter.TextConverter( (PrimitiveObjectInspector) keyInspector);
+		}
+	}
+
+	/**
+	 *  Read a key, returning false if it is null.
+	 *   The bytes are only valid until the next call.
+	 */
+	public boolean read( Object keyObj) {
+		if( binaryInspector != null) {
+			BytesWritable key = binaryInspector.getPrimitiveWritableObject( keyObj);
+			if( key == null) {
+				return false;
+			}
+			bytes = key.getBytes();
+			length = key.getLength();
+		} else {
+			Text key = ( strInspector != null) ? strInspector.getPrimitiveWritableObject( keyObj) : (Text) converter.convert( keyObj);
+			if( key == null) {
+				return false;
+			}
+			bytes = key.getBytes();
+			length = key.getLength();
+		}
+		return true;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+}
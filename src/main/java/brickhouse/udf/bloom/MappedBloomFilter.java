@@ -0,0 +1,304 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.log4j.Logger;
+
+/**
+ *  A read-only BlockedBloomFilter, which tests membership directly
+ *   against a memory-mapped file in the raw binary format,
+ *   rather than reading the bits onto the heap.
+ *
+ *  Loading is just mapping the file, and every task JVM on a node
+ *   which maps the same file shares one page-cached copy.
+ */
+public class MappedBloomFilter extends Filter {
+	private static final Logger LOG = Logger.getLogger( MappedBloomFilter.class);
+	public static final String LOCAL_DIR_PROPERTY = "brickhouse.bloom.local.dir";
+	private LongBuffer words;
+	private int numBlocks;
+
+
+	public MappedBloomFilter( ByteBuffer buff) throws IOException {
+		super();
+		if( buff.remaining() < 12) {
+			throw new IOException("Blocked bloom filter is truncated");
+		}
+		int magic = buff.getInt( buff.position());
+		if( magic != BlockedBloomFilter.FORMAT_MAGIC) {
+			throw new IOException("Not a blocked bloom filter; unexpected format " + Integer.toHexString( magic));
+		}
+		this.nbHash = buff.getInt( buff.position() + 4);
+		this.numBlocks = BlockedBloomFilter.CheckNumBlocks( buff.getInt( buff.position() + 8));
+		this.vectorSize = numBlocks*BlockedBloomFilter.BLOCK_BITS;
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		ByteBuffer wordBuff = buff.duplicate();
+		wordBuff.position( buff.position() + 12);
+		this.words = wordBuff.slice().asLongBuffer();
+		if( words.remaining() < numBlocks*BlockedBloomFilter.LONGS_PER_BLOCK) {
+			throw new IOException("Blocked bloom filter is truncated");
+		}
+	}
+
+	/**
+	 *  Map a bloom file in the raw binary format, as written by
+	 *   bloom_bin or WriteRawBloomFile.
+	 */
+	public static MappedBloomFilter Map( File file) throws IOException {
+		return new MappedBloomFilter( MapFile( file));
+	}
+
+	/**
+	 *  Map a whole file read-only. A single mapping is limited to 2GB,
+	 *   so larger files are rejected rather than truncated.
+	 */
+	public static MappedByteBuffer MapFile( File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if( channel.size() > Integer.MAX_VALUE) {
+				throw new IOException( file + " is " + channel.size() + " bytes; files over 2GB can't be memory-mapped");
+			}
+			/// The mapping stays valid after the channel is closed
+			return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Find a file added to the distributed cache, which may be
+	 *   a directory holding a single file, as written by
+	 *   INSERT OVERWRITE DIRECTORY, and its CRC file.
+	 */
+	public static File FindCachedFile( String filename) throws IOException {
+		File file = new File( filename);
+		if(!file.exists()) {
+			throw new FileNotFoundException(filename + " not found.");
+		}
+
+		if( file.isDirectory() ) {
+			String[] subFiles = file.list();
+			for( String subFile : subFiles) {
+				if( subFile.endsWith("crc")) {
+					LOG.info(" Ignoring CRC file " + subFile);
+					continue;
+				} else {
+					return new File( file, subFile);
+				}
+			}
+			throw new FileNotFoundException(filename + " not found.");
+		} else {
+			return file;
+		}
+	}
+
+	/**
+	 *  True if the file starts with the blocked bloom header,
+	 *   rather than being Base64 encoded.
+	 */
+	public static boolean IsRawBloomFile( File file) throws IOException {
+		if( file.length() < 12) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream( new FileInputStream( file));
+		try {
+			return in.readInt() == BlockedBloomFilter.FORMAT_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 *  Directory for local raw copies, shared by the task JVMs on a node.
+	 *
+	 *  Under YARN this is the first of the application's local dirs
+	 *   from LOCAL_DIRS, which every container of the job on the node
+	 *   can see, and which the NodeManager deletes when the job finishes.
+	 *   A task's java.io.tmpdir is inside its own container directory,
+	 *   and is deleted with it. Setting the brickhouse.bloom.local.dir
+	 *   system property overrides this, for copies shared between jobs;
+	 *   they are then left for the cluster's tmp cleaning to remove.
+	 *   Outside of YARN, java.io.tmpdir is used.
+	 */
+	public static File LocalRawDir() {
+		String dir = System.getProperty( LOCAL_DIR_PROPERTY);
+		if( dir == null) {
+			String localDirs = System.getenv("LOCAL_DIRS");
+			if( localDirs != null && localDirs.length() > 0) {
+				dir = localDirs.split(",")[0];
+			} else {
+				dir = System.getProperty("java.io.tmpdir");
+			}
+		}
+		return new File( dir);
+	}
+
+	/**
+	 *  The local raw copy of a file from the distributed cache. It is named
+	 *   for the resolved path, which is the same for every task of the job
+	 *   on the node, plus its size and modification time, so a changed file
+	 *   gets a new copy.
+	 */
+	public static File LocalRawFile( File file, String prefix, String suffix) throws IOException {
+		File canonical = file.getCanonicalFile();
+		String rawName = prefix + Integer.toHexString( canonical.getPath().hashCode())
+				+ "-" + canonical.length() + "-" + canonical.lastModified() + suffix;
+		File dir = LocalRawDir();
+		dir.mkdirs();
+		return new File( dir, rawName);
+	}
+
+	/**
+	 *  Write a bloom in the raw binary format, so that it can be mapped.
+	 */
+	public static void WriteRawBloomFile( BlockedBloomFilter bloom, File file) throws IOException {
+		WriteRawFile( new ByteArrayInputStream( bloom.toBytes()), file);
+	}
+
+	/**
+	 *  Copy a stream to a local raw file. The file is written under
+	 *   a temporary name and renamed, so concurrent readers never
+	 *   see a partial file.
+	 */
+	public static void WriteRawFile( InputStream in, File file) throws IOException {
+		File tmpFile = File.createTempFile( file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		FileOutputStream out = new FileOutputStream( tmpFile);
+		boolean copied = false;
+		try {
+			byte[] buffer = new byte[ 65536];
+			int len;
+			while(( len = in.read( buffer)) > 0) {
+				out.write( buffer, 0, len);
+			}
+			copied = true;
+		} finally {
+			out.close();
+			if( !copied) {
+				tmpFile.delete();
+			}
+		}
+		if( !tmpFile.renameTo( file)) {
+			tmpFile.delete();
+			if( !file.exists()) {
+				throw new IOException("Unable to write raw file " + file);
+			}
+		}
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public boolean membershipTestHash( long hash) {
+		int offset = BlockedBloomFilter.BlockOffset( hash, numBlocks);
+		int h = (int) hash;
+		for(int i=0; i<nbHash; ++i) {
+			int bit = h >>> 23;
+			if( (words.get( offset + (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+			h *= BlockedBloomFilter.PROBE_MULTIPLIER;
+		}
+		return true;
+	}
+
+	public boolean membershipTestBytes( byte[] bytes, int off, int len) {
+		return membershipTestHash( BlockedBloomFilter.HashKey( bytes, off, len));
+	}
+
+	@Override
+	public boolean membershipTest( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		return membershipTestBytes( bytes, 0, bytes.length);
+	}
+
+	/**
+	 *  Copy the bits onto the heap, for a bloom which can be modified
+	 */
+	public BlockedBloomFilter toBlockedBloom() {
+		BlockedBloomFilter bloom = new BlockedBloomFilter( vectorSize, nbHash);
+		words.duplicate().get( bloom.bits);
+		return bloom;
+	}
+
+	@Override
+	public void add( Key key) {
+		throw new UnsupportedOperationException("Mapped bloom filters are read-only");
+	}
+
+	@Override
+	public void and( Filter filter) {
+		throw new UnsupportedOperationException("Mapped bloom filters are read-only");
+	}
+
+	@Override
+	public void or( Filter filter) {
+		throw new UnsupportedOperationException("Mapped bloom filters are read-only");
+	}
+
+	@Override
+	public void xor( Filter filter) {
+		throw new UnsupportedOperationException("Mapped bloom filters are read-only");
+	}
+
+	@Override
+	public void not() {
+		throw new UnsupportedOperationException("Mapped bloom filters are read-only");
+	}
+
+	@Override
+	public String toString() {
+		return "MappedBloomFilter( blocks = " + numBlocks + " , hashes = " + nbHash + " )";
+	}
+
+	/**
+	 *  Writes the same bytes as the equivalent BlockedBloomFilter
+	 */
+	@Override
+	public void write( DataOutput out) throws IOException {
+		out.write( toBlockedBloom().toBytes());
+	}
+
+	@Override
+	public void readFields( DataInput in) throws IOException {
+		throw new UnsupportedOperationException("Mapped bloom filters are read with Map()");
+	}
+
+}
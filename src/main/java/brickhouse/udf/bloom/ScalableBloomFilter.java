@@ -0,0 +1,354 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+
+/**
+ *  A scalable Bloom filter, as described by Almeida et al.,
+ *   which starts small and chains on larger slices as keys are added,
+ *   rather than being sized up front for the largest expected set.
+ *
+ *  Each slice is a BlockedBloomFilter with twice the capacity of the
+ *   one before, and a tighter false positive rate, so that the
+ *   combined rate stays under the target however many slices there are.
+ *   A key is in the filter if it is in any slice.
+ *
+ *  Slices are built the same way for the same initial capacity and target,
+ *   so filters can be or-ed slice by slice. A slice which would be
+ *   overfilled by the or is appended instead, so each slice stays within
+ *   its own rate; the rate of the result is then bounded by the sum of
+ *   the rates of the filters or-ed, rather than by the target.
+ *   Since a key may be in a different slice of each, and-ing and negation
+ *   are only possible while the filters still have a single slice.
+ */
+public class ScalableBloomFilter extends Filter {
+	/// "BBS" followed by the format version
+	public static final int FORMAT_MAGIC = 0x42425301;
+	public static final int DEFAULT_INITIAL_CAPACITY = 65536;
+	static final double TIGHTENING_RATIO = 0.5;
+	static final int GROWTH_FACTOR = 2;
+	private static final long SLICE_SEED = 0x9E3779B97F4A7C15L;
+
+	private int initialCapacity;
+	private double falsePositiveProbability;
+	private List<BlockedBloomFilter> slices = new ArrayList<BlockedBloomFilter>();
+	private List<Integer> sliceCounts = new ArrayList<Integer>();
+	/// The number of each slice, which decides its size, rate and rehash
+	private List<Integer> sliceNumbers = new ArrayList<Integer>();
+
+
+	/** Default constructor - use with readFields */
+	public ScalableBloomFilter() {
+		super();
+	}
+
+	public ScalableBloomFilter( int initialCapacity, double falsePositiveProbability) {
+		super();
+		this.initialCapacity = initialCapacity;
+		this.falsePositiveProbability = falsePositiveProbability;
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		addSlice();
+	}
+
+	public int getInitialCapacity() {
+		return initialCapacity;
+	}
+
+	public double getFalsePositiveProbability() {
+		return falsePositiveProbability;
+	}
+
+	public int getNumSlices() {
+		return slices.size();
+	}
+
+	/**
+	 *  Number of keys a slice with the given number can hold
+	 *   before the next one is started
+	 */
+	int getSliceCapacity( int slice) {
+		return (int) Math.min( (long) initialCapacity << Math.min( slice, 32), Integer.MAX_VALUE);
+	}
+
+	private BlockedBloomFilter newSlice( int slice) {
+		double sliceProb = falsePositiveProbability*(1.0 - TIGHTENING_RATIO)*Math.pow( TIGHTENING_RATIO, slice);
+		int k = (int)Math.ceil( -(Math.log( sliceProb) / Math.log( 2)));
+		double numBits = Math.ceil( getSliceCapacity( slice)*(k / Math.log( 2))*BloomFactory.BLOCKED_SIZE_FACTOR);
+		return new BlockedBloomFilter( (int) Math.min( numBits, BlockedBloomFilter.MAX_VECTOR_SIZE), k);
+	}
+
+	private void addSlice() {
+		int number = 0;
+		for( int sliceNumber : sliceNumbers) {
+			number = Math.max( number, sliceNumber + 1);
+		}
+		slices.add( newSlice( number));
+		sliceCounts.add( 0);
+		sliceNumbers.add( number);
+		updateSize();
+	}
+
+	private void updateSize() {
+		int totalSize = 0;
+		for( BlockedBloomFilter slice : slices) {
+			totalSize = (int) Math.min( (long) totalSize + slice.getVectorSize(), Integer.MAX_VALUE);
+		}
+		this.vectorSize = totalSize;
+		this.nbHash = slices.get( 0).getNumHashes();
+	}
+
+	/**
+	 *  Rehash for each slice after the first, so that a key's probes
+	 *   in one slice are independent of its probes in another.
+	 */
+	static long SliceHash( long hash, int slice) {
+		if( slice == 0) {
+			return hash;
+		}
+		long h = hash ^ ( slice*SLICE_SEED);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public void addHash( long hash) {
+		if( membershipTestHash( hash)) {
+			/// Already (probably) here; don't use up the slice's capacity
+			return;
+		}
+		int last = slices.size() - 1;
+		if( sliceCounts.get( last) >= getSliceCapacity( sliceNumbers.get( last))) {
+			addSlice();
+			++last;
+		}
+		slices.get( last).addHash( SliceHash( hash, sliceNumbers.get( last)));
+		sliceCounts.set( last, sliceCounts.get( last) + 1);
+	}
+
+	public boolean membershipTestHash( long hash) {
+		/// Later slices are larger, and hold most of the keys
+		for(int i=slices.size() - 1; i >= 0; --i) {
+			if( slices.get( i).membershipTestHash( SliceHash( hash, sliceNumbers.get( i)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void addBytes( byte[] bytes, int off, int len) {
+		addHash( BlockedBloomFilter.HashKey( bytes, off, len));
+	}
+
+	public boolean membershipTestBytes( byte[] bytes, int off, int len) {
+		return membershipTestHash( BlockedBloomFilter.HashKey( bytes, off, len));
+	}
+
+	@Override
+	public void add( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		addBytes( bytes, 0, bytes.length);
+	}
+
+	@Override
+	public boolean membershipTest( Key key) {
+		if( key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		byte[] bytes = key.getBytes();
+		return membershipTestBytes( bytes, 0, bytes.length);
+	}
+
+	private ScalableBloomFilter checkCompatible( Filter filter, String op) {
+		if( !(filter instanceof ScalableBloomFilter)) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		ScalableBloomFilter other = (ScalableBloomFilter) filter;
+		if( other.initialCapacity != this.initialCapacity
+				|| other.falsePositiveProbability != this.falsePositiveProbability) {
+			throw new IllegalArgumentException("filters cannot be " + op);
+		}
+		return other;
+	}
+
+	private ScalableBloomFilter checkSingleSlice( Filter filter, String op) {
+		ScalableBloomFilter other = checkCompatible( filter, op);
+		if( this.slices.size() != 1 || other.slices.size() != 1) {
+			throw new IllegalArgumentException("scalable filters with more than one slice cannot be " + op);
+		}
+		return other;
+	}
+
+	/**
+	 *  Or each slice of the other filter into a slice with the same number,
+	 *   if their union still fits in its capacity, and otherwise append a copy
+	 *   of it. Since the two filters may share keys, the count for a merged
+	 *   slice is estimated from its bits.
+	 */
+	@Override
+	public void or( Filter filter) {
+		ScalableBloomFilter other = checkCompatible( filter, "or-ed");
+		for(int i=0; i<other.slices.size(); ++i) {
+			BlockedBloomFilter otherSlice = other.slices.get( i);
+			int number = other.sliceNumbers.get( i);
+			int capacity = getSliceCapacity( number);
+			boolean merged = false;
+			for(int j=0; j<slices.size() && !merged; ++j) {
+				if( sliceNumbers.get( j) == number) {
+					double unionCount = slices.get( j).estimateUnionCount( otherSlice);
+					if( unionCount <= capacity) {
+						slices.get( j).or( otherSlice);
+						sliceCounts.set( j, (int) Math.round( unionCount));
+						merged = true;
+					}
+				}
+			}
+			if( !merged) {
+				BlockedBloomFilter copy = newSlice( number);
+				copy.or( otherSlice);
+				slices.add( copy);
+				sliceCounts.add( other.sliceCounts.get( i));
+				sliceNumbers.add( number);
+			}
+		}
+		updateSize();
+	}
+
+	@Override
+	public void and( Filter filter) {
+		ScalableBloomFilter other = checkSingleSlice( filter, "and-ed");
+		slices.get( 0).and( other.slices.get( 0));
+		sliceCounts.set( 0, (int) Math.min( Math.round( slices.get( 0).estimateCount()), getSliceCapacity( sliceNumbers.get( 0))));
+	}
+
+	@Override
+	public void xor( Filter filter) {
+		ScalableBloomFilter other = checkSingleSlice( filter, "xor-ed");
+		slices.get( 0).xor( other.slices.get( 0));
+	}
+
+	@Override
+	public void not() {
+		if( slices.size() != 1) {
+			throw new IllegalArgumentException("scalable filters with more than one slice cannot be negated");
+		}
+		slices.get( 0).not();
+		/// The slice is now full, so further keys start a new slice
+		sliceCounts.set( 0, getSliceCapacity( sliceNumbers.get( 0)));
+	}
+
+	@Override
+	public String toString() {
+		return "ScalableBloomFilter( slices = " + slices.size() + " , bits = " + vectorSize + " )";
+	}
+
+	// Writable
+
+	public int getSerializedSize() {
+		int size = 20;
+		for( BlockedBloomFilter slice : slices) {
+			size += 8 + slice.getSerializedSize();
+		}
+		return size;
+	}
+
+	@Override
+	public void write( DataOutput out) throws IOException {
+		out.write( toBytes());
+	}
+
+	@Override
+	public void readFields( DataInput in) throws IOException {
+		int magic = in.readInt();
+		if( magic != FORMAT_MAGIC) {
+			throw new IOException("Not a scalable bloom filter; unexpected format " + Integer.toHexString( magic));
+		}
+		this.initialCapacity = in.readInt();
+		this.falsePositiveProbability = in.readDouble();
+		int numSlices = in.readInt();
+		this.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		slices.clear();
+		sliceCounts.clear();
+		sliceNumbers.clear();
+		for(int i=0; i<numSlices; ++i) {
+			sliceCounts.add( in.readInt());
+			sliceNumbers.add( in.readInt());
+			BlockedBloomFilter slice = new BlockedBloomFilter();
+			slice.readFields( in);
+			slices.add( slice);
+		}
+		updateSize();
+	}
+
+	/**
+	 *  Layout is the header, then a count, a slice number and
+	 *   a serialized BlockedBloomFilter for each slice.
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buff = ByteBuffer.allocate( getSerializedSize());
+		buff.putInt( FORMAT_MAGIC);
+		buff.putInt( initialCapacity);
+		buff.putDouble( falsePositiveProbability);
+		buff.putInt( slices.size());
+		for(int i=0; i<slices.size(); ++i) {
+			buff.putInt( sliceCounts.get( i));
+			buff.putInt( sliceNumbers.get( i));
+			buff.put( slices.get( i).toBytes());
+		}
+		return buff.array();
+	}
+
+	public static ScalableBloomFilter FromBytes( byte[] bytes, int off, int len) throws IOException {
+		if( len < 20) {
+			throw new IOException("Scalable bloom filter is truncated");
+		}
+		ByteBuffer buff = ByteBuffer.wrap( bytes, off, len);
+		if( buff.getInt() != FORMAT_MAGIC) {
+			throw new IOException("Not a scalable bloom filter");
+		}
+		ScalableBloomFilter filter = new ScalableBloomFilter();
+		filter.initialCapacity = buff.getInt();
+		filter.falsePositiveProbability = buff.getDouble();
+		filter.hashType = BloomFactory.DEFAULT_HASH_TYPE;
+		int numSlices = buff.getInt();
+		for(int i=0; i<numSlices; ++i) {
+			filter.sliceCounts.add( buff.getInt());
+			filter.sliceNumbers.add( buff.getInt());
+			BlockedBloomFilter slice = BlockedBloomFilter.FromBytes( bytes, buff.position(), buff.limit() - buff.position());
+			buff.position( buff.position() + slice.getSerializedSize());
+			filter.slices.add( slice);
+		}
+		filter.updateSize();
+		return filter;
+	}
+
+}
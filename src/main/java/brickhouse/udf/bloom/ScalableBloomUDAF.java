@@ -0,0 +1,61 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.util.bloom.Filter;
+
+
+/**
+ *  Construct a scalable bloom, which starts small and adds slices as keys
+ *   are added, so small groups don't ship a bloom sized for the largest.
+ *
+ *  Partials are or-ed slice by slice, but a slice which would be overfilled
+ *   is appended instead, so the false positive rate of the result is bounded
+ *   by the sum of the rates of its partials. Scalable blooms with more than
+ *   one slice can't be and-ed or negated, and aren't memory-mapped
+ *   by distributed_bloom.
+ */
+@Description(name="scalable_bloom",
+    value = "_FUNC_(x, initial_keys, false_pos_prob) - Constructs a scalable bloom filter by aggregating a set of string or binary keys, and returns it as binary. "
+    + " The first slice holds initial_keys keys, 65536 by default, and each slice after it twice as many as the one before. "
+)
+public class ScalableBloomUDAF extends BloomBinUDAF {
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+          throws SemanticException {
+      checkParameters( "scalable_bloom", parameters);
+      return new ScalableBloomUDAFEvaluator();
+  }
+
+
+  public static class ScalableBloomUDAFEvaluator extends BloomBinUDAFEvaluator {
+
+    @Override
+    protected Filter newBloom() {
+      int initialKeys = ( expectedKeys > 0) ? expectedKeys : ScalableBloomFilter.DEFAULT_INITIAL_CAPACITY;
+      return new ScalableBloomFilter( initialKeys, falsePositiveProb);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package brickhouse.udf.filter;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.IOException;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+
+/**
+ *   UDF to access an XOR filter stored in a file in distributed cache,
+ *    in the same way as distributed_bloom.
+ *
+ *   The filter is loaded once per JVM, and registered under the file name,
+ *    which is returned for use with filter_contains.
+ *
+ *  select *
+ *    from my_big_table
+ *    where filter_contains( key, distributed_filter('myfilter') ) == true;
+ */
+@Description(
+		 name = "distributed_filter",
+		 value =  " Loads an XOR filter from a file in distributed cache, and makes available as a named filter. \n " +
+		          "_FUNC_(string filename) "
+		)
+@UDFType(deterministic=false)
+public class DistributedFilterUDF extends GenericUDF {
+	private StringObjectInspector fnameInspector;
+
+
+	public String evaluate( String filename) throws HiveException {
+		try {
+			if( FilterFactory.GetNamedFilter( filename) == null) {
+				FilterFactory.PutNamedFilter( filename, FilterFactory.LoadFilter( filename));
+			}
+			return filename;
+		} catch(IOException ioExc) {
+			throw new HiveException( "Unable to load filter " + filename, ioExc);
+		}
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		return evaluate( fnameInspector.getPrimitiveJavaObject( arg0[0].get()));
+	}
+
+	@Override
+	public String getDisplayString(String[] arg0) {
+		return "distributed_filter( " + arg0[0] + " ) ";
+	}
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		if( arg0.length != 1
+				|| arg0[0].getCategory() != Category.PRIMITIVE
+				|| ((PrimitiveObjectInspector) arg0[0]).getPrimitiveCategory() != PrimitiveCategory.STRING) {
+			throw new UDFArgumentException("distributed_filter takes a string filename");
+		}
+		this.fnameInspector = (StringObjectInspector) arg0[0];
+		return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+	}
+
+}
@@ -0,0 +1,144 @@
+package brickhouse.udf.filter;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.IOException;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+
+import brickhouse.udf.bloom.KeyBytesReader;
+
+/**
+ *   Returns true if the XOR filter (probably) contains the key.
+ *
+ *   The filter may be a name from distributed_filter, a Base64 string,
+ *    or the binary from xor_filter, which is read in place.
+ *
+ *   When the filter is a constant, such as an inline literal,
+ *    it is looked up on the first row and kept for the rest,
+ *    rather than comparing the whole serialized filter for every row.
+ *    Keys of any primitive type are read as by bloom_contains.
+ */
+@Description(
+		 name = "filter_contains",
+		 value =  " Returns true if the referenced XOR filter contains the key.. \n " +
+		          "_FUNC_(key, string filter) \n" +
+		          "_FUNC_(key, binary filter) "
+		)
+public class FilterContainsUDF extends GenericUDF {
+	private KeyBytesReader keyReader;
+	private StringObjectInspector filterStringInspector;
+	private BinaryObjectInspector filterBinaryInspector;
+	private boolean isConstantFilter;
+	/// The filter for a constant argument, once it has been looked up
+	private XorFilter constantFilter;
+	/// An inline Base64 filter column is usually the same for every row
+	private String lastFilterStr;
+	private XorFilter lastFilter;
+
+
+	@Override
+	public Object evaluate( DeferredObject[] arguments) throws HiveException {
+		if( !keyReader.read( arguments[0].get())) {
+			return null;
+		}
+		XorFilter filter = constantFilter;
+		if( filter == null) {
+			filter = getFilter( arguments[1].get());
+			if( filter == null) {
+				return null;
+			}
+			if( isConstantFilter) {
+				constantFilter = filter;
+			}
+		}
+		return filter.containsBytes( keyReader.getBytes(), 0, keyReader.getLength());
+	}
+
+	private XorFilter getFilter( Object filterObj) throws HiveException {
+		if( filterStringInspector != null) {
+			String filterStr = filterStringInspector.getPrimitiveJavaObject( filterObj);
+			if( filterStr == null) {
+				return null;
+			}
+			XorFilter filter = FilterFactory.GetNamedFilter( filterStr);
+			if( filter == null) {
+				if( !filterStr.equals( lastFilterStr)) {
+					try {
+						lastFilter = FilterFactory.GetFilter( filterStr);
+					} catch(IOException ioExc) {
+						throw new HiveException("Unable to find filter " + filterStr, ioExc);
+					}
+					lastFilterStr = filterStr;
+				}
+				filter = lastFilter;
+			}
+			return filter;
+		} else {
+			BytesWritable filterBytes = filterBinaryInspector.getPrimitiveWritableObject( filterObj);
+			if( filterBytes == null) {
+				return null;
+			}
+			try {
+				/// Only the header is read; the fingerprints are used in place
+				return XorFilter.FromBytes( filterBytes.getBytes(), 0, filterBytes.getLength());
+			} catch(IOException ioExc) {
+				throw new HiveException("Unable to read binary filter", ioExc);
+			}
+		}
+	}
+
+
+	@Override
+	public String getDisplayString( String[] arg0) {
+		return "filter_contains( " + arg0[0] + " , " + arg0[1] + " )";
+	}
+
+
+	@Override
+	public ObjectInspector initialize( ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		if( arg0.length != 2) {
+			throw new UDFArgumentException("filter_contains takes a primitive key and a string or binary filter");
+		}
+		this.keyReader = new KeyBytesReader( arg0[0]);
+		this.filterStringInspector = null;
+		this.filterBinaryInspector = null;
+		if( arg0[1] instanceof StringObjectInspector) {
+			this.filterStringInspector = (StringObjectInspector) arg0[1];
+		} else if( arg0[1] instanceof BinaryObjectInspector) {
+			this.filterBinaryInspector = (BinaryObjectInspector) arg0[1];
+		} else {
+			throw new UDFArgumentException("filter_contains takes a primitive key and a string or binary filter");
+		}
+		this.isConstantFilter = ( arg0[1] instanceof ConstantObjectInspector);
+		this.constantFilter = null;
+
+		return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
+	}
+
+}
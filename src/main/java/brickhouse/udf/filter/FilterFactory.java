@@ -0,0 +1,119 @@
+package brickhouse.udf.filter;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.log4j.Logger;
+
+import brickhouse.udf.bloom.MappedBloomFilter;
+
+/**
+ *  Loading and naming of filters, following the conventions of
+ *   BloomFactory and distributed_bloom.
+ *
+ *  Filters loaded from the distributed cache are registered by file name.
+ *   Files in the raw binary format are memory-mapped; Base64 files,
+ *   as written for a binary column by INSERT OVERWRITE DIRECTORY,
+ *   are decoded once to a raw copy in MappedBloomFilter.LocalRawDir(),
+ *   which is mapped and shared by the other task JVMs of the job on the node.
+ */
+public class FilterFactory {
+	private static final Logger LOG = Logger.getLogger( FilterFactory.class);
+	private static ConcurrentMap<String,XorFilter> localFilterMap = new ConcurrentHashMap<String,XorFilter>();
+
+
+	public static XorFilter GetNamedFilter( String name) {
+		return localFilterMap.get( name);
+	}
+
+	public static void PutNamedFilter( String name, XorFilter filter) {
+		localFilterMap.put( name, filter);
+	}
+
+	/**
+	 *   Get a filter by name, or failing that, parse it from Base64
+	 */
+	public static XorFilter GetFilter( String str) throws IOException {
+		XorFilter filter = GetNamedFilter( str);
+		if( filter == null) {
+			byte[] decoded = Base64.decodeBase64( str.getBytes());
+			filter = XorFilter.FromBytes( decoded, 0, decoded.length);
+		}
+		return filter;
+	}
+
+	/**
+	 *  Load a filter from a file, or a directory containing a single file.
+	 *   A Base64 file is decoded as it is streamed to the raw copy,
+	 *   so neither the encoded nor the decoded filter is held on the heap.
+	 */
+	public static XorFilter LoadFilter( String filename) throws IOException {
+		File filterFile = MappedBloomFilter.FindCachedFile( filename);
+		if( IsRawFilterFile( filterFile)) {
+			LOG.info(" Mapping raw filter " + filterFile);
+			return MapFilter( filterFile);
+		}
+		File rawFile = LocalRawFilterFile( filterFile);
+		if( !rawFile.exists()) {
+			InputStream decoded = new Base64InputStream( new FileInputStream( filterFile));
+			try {
+				MappedBloomFilter.WriteRawFile( decoded, rawFile);
+			} finally {
+				decoded.close();
+			}
+			if( !IsRawFilterFile( rawFile)) {
+				rawFile.delete();
+				throw new IOException( filterFile + " does not contain an XOR filter");
+			}
+		}
+		LOG.info(" Mapping local raw copy " + rawFile + " of filter " + filterFile);
+		return MapFilter( rawFile);
+	}
+
+	static boolean IsRawFilterFile( File file) throws IOException {
+		if( file.length() < XorFilter.HEADER_SIZE) {
+			return false;
+		}
+		byte[] header = new byte[ XorFilter.HEADER_SIZE];
+		RandomAccessFile raf = new RandomAccessFile( file, "r");
+		try {
+			raf.readFully( header);
+		} finally {
+			raf.close();
+		}
+		return XorFilter.IsXorFilter( header, 0, header.length);
+	}
+
+	public static XorFilter MapFilter( File file) throws IOException {
+		return XorFilter.FromBuffer( MappedBloomFilter.MapFile( file));
+	}
+
+	private static File LocalRawFilterFile( File filterFile) throws IOException {
+		return MappedBloomFilter.LocalRawFile( filterFile, "brickhouse-filter-", ".xor");
+	}
+
+}
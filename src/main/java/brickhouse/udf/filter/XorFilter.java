@@ -0,0 +1,268 @@
+package brickhouse.udf.filter;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import brickhouse.analytics.uniques.XxHash64;
+
+/**
+ *  An XOR filter, as described by Graf and Lemire, for static sets of keys.
+ *
+ *  Each key maps to one 8-bit fingerprint slot in each of three blocks,
+ *   and is in the set if the XOR of those three slots is its fingerprint.
+ *   That is three memory accesses per lookup, at about 9.9 bits per key,
+ *   for a false positive rate of 1/256; a bloom filter needs about 40%
+ *   more space, and k probes, for a similar rate.
+ *
+ *  Unlike a bloom, the filter has to be built from the whole set at once,
+ *   and keys can't be added afterwards.
+ *
+ *  The fingerprints are held in a ByteBuffer, so a filter can be read
+ *   directly from a memory-mapped file.
+ *
+ *  Layout is
+ *  <pre>
+ *    int     FORMAT_MAGIC
+ *    long    seed
+ *    int     block length
+ *    byte*   3 * block length fingerprints
+ *  </pre>
+ */
+public class XorFilter {
+	/// "BXF" followed by the format version
+	public static final int FORMAT_MAGIC = 0x42584601;
+	public static final int HEADER_SIZE = 16;
+	static final int MAX_ATTEMPTS = 100;
+	/// Filters are mapped with a single buffer, so must fit in 2GB
+	static final long MAX_FINGERPRINTS = Integer.MAX_VALUE - HEADER_SIZE;
+
+	private final long seed;
+	private final int blockLength;
+	private final ByteBuffer fingerprints;
+
+
+	private XorFilter( long seed, int blockLength, ByteBuffer fingerprints) {
+		this.seed = seed;
+		this.blockLength = blockLength;
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 *  Hash of the key bytes; the same hash is used to build the filter
+	 */
+	public static long HashKey( byte[] bytes, int off, int len) {
+		return XxHash64.hash( bytes, off, len, 0);
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	public int getSerializedSize() {
+		return HEADER_SIZE + 3*blockLength;
+	}
+
+	public boolean containsHash( long keyHash) {
+		long hash = Mix( keyHash + seed);
+		int f = Fingerprint( hash);
+		f ^= fingerprints.get( H0( hash, blockLength))
+				^ fingerprints.get( H1( hash, blockLength))
+				^ fingerprints.get( H2( hash, blockLength));
+		return (f & 0xFF) == 0;
+	}
+
+	public boolean containsBytes( byte[] bytes, int off, int len) {
+		return containsHash( HashKey( bytes, off, len));
+	}
+
+	static long Mix( long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static int Fingerprint( long hash) {
+		return (int)( hash ^ ( hash >>> 32));
+	}
+
+	/**
+	 *  Map 32 bits of the hash onto [0,n) with a multiply-shift
+	 */
+	private static int Reduce( int hash, int n) {
+		return (int)( ((hash & 0xFFFFFFFFL)*n) >>> 32);
+	}
+
+	static int H0( long hash, int blockLength) {
+		return Reduce( (int) hash, blockLength);
+	}
+
+	static int H1( long hash, int blockLength) {
+		return Reduce( (int) Long.rotateLeft( hash, 21), blockLength) + blockLength;
+	}
+
+	static int H2( long hash, int blockLength) {
+		return Reduce( (int) Long.rotateLeft( hash, 42), blockLength) + 2*blockLength;
+	}
+
+	/**
+	 *  Build a filter from the hashes of a set of keys.
+	 *
+	 * @param keyHashes  hashes from HashKey; sorted and deduplicated in place
+	 * @param len  number of hashes in the array to use
+	 */
+	public static XorFilter Build( long[] keyHashes, int len) {
+		Arrays.sort( keyHashes, 0, len);
+		int size = 0;
+		for(int i=0; i<len; ++i) {
+			if( size == 0 || keyHashes[i] != keyHashes[ size - 1]) {
+				keyHashes[ size++] = keyHashes[i];
+			}
+		}
+
+		long capacity = 32 + (long) Math.ceil( 1.23*size);
+		if( capacity > MAX_FINGERPRINTS) {
+			throw new IllegalStateException("An XOR filter for " + size + " keys would be over 2GB;"
+					+ " split the keys into several filters");
+		}
+		int blockLength = (int)( capacity / 3);
+		int arrayLength = blockLength*3;
+		int[] counts = new int[ arrayLength];
+		long[] xorHashes = new long[ arrayLength];
+		int[] queue = new int[ arrayLength];
+		long[] stackHashes = new long[ size];
+		int[] stackIndexes = new int[ size];
+
+		long seed = 0x726F6F7420616E64L;
+		for(int attempt=0; attempt < MAX_ATTEMPTS; ++attempt) {
+			seed = Mix( seed + attempt + 1);
+			Arrays.fill( counts, 0);
+			Arrays.fill( xorHashes, 0);
+			for(int i=0; i<size; ++i) {
+				long hash = Mix( keyHashes[i] + seed);
+				int h0 = H0( hash, blockLength);
+				int h1 = H1( hash, blockLength);
+				int h2 = H2( hash, blockLength);
+				counts[h0]++;
+				xorHashes[h0] ^= hash;
+				counts[h1]++;
+				xorHashes[h1] ^= hash;
+				counts[h2]++;
+				xorHashes[h2] ^= hash;
+			}
+
+			/// Peel off slots which only one key maps to
+			int queueSize = 0;
+			for(int i=0; i<arrayLength; ++i) {
+				if( counts[i] == 1) {
+					queue[ queueSize++] = i;
+				}
+			}
+			int stackSize = 0;
+			while( queueSize > 0) {
+				int index = queue[ --queueSize];
+				if( counts[ index] != 1) {
+					continue;
+				}
+				long hash = xorHashes[ index];
+				stackHashes[ stackSize] = hash;
+				stackIndexes[ stackSize] = index;
+				++stackSize;
+				int[] slots = { H0( hash, blockLength), H1( hash, blockLength), H2( hash, blockLength) };
+				for( int slot : slots) {
+					counts[ slot]--;
+					xorHashes[ slot] ^= hash;
+					if( counts[ slot] == 1) {
+						queue[ queueSize++] = slot;
+					}
+				}
+			}
+			if( stackSize == size) {
+				byte[] fingerprints = new byte[ arrayLength];
+				for(int i=stackSize - 1; i >= 0; --i) {
+					long hash = stackHashes[i];
+					int index = stackIndexes[i];
+					int f = Fingerprint( hash)
+							^ fingerprints[ H0( hash, blockLength)]
+							^ fingerprints[ H1( hash, blockLength)]
+							^ fingerprints[ H2( hash, blockLength)];
+					/// The slot itself is still zero, so doesn't affect the XOR
+					fingerprints[ index] = (byte) f;
+				}
+				return new XorFilter( seed, blockLength, ByteBuffer.wrap( fingerprints));
+			}
+		}
+		throw new IllegalStateException("Unable to build an XOR filter for " + size + " keys; are there duplicate hashes?");
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buff = ByteBuffer.allocate( getSerializedSize());
+		buff.putInt( FORMAT_MAGIC);
+		buff.putLong( seed);
+		buff.putInt( blockLength);
+		ByteBuffer fpCopy = fingerprints.duplicate();
+		fpCopy.clear();
+		buff.put( fpCopy);
+		return buff.array();
+	}
+
+	/**
+	 *  Read a filter from a buffer in the serialized format,
+	 *   without copying the fingerprints.
+	 */
+	public static XorFilter FromBuffer( ByteBuffer buff) throws IOException {
+		if( buff.remaining() < HEADER_SIZE) {
+			throw new IOException("XOR filter is truncated");
+		}
+		int start = buff.position();
+		if( buff.getInt( start) != FORMAT_MAGIC) {
+			throw new IOException("Not an XOR filter; unexpected format " + Integer.toHexString( buff.getInt( start)));
+		}
+		long seed = buff.getLong( start + 4);
+		int blockLength = buff.getInt( start + 12);
+		if( blockLength < 0 || 3L*blockLength > MAX_FINGERPRINTS) {
+			throw new IOException("XOR filter is corrupt; block length is " + blockLength);
+		}
+		if( buff.remaining() < HEADER_SIZE + 3L*blockLength) {
+			throw new IOException("XOR filter is truncated");
+		}
+		ByteBuffer fpBuff = buff.duplicate();
+		fpBuff.position( start + HEADER_SIZE);
+		fpBuff.limit( start + HEADER_SIZE + 3*blockLength);
+		return new XorFilter( seed, blockLength, fpBuff.slice());
+	}
+
+	public static XorFilter FromBytes( byte[] bytes, int off, int len) throws IOException {
+		return FromBuffer( ByteBuffer.wrap( bytes, off, len));
+	}
+
+	public static boolean IsXorFilter( byte[] bytes, int off, int len) {
+		return len >= HEADER_SIZE && ByteBuffer.wrap( bytes, off, len).getInt() == FORMAT_MAGIC;
+	}
+
+	@Override
+	public String toString() {
+		return "XorFilter( block length = " + blockLength + " )";
+	}
+
+}
@@ -0,0 +1,193 @@
+package brickhouse.udf.filter;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+
+/**
+ *  Build an XOR filter by aggregating over a set of keys,
+ *   for use with filter_contains.
+ *
+ *  Since an XOR filter must be built from the whole set at once,
+ *   partials are the sorted, distinct 64 bit hashes of their keys,
+ *   and the filter is only built in the final step.
+ *
+ *  insert overwrite local directory denylist
+ *  select xor_filter( ks_uid )
+ *   from denied_users;
+ *
+ *  add file denylist;
+ *
+ *  select *
+ *   from big_table
+ *   where !filter_contains( ks_uid, distributed_filter('denylist'));
+ */
+@Description(name="xor_filter",
+    value = "_FUNC_(x) - Constructs an XOR filter, a smaller alternative to a bloom for static sets, from a set of string or binary keys, and returns it as binary "
+)
+public class XorFilterUDAF extends AbstractGenericUDAFResolver {
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+          throws SemanticException {
+      if( parameters.length != 1) {
+          throw new SemanticException("xor_filter takes a single key");
+      }
+      String typeName = parameters[0].getTypeName();
+      if( !typeName.equals("string") && !typeName.equals("binary")) {
+          throw new SemanticException("xor_filter UDAF only takes String or binary keys; not " + typeName);
+      }
+      return new XorFilterUDAFEvaluator();
+  }
+
+
+  static class HashBuffer implements AggregationBuffer {
+      long[] hashes = new long[ 1024];
+      int size = 0;
+
+      void add( long hash) {
+          if( size == hashes.length) {
+              hashes = Arrays.copyOf( hashes, hashes.length*2);
+          }
+          hashes[ size++] = hash;
+      }
+
+      /**
+       *  Sort and remove duplicates, to keep partials small
+       */
+      void compact() {
+          Arrays.sort( hashes, 0, size);
+          int unique = 0;
+          for(int i=0; i<size; ++i) {
+              if( unique == 0 || hashes[i] != hashes[ unique - 1]) {
+                  hashes[ unique++] = hashes[i];
+              }
+          }
+          size = unique;
+      }
+
+      byte[] toBytes() {
+          ByteBuffer buff = ByteBuffer.allocate( size*8);
+          buff.asLongBuffer().put( hashes, 0, size);
+          return buff.array();
+      }
+
+      void merge( byte[] bytes) {
+          int numHashes = bytes.length/8;
+          if( size + numHashes > hashes.length) {
+              hashes = Arrays.copyOf( hashes, Math.max( hashes.length*2, size + numHashes));
+          }
+          ByteBuffer.wrap( bytes).asLongBuffer().get( hashes, size, numHashes);
+          size += numHashes;
+      }
+  }
+
+
+  public static class XorFilterUDAFEvaluator extends GenericUDAFEvaluator {
+	  private PrimitiveObjectInspector inputOI;
+	  private BinaryObjectInspector partialOI;
+
+
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+        throws HiveException {
+      super.init(m, parameters);
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+    	  //// iterate() gets called.. string or binary keys are passed in
+    	  this.inputOI = (PrimitiveObjectInspector) parameters[0];
+      } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
+    	  /// merge() gets called ... binary hashes are passed in ..
+    	  this.partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new HashBuffer();
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+        throws HiveException {
+      Object keyObj = parameters[0];
+      if (keyObj != null) {
+          HashBuffer myagg = (HashBuffer) agg;
+          if( inputOI instanceof BinaryObjectInspector) {
+              BytesWritable bytes = ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject( keyObj);
+              myagg.add( XorFilter.HashKey( bytes.getBytes(), 0, bytes.getLength()));
+          } else {
+              Text text = ((StringObjectInspector) inputOI).getPrimitiveWritableObject( keyObj);
+              myagg.add( XorFilter.HashKey( text.getBytes(), 0, text.getLength()));
+          }
+      }
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+        throws HiveException {
+        if( partial != null) {
+            byte[] partialBytes = partialOI.getPrimitiveJavaObject( partial);
+            if( partialBytes != null) {
+                ((HashBuffer) agg).merge( partialBytes);
+            }
+        }
+    }
+
+    @Override
+    public void reset(AggregationBuffer buff) throws HiveException {
+      ((HashBuffer) buff).size = 0;
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      HashBuffer myagg = (HashBuffer) agg;
+      try {
+          return XorFilter.Build( myagg.hashes, myagg.size).toBytes();
+      } catch(IllegalStateException illState) {
+          throw new HiveException( illState);
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      HashBuffer myagg = (HashBuffer) agg;
+      myagg.compact();
+      return myagg.toBytes();
+    }
+  }
+
+
+}
@@ -57,6 +57,13 @@ public class CombineHyperLogLogUDF extends GenericUDF {
 		  byte[] bref2 = this.binary2Inspector.getPrimitiveJavaObject(blobObj2);
 		
 		  if(bref1 != null && bref2 != null) {
+			  if( HLLRegisters.IsHLLRegisters( bref1) && HLLRegisters.IsHLLRegisters( bref2)) {
+				  HLLRegisters merged = HLLRegisters.FromBytes( bref1);
+				  merged.merge( bref2);
+				  return merged.getBytes();
+			  } else if( HLLRegisters.IsHLLRegisters( bref1) || HLLRegisters.IsHLLRegisters( bref2)) {
+				  throw new HiveException("combine_hyperloglog can not combine a HyperLogLog with a legacy HyperLogLogPlus");
+			  }
 			  HyperLogLogPlus hll1 = HyperLogLogPlus.Builder.build( bref1 );
 			  HyperLogLogPlus hll2 = HyperLogLogPlus.Builder.build( bref2 );
 		  
@@ -56,6 +56,9 @@ public class EstimateCardinalityUDF extends GenericUDF {
 		  byte[] bref = this.binaryInspector.getPrimitiveJavaObject(blobObj);
 		  if(bref == null)
 			  return null;
+		  if( HLLRegisters.IsHLLRegisters( bref)) {
+			  return HLLRegisters.Cardinality( bref);
+		  }
 		  HyperLogLogPlus hll = HyperLogLogPlus.Builder.build( bref );
 		  
 		  
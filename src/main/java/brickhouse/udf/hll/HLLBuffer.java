@@ -26,13 +26,37 @@ import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
 import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 import com.clearspring.analytics.stream.cardinality.ICardinality;
 
+/**
+ *  Aggregation buffer for the hyperloglog UDAFs.
+ *
+ *  By default estimators are stream-lib HyperLogLogPlus, so blobs stay
+ *   compatible with ones already stored. hyperloglog_registers asks for
+ *   HLLRegisters instead, which merge serialized partials directly into
+ *   their registers. The two formats can't be merged with each other.
+ *
+ *  stream-lib 2.3.0 can only be offered objects, which it hashes as
+ *   toString().getBytes(), or byte arrays over their whole length. To
+ *   avoid building a String or Long for every number, its decimal digits
+ *   are written into a reused array of exactly the right length, which
+ *   hashes the same. Binary values are only copied when they don't
+ *   fill their buffer exactly.
+ */
 public class HLLBuffer implements AggregationBuffer {
   private static final Logger LOG = Logger.getLogger(HLLBuffer.class);
-  private ICardinality hll;
+  private HLLRegisters hll;
+  /// Only used for estimators in the stream-lib format
+  private ICardinality legacyHll;
   private int precision;
+  private int requestedPrecision;
+  private int sparsePrecision;
+  private HLLRegisters.MemoryBudget budget;
+  /// Reused digit arrays, indexed by length; Long.MIN_VALUE takes 20 characters
+  private final byte[][] digitBuffers = new byte[21][];
+  private byte[] bytesBuffer;
   
   public HLLBuffer() {
     hll = null;
+    legacyHll = null;
     precision = 0;
   }
   
@@ -41,17 +65,105 @@ public class HLLBuffer implements AggregationBuffer {
   }
 
   public void init(int precision) {
+    init(precision, 0);
+  }
+
+  /**
+   *  Start a stream-lib HyperLogLogPlus, where a sparsePrecision of 0
+   *   disables the sparse representation.
+   */
+  public void init(int precision, int sparsePrecision) {
+    if (hll != null) {
+      hll.releaseBudget();
+      hll = null;
+    }
+    legacyHll = new HyperLogLogPlus(precision, sparsePrecision);
+    this.precision = precision;
+  }
+
+  public void initRegisters(int precision, int sparsePrecision, HLLRegisters.MemoryBudget budget) {
+    if (hll != null && this.sparsePrecision == sparsePrecision && this.budget == budget
+        && this.requestedPrecision == precision) {
+      hll.clear();
+    } else {
+      if (hll != null) {
+        hll.releaseBudget();
+      }
+      hll = new HLLRegisters(precision, sparsePrecision, budget);
+      this.requestedPrecision = precision;
+      this.sparsePrecision = sparsePrecision;
+      this.budget = budget;
+    }
+    legacyHll = null;
     this.precision = precision;
-    hll = new HyperLogLogPlus(precision);
   }
 
   public void reset() {
-    hll = null;
+    if (hll != null) {
+      hll.clear();
+    }
+    legacyHll = null;
     precision = 0;
   }
 
   public void addItem(String str) {
-    hll.offer(str);
+    if (legacyHll != null) {
+      legacyHll.offer(str);
+    } else {
+      hll.addItem(str);
+    }
+  }
+
+  public void addLong(long val) {
+    if (legacyHll != null) {
+      legacyHll.offer(DecimalBytes(val, digitBuffers));
+    } else {
+      hll.addLong(val);
+    }
+  }
+
+  public void addBytes(byte[] bytes, int off, int len) {
+    if (legacyHll != null) {
+      if (off == 0 && len == bytes.length) {
+        legacyHll.offer(bytes);
+      } else {
+        if (bytesBuffer == null || bytesBuffer.length != len) {
+          bytesBuffer = new byte[len];
+        }
+        System.arraycopy(bytes, off, bytesBuffer, 0, len);
+        legacyHll.offer(bytesBuffer);
+      }
+    } else {
+      hll.addBytes(bytes, off, len);
+    }
+  }
+
+  /**
+   *  The ASCII decimal digits of a number, the same as
+   *   Long.toString(val).getBytes(), in an array from buffers
+   *   which is exactly as long as the digits.
+   */
+  static byte[] DecimalBytes(long val, byte[][] buffers) {
+    int len = (val < 0) ? 2 : 1;
+    for (long rest = val / 10; rest != 0; rest /= 10) {
+      ++len;
+    }
+    byte[] digits = buffers[len];
+    if (digits == null) {
+      digits = new byte[len];
+      buffers[len] = digits;
+    }
+    if (val < 0) {
+      digits[0] = '-';
+    }
+    /// Work with negative remainders, so Long.MIN_VALUE needs no special case
+    long rest = val;
+    int pos = len;
+    do {
+      digits[--pos] = (byte) ('0' + Math.abs((int) (rest % 10)));
+      rest /= 10;
+    } while (rest != 0);
+    return digits;
   }
 
   public void merge(byte[] buffer) throws IOException,
@@ -60,25 +172,47 @@ public class HLLBuffer implements AggregationBuffer {
       return;
     }
     
-    ICardinality other = HyperLogLogPlus.Builder.build(buffer);
-    
-    // if hll estimator hasn't been allocated yet, just set it equal to the partial 
-    if (hll == null) {
-      LOG.debug("hll is null; other.sizeof = " + other.sizeof());
-      hll = other;
-      precision = (int) Math.ceil(Math.log(other.sizeof())/Math.log(2.0));
-      LOG.debug("precision set to: " + precision);
+    if (HLLRegisters.IsHLLRegisters(buffer)) {
+      if (legacyHll != null) {
+        throw new CardinalityMergeException("Can not merge a HyperLogLog into a legacy HyperLogLogPlus");
+      }
+      // if hll estimator hasn't been initialized yet, take the precision from the partial's header
+      if (!isReady()) {
+        initRegisters(HLLRegisters.GetPrecision(buffer), HLLRegisters.GetSparsePrecision(buffer), null);
+        LOG.debug("precision set to: " + precision);
+      }
+      try {
+        hll.merge(buffer);
+      } catch (IllegalArgumentException illArg) {
+        throw new CardinalityMergeException(illArg.getMessage());
+      }
     } else {
-      hll.merge(other);
+      if (isReady() && legacyHll == null) {
+        throw new CardinalityMergeException("Can not merge a legacy HyperLogLogPlus into a HyperLogLog");
+      }
+      ICardinality other = HyperLogLogPlus.Builder.build(buffer);
+      if (legacyHll == null) {
+        legacyHll = other;
+        /// Merged estimators aren't added to, so the precision is only a marker
+        precision = -1;
+      } else {
+        legacyHll = legacyHll.merge(other);
+      }
     }
   }
 
   public byte[] getPartial() throws IOException {
-    if (hll == null) {
+    if (legacyHll != null) {
+      return legacyHll.getBytes();
+    }
+    if (!isReady()) {
       return null;
     }
     
-    return hll.getBytes();
+    byte[] partial = hll.getBytes();
+    // Hive may drop the buffer after this, so give back its share of the memory budget
+    hll.releaseBudget();
+    return partial;
   }
 
-}
\ No newline at end of file
+}
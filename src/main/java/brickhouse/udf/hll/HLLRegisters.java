@@ -0,0 +1,582 @@
+package brickhouse.udf.hll;
+
+/**
+ * Copyright 2012,2013 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.Arrays;
+
+import brickhouse.analytics.uniques.XxHash64;
+
+/**
+ *  A HyperLogLog++ estimator, kept as a plain array of registers,
+ *   so that serialized partials can be merged directly into it.
+ *
+ *  Small sets are kept in a sparse list of ( index, rank ) entries
+ *   at the higher sparse precision, which is promoted to the
+ *   dense registers once it would take more space than them.
+ *
+ *  Dense registers are a byte each, so merging two dense
+ *   estimators is a byte-wise max over the serialized bytes.
+ *  Estimators of different precisions can be merged, by folding
+ *   the registers down to the lower precision.
+ *
+ *  The serialized layout is
+ *  <pre>
+ *    byte      MAGIC
+ *    byte      format version
+ *    byte      precision p
+ *    byte      sparse precision sp
+ *    byte      encoding ( 0 sparse, 1 dense )
+ *    dense:    2^p register bytes
+ *    sparse:   varint number of entries,
+ *              varint deltas of sorted entries ( index << 6 | rank )
+ *  </pre>
+ *  The magic byte can't start a serialized stream-lib HyperLogLogPlus,
+ *   so the two formats can be told apart.
+ *
+ *  Cardinality is estimated with Ertl's improved estimator,
+ *   which doesn't need the empirical bias tables of HLL++.
+ */
+public class HLLRegisters {
+  public static final byte MAGIC = 'H';
+  public static final byte FORMAT_VERSION = 1;
+  public static final int MIN_PRECISION = 4;
+  public static final int MAX_SPARSE_PRECISION = 25;
+  public static final int DEFAULT_SPARSE_PRECISION = 25;
+
+  static final int HEADER_SIZE = 5;
+  static final byte SPARSE = 0;
+  static final byte DENSE = 1;
+  private static final int RANK_BITS = 6;
+  private static final int RANK_MASK = (1 << RANK_BITS) - 1;
+  private static final double ALPHA_INF = 0.5/Math.log(2.0);
+
+  /// Requested precision; the dense registers may use less under a memory budget
+  private final int maxP;
+  private int p;
+  private final int sp;
+  private byte[] registers;
+  private final MemoryBudget budget;
+  private long reservedBytes = 0;
+
+  /// Sorted, unique by index
+  private int[] sparse;
+  private int sparseSize;
+  /// Unsorted entries, not yet merged into the sparse list
+  private int[] tmp;
+  private int tmpSize;
+  private final int sparseLimit;
+
+
+  /**
+   *  Bounds the bytes of dense registers allocated by a set of estimators,
+   *   such as all the aggregation buffers of a task.
+   *  Once the budget is used up, estimators promoted to dense
+   *   use a lower precision, down to MIN_PRECISION.
+   */
+  public static class MemoryBudget {
+    private final long maxBytes;
+    private long usedBytes = 0;
+
+    public MemoryBudget(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public long getUsedBytes() {
+      return usedBytes;
+    }
+
+    /**
+     *  Reserve registers for the largest precision up to p
+     *   which fits in the budget, and return that precision.
+     */
+    int reserve(int p) {
+      while (p > MIN_PRECISION && usedBytes + (1L << p) > maxBytes) {
+        --p;
+      }
+      usedBytes += 1L << p;
+      return p;
+    }
+
+    void release(long bytes) {
+      usedBytes -= bytes;
+    }
+  }
+
+
+  public HLLRegisters(int p) {
+    this(p, Math.max(p, DEFAULT_SPARSE_PRECISION));
+  }
+
+  public HLLRegisters(int p, int sp) {
+    this(p, sp, null);
+  }
+
+  /**
+   *  A sparse precision of 0 disables the sparse representation.
+   */
+  public HLLRegisters(int p, int sp, MemoryBudget budget) {
+    if (p < MIN_PRECISION || p > MAX_SPARSE_PRECISION
+        || (sp != 0 && (sp < p || sp > MAX_SPARSE_PRECISION))) {
+      throw new IllegalArgumentException("Invalid precision " + p + " and sparse precision " + sp);
+    }
+    this.maxP = p;
+    this.p = p;
+    this.sp = sp;
+    this.budget = budget;
+    /// Sparse entries are 4 bytes, and dense registers are 1
+    this.sparseLimit = (1 << p) / 4;
+    clear();
+  }
+
+  /**
+   *  The current precision, which may be lower than requested
+   *   if the registers were limited by a memory budget,
+   *   or folded to merge a lower precision estimator.
+   */
+  public int getPrecision() {
+    return p;
+  }
+
+  public int getSparsePrecision() {
+    return sp;
+  }
+
+  public boolean isSparse() {
+    return registers == null;
+  }
+
+  public void clear() {
+    releaseBudget();
+    registers = null;
+    p = maxP;
+    tmpSize = 0;
+    sparseSize = 0;
+    if (sp == 0) {
+      sparse = null;
+      tmp = null;
+      toDense(maxP);
+    } else {
+      sparse = new int[ Math.min(sparseLimit, 16)];
+      tmp = new int[ Math.max(4, Math.min(sparseLimit / 4, 1024))];
+    }
+  }
+
+  /**
+   *  Return the bytes reserved for the registers to the memory budget.
+   *  Called once the estimator is no longer needed,
+   *   since Hive may discard buffers without resetting them.
+   */
+  public void releaseBudget() {
+    if (budget != null) {
+      budget.release(reservedBytes);
+    }
+    reservedBytes = 0;
+  }
+
+  public void addItem(String str) {
+    addHash( XxHash64.hashChars(str, 0));
+  }
+
+  public void addLong(long val) {
+    addHash( XxHash64.hashLong(val, 0));
+  }
+
+  public void addBytes(byte[] bytes, int off, int len) {
+    addHash( XxHash64.hash(bytes, off, len, 0));
+  }
+
+  public void addHash(long hash) {
+    if (registers != null) {
+      int idx = (int) (hash >>> (64 - p));
+      updateRegister(idx, rank(hash << p, p));
+    } else {
+      int sparseIdx = (int) (hash >>> (64 - sp));
+      addSparseEntry((sparseIdx << RANK_BITS) | rank(hash << sp, sp));
+    }
+  }
+
+  /**
+   *  Rank of the remaining bits of a hash, ie. the position of
+   *   the first one bit, capped at 64 - precision + 1
+   */
+  private static int rank(long w, int precision) {
+    return Math.min(Long.numberOfLeadingZeros(w) + 1, 65 - precision);
+  }
+
+  private void updateRegister(int idx, int rank) {
+    if (registers[idx] < rank) {
+      registers[idx] = (byte) rank;
+    }
+  }
+
+  private void addSparseEntry(int entry) {
+    if (tmpSize == tmp.length) {
+      mergeTmp();
+      if (registers != null) {
+        addDense(entry >>> RANK_BITS, entry & RANK_MASK, sp);
+        return;
+      }
+    }
+    tmp[tmpSize++] = entry;
+  }
+
+  /**
+   *  Sort the pending entries into the sparse list,
+   *   keeping the max rank for each index,
+   *   and promote to dense if the list gets too large.
+   */
+  private void mergeTmp() {
+    if (tmpSize == 0) {
+      return;
+    }
+    Arrays.sort(tmp, 0, tmpSize);
+    int[] merged = new int[ Math.max(sparse.length, sparseSize + tmpSize)];
+    int i = 0, j = 0, k = 0;
+    while (i < sparseSize || j < tmpSize) {
+      int next;
+      if (j == tmpSize || (i < sparseSize && sparse[i] <= tmp[j])) {
+        next = sparse[i++];
+      } else {
+        next = tmp[j++];
+      }
+      /// Entries with the same index are adjacent, and ordered by rank
+      if (k > 0 && (merged[k - 1] >>> RANK_BITS) == (next >>> RANK_BITS)) {
+        merged[k - 1] = next;
+      } else {
+        merged[k++] = next;
+      }
+    }
+    sparse = merged;
+    sparseSize = k;
+    tmpSize = 0;
+    if (sparseSize > sparseLimit) {
+      toDense(maxP);
+    }
+  }
+
+  /**
+   *  Merge any pending entries, and make sure the registers
+   *   are dense, with at most the given precision.
+   */
+  private void ensureDense(int maxDenseP) {
+    if (registers == null) {
+      mergeTmp();
+    }
+    if (registers == null) {
+      toDense(maxDenseP);
+    } else if (p > maxDenseP) {
+      reducePrecision(maxDenseP);
+    }
+  }
+
+  private void toDense(int maxDenseP) {
+    int denseP = Math.min(maxDenseP, maxP);
+    if (budget != null) {
+      denseP = budget.reserve(denseP);
+      reservedBytes = 1L << denseP;
+    }
+    p = denseP;
+    registers = new byte[1 << p];
+    for (int i = 0; i < sparseSize; ++i) {
+      addDense(sparse[i] >>> RANK_BITS, sparse[i] & RANK_MASK, sp);
+    }
+    for (int i = 0; i < tmpSize; ++i) {
+      addDense(tmp[i] >>> RANK_BITS, tmp[i] & RANK_MASK, sp);
+    }
+    sparse = null;
+    sparseSize = 0;
+    tmp = null;
+    tmpSize = 0;
+  }
+
+  /**
+   *  Fold the dense registers down to a lower precision
+   */
+  private void reducePrecision(int newP) {
+    byte[] oldRegisters = registers;
+    int oldP = p;
+    releaseBudget();
+    if (budget != null) {
+      newP = budget.reserve(newP);
+      reservedBytes = 1L << newP;
+    }
+    p = newP;
+    registers = new byte[1 << p];
+    for (int i = 0; i < oldRegisters.length; ++i) {
+      addDense(i, oldRegisters[i], oldP);
+    }
+  }
+
+  /**
+   *  Add the rank of a register at a precision
+   *   at least as high as this one's
+   */
+  private void addDense(int fineIdx, int fineRank, int fineP) {
+    if (fineRank == 0) {
+      return;
+    }
+    int extraBits = fineP - p;
+    int idx = fineIdx >>> extraBits;
+    int low = fineIdx & ((1 << extraBits) - 1);
+    int rank;
+    if (low != 0) {
+      rank = Integer.numberOfLeadingZeros(low) - (32 - extraBits) + 1;
+    } else {
+      rank = extraBits + fineRank;
+    }
+    updateRegister(idx, rank);
+  }
+
+  public void merge(HLLRegisters other) {
+    merge(other.getBytes());
+  }
+
+  /**
+   *  Merge a serialized estimator directly into this one.
+   *  If the precisions differ, the result has the lower of the two.
+   */
+  public void merge(byte[] bytes) {
+    checkHeader(bytes);
+    int otherP = bytes[2];
+    int otherSp = bytes[3];
+    if (bytes[4] == DENSE) {
+      ensureDense(otherP);
+      int len = 1 << otherP;
+      if (bytes.length < HEADER_SIZE + len) {
+        throw new IllegalArgumentException("Truncated HyperLogLog registers");
+      }
+      if (otherP == p) {
+        for (int i = 0; i < len; ++i) {
+          byte b = bytes[HEADER_SIZE + i];
+          if (registers[i] < b) {
+            registers[i] = b;
+          }
+        }
+      } else {
+        for (int i = 0; i < len; ++i) {
+          addDense(i, bytes[HEADER_SIZE + i], otherP);
+        }
+      }
+    } else {
+      if (registers != null || otherSp != sp) {
+        /// Entries at the other's sparse precision can fill registers up to that precision
+        ensureDense(otherSp);
+      }
+      int pos = HEADER_SIZE;
+      int num = ReadVarInt(bytes, pos);
+      pos += VarIntSize(num);
+      int entry = 0;
+      for (int i = 0; i < num; ++i) {
+        int delta = ReadVarInt(bytes, pos);
+        pos += VarIntSize(delta);
+        entry += delta;
+        if (registers != null) {
+          addDense(entry >>> RANK_BITS, entry & RANK_MASK, otherSp);
+        } else {
+          addSparseEntry(entry);
+        }
+      }
+    }
+  }
+
+  public byte[] getBytes() {
+    mergeTmp();
+    byte[] bytes;
+    int pos = HEADER_SIZE;
+    if (registers != null) {
+      bytes = new byte[HEADER_SIZE + registers.length];
+      System.arraycopy(registers, 0, bytes, HEADER_SIZE, registers.length);
+    } else {
+      bytes = new byte[HEADER_SIZE + 5 + sparseSize * 5];
+      pos = WriteVarInt(bytes, pos, sparseSize);
+      int prev = 0;
+      for (int i = 0; i < sparseSize; ++i) {
+        pos = WriteVarInt(bytes, pos, sparse[i] - prev);
+        prev = sparse[i];
+      }
+      bytes = Arrays.copyOf(bytes, pos);
+    }
+    bytes[0] = MAGIC;
+    bytes[1] = FORMAT_VERSION;
+    bytes[2] = (byte) p;
+    bytes[3] = (byte) sp;
+    bytes[4] = (registers != null) ? DENSE : SPARSE;
+    return bytes;
+  }
+
+  public long cardinality() {
+    mergeTmp();
+    if (registers != null) {
+      int[] histogram = new int[66 - p];
+      for (int i = 0; i < registers.length; ++i) {
+        histogram[registers[i]]++;
+      }
+      return Math.round(Estimate(histogram, p));
+    } else {
+      int[] histogram = new int[66 - sp];
+      histogram[0] = (1 << sp) - sparseSize;
+      for (int i = 0; i < sparseSize; ++i) {
+        histogram[sparse[i] & RANK_MASK]++;
+      }
+      return Math.round(Estimate(histogram, sp));
+    }
+  }
+
+  /**
+   *  Return true if the bytes are in this format,
+   *   rather than a serialized stream-lib HyperLogLogPlus.
+   */
+  public static boolean IsHLLRegisters(byte[] bytes) {
+    return bytes != null && bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+  }
+
+  public static HLLRegisters FromBytes(byte[] bytes) {
+    checkHeader(bytes);
+    HLLRegisters hll = new HLLRegisters(bytes[2], bytes[3]);
+    hll.merge(bytes);
+    return hll;
+  }
+
+  /**
+   *  Return the precision of a serialized estimator,
+   *   without deserializing it.
+   */
+  public static int GetPrecision(byte[] bytes) {
+    checkHeader(bytes);
+    return bytes[2];
+  }
+
+  public static int GetSparsePrecision(byte[] bytes) {
+    checkHeader(bytes);
+    return bytes[3];
+  }
+
+  /**
+   *  Estimate the cardinality directly from the serialized form.
+   */
+  public static long Cardinality(byte[] bytes) {
+    checkHeader(bytes);
+    if (bytes[4] == DENSE) {
+      int precision = bytes[2];
+      int[] histogram = new int[66 - precision];
+      int len = 1 << precision;
+      if (bytes.length < HEADER_SIZE + len) {
+        throw new IllegalArgumentException("Truncated HyperLogLog registers");
+      }
+      for (int i = 0; i < len; ++i) {
+        histogram[bytes[HEADER_SIZE + i]]++;
+      }
+      return Math.round(Estimate(histogram, precision));
+    }
+    return FromBytes(bytes).cardinality();
+  }
+
+  private static void checkHeader(byte[] bytes) {
+    if (!IsHLLRegisters(bytes)) {
+      throw new IllegalArgumentException("Not a serialized HLLRegisters");
+    }
+    if (bytes[1] != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unexpected HLLRegisters format version " + bytes[1]);
+    }
+  }
+
+  /**
+   *  Ertl's estimate from the histogram of register values,
+   *   for 2^precision registers with values from 0 to 65 - precision.
+   */
+  static double Estimate(int[] histogram, int precision) {
+    double m = (double) (1L << precision);
+    int q = 64 - precision;
+    if (histogram[0] == m) {
+      return 0.0;
+    }
+    double z = m * tau(1.0 - histogram[q + 1] / m);
+    for (int k = q; k >= 1; --k) {
+      z = 0.5 * (z + histogram[k]);
+    }
+    z += m * sigma(histogram[0] / m);
+    return ALPHA_INF * m * m / z;
+  }
+
+  private static double sigma(double x) {
+    if (x == 1.0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double y = 1.0;
+    double z = x;
+    double zPrev;
+    do {
+      x *= x;
+      zPrev = z;
+      z += x * y;
+      y += y;
+    } while (z != zPrev);
+    return z;
+  }
+
+  private static double tau(double x) {
+    if (x == 0.0 || x == 1.0) {
+      return 0.0;
+    }
+    double y = 1.0;
+    double z = 1.0 - x;
+    double zPrev;
+    do {
+      x = Math.sqrt(x);
+      zPrev = z;
+      y *= 0.5;
+      z -= (1.0 - x) * (1.0 - x) * y;
+    } while (z != zPrev);
+    return z / 3.0;
+  }
+
+  private static int WriteVarInt(byte[] bytes, int pos, int val) {
+    while ((val & ~0x7F) != 0) {
+      bytes[pos++] = (byte) ((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    bytes[pos++] = (byte) val;
+    return pos;
+  }
+
+  private static int ReadVarInt(byte[] bytes, int pos) {
+    int val = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[pos++];
+      val |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return val;
+  }
+
+  private static int VarIntSize(int val) {
+    int size = 1;
+    while ((val & ~0x7F) != 0) {
+      val >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+}
@@ -0,0 +1,48 @@
+package brickhouse.udf.hll;
+/**
+ * Copyright 2012,2013 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hive.ql.exec.Description;
+
+/**
+ *  Aggregate and return a HyperLogLog in the register-array format of HLLRegisters.
+ *  
+ *  Partials merge directly into the registers, without rebuilding an estimator,
+ *   but the result can't be merged with stream-lib blobs from hyperloglog.
+ *
+ */
+
+@Description(name="hyperloglog_registers",
+    value = "_FUNC_(x, [b], [sp], [max_bytes]) - Constructs a register-array HyperLogLog estimator to estimate reach for large values, " + 
+    		"with optional bit parameter for specifying precision (b must be in [4,18])." + 
+    		"\nDefault is b = 14." +
+    		"\nThe optional sp is the sparse precision used for small sets (sp must be 0 or in [b,25])," +
+    		" where 0 disables the sparse representation. Default is sp = 25." +
+    		"\nIf max_bytes is given, registers allocated by a task are bounded by it," +
+    		" by lowering the precision of later groups; 0 means a quarter of the task's max heap." +
+    		"\nx may be a string, bigint, int or binary. Numbers are hashed as longs, so ints and bigints agree," +
+    		" but not with the same ids as strings." +
+            "\nReturns a binary value that union_hyperloglog, combine_hyperloglog and hll_est_cardinality accept," +
+            " but which can't be combined with the output of hyperloglog."
+)
+public class HyperLogLogRegistersUDAF extends HyperLogLogUDAF {
+
+  @Override
+  protected boolean useRegisters() {
+    return true;
+  }
+}
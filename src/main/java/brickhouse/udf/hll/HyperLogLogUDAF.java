@@ -27,11 +27,13 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.log4j.Logger;
 
 /**
@@ -42,16 +44,21 @@ import org.apache.log4j.Logger;
  */
 
 @Description(name="hyperloglog",
-    value = "_FUNC_(x, [b]) - Constructs a HyperLogLog++ estimator to estimate reach for large values, " + 
-    		"with optional bit parameter for specifying precision (b must be in [4,16])." + 
+    value = "_FUNC_(x, [b], [sp]) - Constructs a HyperLogLog++ estimator to estimate reach for large values, " + 
+    		"with optional bit parameter for specifying precision (b must be in [4,18])." + 
     		"\nDefault is b = 6." +
-            "\nReturns a binary value that represents the HyperLogLog++ data structure."
+    		"\nThe optional sp is the sparse precision used for small sets (sp must be 0 or in [b,25])," +
+    		" where 0 disables the sparse representation. Default is sp = 0." +
+    		"\nx may be a string, bigint, int or binary. Ints and bigints are hashed alike." +
+            "\nReturns a binary value that represents the HyperLogLog++ data structure," +
+            " in stream-lib's format. See hyperloglog_registers for the register-array format."
 )
 public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
   private static final Logger LOG = Logger.getLogger(HyperLogLogUDAF.class);
   static final int DEFAULT_PRECISION = 6;
+  static final int DEFAULT_REGISTERS_PRECISION = 14;
   static final int MIN_PRECISION = 4;
-  static final int MAX_PRECISION = 16;
+  static final int MAX_PRECISION = 18;
 
   @SuppressWarnings("deprecation")
   @Override
@@ -59,9 +66,10 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
 			throws SemanticException {
 		TypeInfo[] parameters = info.getParameters();
 
-    if (parameters.length != 1 && parameters.length != 2) {
+    int maxParameters = useRegisters() ? 4 : 3;
+    if (parameters.length < 1 || parameters.length > maxParameters) {
       throw new UDFArgumentTypeException(parameters.length - 1,
-          "Please specify one or two arguments.");
+          "Please specify between one and " + maxParameters + " arguments.");
     }
 
     if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
@@ -71,44 +79,70 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
 							+ " was passed as parameter 1.");
 		}
 		
-		if (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+		switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+		case STRING:
+		case LONG:
+		case INT:
+		case BINARY:
+			break;
+		default:
 			throw new UDFArgumentTypeException(0,
-					"Only a string argument is accepted as parameter 1, but "
+					"Only a string, bigint, int or binary argument is accepted as parameter 1, but "
 							+ parameters[0].getTypeName()
 							+ " was passed instead.");
 		}
 
-		if (parameters.length == 2) {
-			// validate the second parameter, which is the precision value
-			if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-				throw new UDFArgumentTypeException(1,
+		for (int i = 1; i < parameters.length; ++i) {
+			// validate the precision, sparse precision and max_bytes parameters
+			if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentTypeException(i,
 						"Only primitive type arguments are accepted but "
-								+ parameters[1].getTypeName()
-								+ " was passed as parameter 2.");
+								+ parameters[i].getTypeName()
+								+ " was passed as parameter " + (i + 1) + ".");
 			}
 
-			if (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
-				throw new UDFArgumentTypeException(1,
-						"Only an integer argument is accepted as parameter 2, but "
-								+ parameters[1].getTypeName()
+			PrimitiveObjectInspector.PrimitiveCategory category = ((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory();
+			if (category != PrimitiveObjectInspector.PrimitiveCategory.INT
+					&& !(i == 3 && category == PrimitiveObjectInspector.PrimitiveCategory.LONG)) {
+				throw new UDFArgumentTypeException(i,
+						"Only an integer argument is accepted as parameter " + (i + 1) + ", but "
+								+ parameters[i].getTypeName()
 								+ " was passed instead.");
 			}
 		}
-		
-		if (parameters.length > 2) throw new IllegalArgumentException("Function only takes 1 or 2 parameters.");
 
-		return new HyperLogLogUDAFEvaluator();
+		return new HyperLogLogUDAFEvaluator(useRegisters());
 	}
 
+  /**
+   *  Whether to build HLLRegisters rather than stream-lib HyperLogLogPlus estimators.
+   */
+  protected boolean useRegisters() {
+    return false;
+  }
+
   public static class HyperLogLogUDAFEvaluator extends GenericUDAFEvaluator {
     private static final Logger LOG = Logger.getLogger(HyperLogLogUDAFEvaluator.class);
     // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
-	  private StringObjectInspector inputStrOI;
+	  private PrimitiveObjectInspector inputOI;
 	  private IntObjectInspector inputPrecisionIntOI;
+	  private IntObjectInspector inputSparsePrecisionIntOI;
+	  private PrimitiveObjectInspector inputMaxBytesOI;
+	  // Shared by all the buffers of this task, if max_bytes was given
+	  private HLLRegisters.MemoryBudget memoryBudget;
+	  private boolean useRegisters;
 	  
 	  // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (binary serialized hll object)
 	  private BinaryObjectInspector partialBufferOI;
 
+    public HyperLogLogUDAFEvaluator() {
+      this(false);
+    }
+
+    public HyperLogLogUDAFEvaluator(boolean useRegisters) {
+      this.useRegisters = useRegisters;
+    }
+
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
         throws HiveException {
       super.init(m, parameters);
@@ -117,11 +151,17 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
       
       // init input object inspectors
       if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
-    	  // iterate() gets called.. string and int passed in
-    	  this.inputStrOI = (StringObjectInspector) parameters[0];
-    	  if (parameters.length == 2) {
+    	  // iterate() gets called.. value and optional ints passed in
+    	  this.inputOI = (PrimitiveObjectInspector) parameters[0];
+    	  if (parameters.length > 1) {
     	    this.inputPrecisionIntOI = (IntObjectInspector) parameters[1];
     	  }
+    	  if (parameters.length > 2) {
+    	    this.inputSparsePrecisionIntOI = (IntObjectInspector) parameters[2];
+    	  }
+    	  if (parameters.length > 3) {
+    	    this.inputMaxBytesOI = (PrimitiveObjectInspector) parameters[3];
+    	  }
       } else { 
         // Mode m == Mode.PARTIAL2 || m == Mode.FINAL
     	  // merge() gets called ... serialized hll is passed in
@@ -137,11 +177,12 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
     public void iterate(AggregationBuffer agg, Object[] parameters)
         throws HiveException {
       
-      assert (parameters.length == 1 || parameters.length == 2);
+      assert (parameters.length >= 1 && parameters.length <= 4);
       
-      if ((parameters.length == 1 && parameters[0] == null)
-          || (parameters.length == 2 && (parameters[0] == null || parameters[1] == null))) {
-        return;
+      for (Object param : parameters) {
+        if (param == null) {
+          return;
+        }
       }
       
       HLLBuffer myagg = (HLLBuffer) agg;
@@ -149,27 +190,59 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
       // initialize aggregation buffer once
       if(!myagg.isReady()) {
         LOG.debug("agg buffer is not ready");
-        int p = DEFAULT_PRECISION;
+        int p = useRegisters ? DEFAULT_REGISTERS_PRECISION : DEFAULT_PRECISION;
         
         // If specified, parse out the precision and validate it is in allowed range.
-        if (parameters.length == 2) {
+        if (parameters.length > 1) {
           p = PrimitiveObjectInspectorUtils.getInt(parameters[1], inputPrecisionIntOI);
           if(p < MIN_PRECISION || p > MAX_PRECISION) {
-            throw new HiveException(getClass().getSimpleName() + " precision must be in [4,16],"
+            throw new HiveException(getClass().getSimpleName() + " precision must be in [4,18],"
                                     + " but you supplied " + p + ".");
           }
         }
+        int sp = useRegisters ? Math.max(p, HLLRegisters.DEFAULT_SPARSE_PRECISION) : 0;
+        if (parameters.length > 2) {
+          sp = PrimitiveObjectInspectorUtils.getInt(parameters[2], inputSparsePrecisionIntOI);
+          if (sp != 0 && (sp < p || sp > HLLRegisters.MAX_SPARSE_PRECISION)) {
+            throw new HiveException(getClass().getSimpleName() + " sparse precision must be 0 or in [" + p + ",25],"
+                                    + " but you supplied " + sp + ".");
+          }
+        }
+        if (parameters.length > 3 && memoryBudget == null) {
+          long maxBytes = PrimitiveObjectInspectorUtils.getLong(parameters[3], inputMaxBytesOI);
+          if (maxBytes <= 0) {
+            maxBytes = Runtime.getRuntime().maxMemory() / 4;
+          }
+          LOG.info("bounding hyperloglog registers to " + maxBytes + " bytes");
+          memoryBudget = new HLLRegisters.MemoryBudget(maxBytes);
+        }
 
-        LOG.debug("initializing agg buffer: p = " + p);
+        LOG.debug("initializing agg buffer: p = " + p + " sp = " + sp);
         // allocate memory for the histogram bins
-        myagg.init(p);
+        if (useRegisters) {
+          myagg.initRegisters(p, sp, memoryBudget);
+        } else {
+          myagg.init(p, sp);
+        }
       }
       
-      // string object to be added to hll
-      Object strObj = parameters[0];
+      // object to be added to hll, hashed directly from its inspector
+      Object obj = parameters[0];
       
-      String str = inputStrOI.getPrimitiveJavaObject(strObj);
-      myagg.addItem(str);
+      switch (inputOI.getPrimitiveCategory()) {
+      case LONG:
+        myagg.addLong(((LongObjectInspector) inputOI).get(obj));
+        break;
+      case INT:
+        myagg.addLong(((IntObjectInspector) inputOI).get(obj));
+        break;
+      case BINARY:
+        BytesWritable bytes = ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject(obj);
+        myagg.addBytes(bytes.getBytes(), 0, bytes.getLength());
+        break;
+      default:
+        myagg.addItem(((StringObjectInspector) inputOI).getPrimitiveJavaObject(obj));
+      }
     }
 
     @Override
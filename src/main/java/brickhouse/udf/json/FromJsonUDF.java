@@ -27,9 +27,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
-import org.codehaus.jackson.JsonNode;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableConstantBooleanObjectInspector;
 import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 
 /**
  *  Generate an arbitrary Hive structure from a JSON string,
@@ -45,7 +44,11 @@ import org.codehaus.jackson.map.ObjectMapper;
  *                 "inner_map":{"a":1,"b":2,"c":3 }" , 
  *                 struct("name", "","value", 0.0,"colors", array(""), "inner_map", map("",1) );
  *                       
- *   
+ *   If convert_flag is true, JSON keys are expected in camel case,
+ *    ( ie. "userId" for a struct field "user_id" ).
+ *
+ *   The template is compiled into a decoder once, in initialize,
+ *    so each row is parsed in a single pass over the JSON tokens.
  */
 @Description(name="from_json",
 value = "_FUNC_(json,template,convert_flag) - Returns an arbitrary Hive Structure given a JSON string, and an example template object."
@@ -61,11 +64,8 @@ public class FromJsonUDF extends GenericUDF {
 		   String jsonString = jsonInspector.getPrimitiveJavaObject( arg0[0].get());
 		   if(jsonString == null)
 		       return null;
-		
-		    ObjectMapper jacksonParser = new ObjectMapper();
-			JsonNode jsonNode = jacksonParser.readTree( jsonString);
-			
-			return inspHandle.parseJson(jsonNode);
+
+			return JsonMapperFactory.ParseJson( jsonString, inspHandle);
 		} catch (JsonProcessingException e) {
 			throw new HiveException(e);
 		} catch (IOException e) {
@@ -89,6 +89,15 @@ public class FromJsonUDF extends GenericUDF {
 		    throw new UDFArgumentException("from_json expects a JSON string and a template object");
 		}
 		jsonInspector = (StringObjectInspector) arg0[0];
+		boolean convertFlag = false;
+		if( arg0.length == 3) {
+		    if( arg0[2].getCategory() != Category.PRIMITIVE
+		    		|| ((PrimitiveObjectInspector)arg0[2]).getPrimitiveCategory() != PrimitiveCategory.BOOLEAN
+		    		|| !( arg0[2] instanceof ConstantObjectInspector) ) {
+		       throw new UDFArgumentException("from_json convert_flag must be a constant boolean");
+		    }
+		    convertFlag = ((WritableConstantBooleanObjectInspector) arg0[2]).getWritableConstantValue().get();
+		}
 		if( arg0[1].getCategory() == Category.PRIMITIVE
 		        && ((PrimitiveObjectInspector)arg0[1]).getPrimitiveCategory() == PrimitiveCategory.STRING) {
 		    if( !( arg0[1] instanceof ConstantObjectInspector) ) {
@@ -97,9 +106,9 @@ public class FromJsonUDF extends GenericUDF {
 		    ConstantObjectInspector typeInsp = (ConstantObjectInspector) arg0[1];
 		    
 		    String typeStr = typeInsp.getWritableConstantValue().toString();
-		    inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(typeStr);
+		    inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(typeStr, convertFlag);
 		} else {
-		  inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle( arg0[1]);
+		  inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle( arg0[1], convertFlag);
 		}
 		
 		return inspHandle.getReturnType();
@@ -3,6 +3,8 @@ package brickhouse.udf.json;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -24,6 +26,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -31,6 +35,12 @@ import org.joda.time.format.ISODateTimeFormat;
 public interface InspectorHandle {
 	
 	Object parseJson(JsonNode jsonNode);
+	/**
+	 *  Parse the value starting at the parser's current token,
+	 *   without building a JsonNode tree. The parser is left
+	 *   on the last token of the value.
+	 */
+	Object parseJson(JsonParser parser) throws IOException;
     ObjectInspector getReturnType();	
     
     final public class InspectorHandleFactory {
@@ -41,9 +51,9 @@ public interface InspectorHandle {
     		Category cat = insp.getCategory();
     		switch( cat)  {
     		case LIST:
-    			return new InspectorHandle.ListHandle( (ListObjectInspector)insp );
+    			return new InspectorHandle.ListHandle( (ListObjectInspector)insp, convertFromCamelCase);
     		case MAP:
-    			return new InspectorHandle.MapHandle( (MapObjectInspector)insp);
+    			return new InspectorHandle.MapHandle( (MapObjectInspector)insp, convertFromCamelCase);
     		case STRUCT:
     			return new InspectorHandle.StructHandle( (StructObjectInspector)insp, convertFromCamelCase);
     		case PRIMITIVE:
@@ -53,34 +63,48 @@ public interface InspectorHandle {
     	}
     	
     	static public InspectorHandle GenerateInspectorHandleFromTypeInfo( String typeStr ) throws UDFArgumentException {
+    	    return GenerateInspectorHandleFromTypeInfo( typeStr, false);
+    	}
+
+    	static public InspectorHandle GenerateInspectorHandleFromTypeInfo( String typeStr, boolean convertFromCamelCase ) throws UDFArgumentException {
     	    TypeInfo typeInfo = TypeInfoUtils.getTypeInfoFromTypeString(typeStr);
     	    ObjectInspector objInsp = TypeInfoUtils.getStandardJavaObjectInspectorFromTypeInfo(typeInfo);
-    	    return GenerateInspectorHandle(objInsp);
+    	    return GenerateInspectorHandle(objInsp, convertFromCamelCase);
     	}
     }
     /** 
      * If one passes a named-struct in, then one can parse arbitrary
      *   structures
+     *
+     *  The template is compiled once, when the handle is created,
+     *   into flat arrays of JSON keys and field handles, and a map
+     *   from each JSON key to its slot in the struct. Parsing a field
+     *   is then a single hash lookup, however wide the struct is.
      **/
     class StructHandle implements InspectorHandle {
-    	/**
-    	 * 
-    	 */
     	private List<String> fieldNames;
-    	private List<InspectorHandle> handleList;
+    	private InspectorHandle[] fieldHandles;
+    	/// JSON key of each field, converted to camel case up front if needed
+    	private String[] jsonKeys;
+    	private Map<String,Integer> slotMap;
     	private boolean convertFromCamelCase = false;
     	
     	
     	public StructHandle( StructObjectInspector structInspector, boolean convertFromCamelCase) throws UDFArgumentException {
-    		fieldNames = new ArrayList<String>();
-    		handleList = new ArrayList<InspectorHandle>();
-    		convertFromCamelCase = convertFromCamelCase;
+    		this.convertFromCamelCase = convertFromCamelCase;
     		
     		List<? extends StructField> refs =  structInspector.getAllStructFieldRefs();
-    		for( StructField ref : refs) {
-    			fieldNames.add( ref.getFieldName());
-    			InspectorHandle fieldHandle = InspectorHandleFactory.GenerateInspectorHandle( ref.getFieldObjectInspector() );
-    			handleList.add( fieldHandle);
+    		fieldNames = new ArrayList<String>();
+    		fieldHandles = new InspectorHandle[ refs.size()];
+    		jsonKeys = new String[ refs.size()];
+    		slotMap = new HashMap<String,Integer>();
+    		for(int i=0; i< refs.size(); ++i) {
+    			StructField ref = refs.get(i);
+    			String fieldName = ref.getFieldName();
+    			fieldNames.add( fieldName);
+    			fieldHandles[i] = InspectorHandleFactory.GenerateInspectorHandle( ref.getFieldObjectInspector(), convertFromCamelCase);
+    			jsonKeys[i] = convertFromCamelCase ? FromJsonUDF.ToCamelCase( fieldName) : fieldName;
+    			slotMap.put( jsonKeys[i], i);
     		}
     	}
 
@@ -89,27 +113,45 @@ public interface InspectorHandle {
     		/// For structs, they just return a list of object values
     		if(jsonNode == null || jsonNode.isNull())
     			return null;
-    		List<Object> valList = new ArrayList<Object>();
+    		List<Object> valList = new ArrayList<Object>( jsonKeys.length);
     		
-    		for(int i=0; i< fieldNames.size(); ++i) {
-    			String key = fieldNames.get( i);
-    			if( this.convertFromCamelCase) {
-    				key = FromJsonUDF.ToCamelCase(key);
-    			}
-    			JsonNode valNode = jsonNode.get( key);
-    			InspectorHandle valHandle = handleList.get(i);
-    			
-    			Object valObj = valHandle.parseJson(valNode);
+    		for(int i=0; i< jsonKeys.length; ++i) {
+    			JsonNode valNode = jsonNode.get( jsonKeys[i]);
+    			Object valObj = fieldHandles[i].parseJson(valNode);
     			valList.add( valObj);
     		}
     		
     		return valList;
     	}
 
+    	@Override
+    	public Object parseJson(JsonParser parser) throws IOException {
+    		JsonToken token = parser.getCurrentToken();
+    		if(token == null || token == JsonToken.VALUE_NULL)
+    			return null;
+    		/// Fields which don't appear are left null, as with the tree
+    		Object[] vals = new Object[ fieldHandles.length];
+    		if( token != JsonToken.START_OBJECT) {
+    			parser.skipChildren();
+    			return Arrays.asList( vals);
+    		}
+    		while( parser.nextToken() == JsonToken.FIELD_NAME) {
+    			/// Jackson canonicalizes field names, so their hash codes are usually already cached
+    			Integer slot = slotMap.get( parser.getCurrentName());
+    			parser.nextToken();
+    			if( slot != null) {
+    				vals[slot] = fieldHandles[slot].parseJson( parser);
+    			} else {
+    				parser.skipChildren();
+    			}
+    		}
+    		return Arrays.asList( vals);
+    	}
+
     	@Override
     	public ObjectInspector getReturnType() {
     		List<ObjectInspector> structFieldObjectInspectors = new ArrayList<ObjectInspector>();
-    		for( InspectorHandle fieldHandle : handleList) {
+    		for( InspectorHandle fieldHandle : fieldHandles) {
     			structFieldObjectInspectors.add( fieldHandle.getReturnType() );
     		}
     		return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, structFieldObjectInspectors);
@@ -125,10 +167,14 @@ public interface InspectorHandle {
 		/// for JSON maps (or "objects"), the keys are always string objects
 		///  
 		public MapHandle( MapObjectInspector insp) throws UDFArgumentException {
+			this( insp, false);
+		}
+
+		public MapHandle( MapObjectInspector insp, boolean convertFromCamelCase) throws UDFArgumentException {
 			if( !(insp.getMapKeyObjectInspector() instanceof StringObjectInspector)) {
 				throw new RuntimeException( " JSON maps can only have strings as keys");
 			}
-			mapValHandle = InspectorHandleFactory.GenerateInspectorHandle( insp.getMapValueObjectInspector() );
+			mapValHandle = InspectorHandleFactory.GenerateInspectorHandle( insp.getMapValueObjectInspector(), convertFromCamelCase);
 		}
 		@Override
 		public Object parseJson(JsonNode jsonNode) {
@@ -146,6 +192,24 @@ public interface InspectorHandle {
 			return newMap;
 		}
 
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if(token == null || token == JsonToken.VALUE_NULL)
+				return null;
+			Map<String,Object> newMap = (Map<String,Object>)retInspector.create();
+			if( token != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				return newMap;
+			}
+			while( parser.nextToken() == JsonToken.FIELD_NAME) {
+				String key = parser.getCurrentName();
+				parser.nextToken();
+				newMap.put( key, mapValHandle.parseJson( parser));
+			}
+			return newMap;
+		}
+
 		@Override
 		public ObjectInspector getReturnType() {
 			retInspector = ObjectInspectorFactory.getStandardMapObjectInspector(
@@ -161,7 +225,11 @@ public interface InspectorHandle {
 		private InspectorHandle elemHandle;
 
 		public ListHandle( ListObjectInspector insp) throws UDFArgumentException {
-			elemHandle = InspectorHandleFactory.GenerateInspectorHandle( insp.getListElementObjectInspector() );
+			this( insp, false);
+		}
+
+		public ListHandle( ListObjectInspector insp, boolean convertFromCamelCase) throws UDFArgumentException {
+			elemHandle = InspectorHandleFactory.GenerateInspectorHandle( insp.getListElementObjectInspector(), convertFromCamelCase);
 		}
 		
 		@Override
@@ -183,6 +251,26 @@ public interface InspectorHandle {
 			return newList;
 		}
 
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if(token == null || token == JsonToken.VALUE_NULL)
+				return null;
+			List newList = (List) retInspector.create(0);
+			if( token == JsonToken.START_ARRAY) {
+				while( parser.nextToken() != JsonToken.END_ARRAY) {
+					newList.add( elemHandle.parseJson( parser));
+				}
+			} else if( token == JsonToken.START_OBJECT) {
+				/// Like JsonNode.getElements, take the values of an object
+				while( parser.nextToken() == JsonToken.FIELD_NAME) {
+					parser.nextToken();
+					newList.add( elemHandle.parseJson( parser));
+				}
+			}
+			return newList;
+		}
+
 		@Override
 		public ObjectInspector getReturnType() {
 			retInspector =  ObjectInspectorFactory.getStandardListObjectInspector( elemHandle.getReturnType() );
@@ -241,6 +329,55 @@ public interface InspectorHandle {
 			return null;
 		}
 
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if(token == null || token == JsonToken.VALUE_NULL)
+				return null;
+			switch( category) {
+			case STRING:
+				if( token == JsonToken.VALUE_STRING)
+					return parser.getText();
+				break;
+			case LONG:
+				if( token == JsonToken.VALUE_NUMBER_INT)
+					return parser.getNumberValue().longValue();
+				break;
+			case SHORT:
+				if( token == JsonToken.VALUE_NUMBER_INT)
+					return (short)parser.getNumberValue().intValue();
+				break;
+			case BYTE:
+				if( token == JsonToken.VALUE_NUMBER_INT)
+					return (byte)parser.getNumberValue().intValue();
+				break;
+			case INT:
+				if( token == JsonToken.VALUE_NUMBER_INT)
+					return parser.getNumberValue().intValue();
+				break;
+			case FLOAT:
+				if( token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT)
+					return new Float(parser.getNumberValue().doubleValue());
+				break;
+			case DOUBLE:
+				if( token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT)
+					return parser.getNumberValue().doubleValue();
+				break;
+			case BOOLEAN:
+				if( token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
+					return token == JsonToken.VALUE_TRUE;
+				break;
+			case TIMESTAMP:
+				if( token == JsonToken.VALUE_STRING)
+					return new Timestamp( isoFormatter.parseMillis( parser.getText()));
+				break;
+			}
+			/// Anything unusual ( ie. a number for a string, or binary ) is rare enough
+			///  to read as a tree, and convert the same way as before
+			JsonNode jsonNode = parser.readValueAsTree();
+			return parseJson( jsonNode);
+		}
+
 		@Override
 		public ObjectInspector getReturnType() {
 			return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(category);
@@ -36,9 +36,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 import org.apache.hadoop.io.Text;
-import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
 
@@ -111,12 +109,11 @@ public class JsonMapUDF extends GenericUDF {
 	public Object evaluate(DeferredObject[] arguments) throws HiveException {
 		try {
 		    String jsonString =  this.stringInspector.getPrimitiveJavaObject(arguments[0].get());
-			
+		    if(jsonString == null)
+		        return null;
+
 		    //// Logic is the same as "from_json"
-            ObjectMapper om = new ObjectMapper();
-            JsonNode jsonNode = om.readTree( jsonString);
-            return inspHandle.parseJson(jsonNode);
-            
+		    return JsonMapperFactory.ParseJson( jsonString, inspHandle);
 		} catch (JsonProcessingException e) {
 			throw new HiveException(e);
 		} catch (IOException e) {
@@ -0,0 +1,66 @@
+package brickhouse.udf.json;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ *  Holds a single Jackson ObjectMapper, shared by all the JSON UDFs.
+ *
+ *  ObjectMapper is expensive to construct, but thread-safe once
+ *   configured, so there is no need to create one for every row.
+ *   Its JsonFactory has the mapper as its codec, so parsers created
+ *   from it can still read a subtree as a JsonNode when needed.
+ */
+final public class JsonMapperFactory {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private JsonMapperFactory() {}
+
+	static public ObjectMapper GetObjectMapper() {
+		return OBJECT_MAPPER;
+	}
+
+	static public JsonFactory GetJsonFactory() {
+		return OBJECT_MAPPER.getJsonFactory();
+	}
+
+	static public JsonNode ReadTree( String jsonString) throws IOException {
+		return OBJECT_MAPPER.readTree( jsonString);
+	}
+
+	/**
+	 *  Parse a JSON string directly into the Hive object described by the handle,
+	 *   streaming over the tokens rather than building a JsonNode tree first.
+	 */
+	static public Object ParseJson( String jsonString, InspectorHandle handle) throws IOException {
+		JsonParser parser = GetJsonFactory().createJsonParser( jsonString);
+		try {
+			if( parser.nextToken() == null) {
+				return null;
+			}
+			return handle.parseJson( parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+}
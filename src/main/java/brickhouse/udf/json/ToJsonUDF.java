@@ -16,10 +16,13 @@ package brickhouse.udf.json;
  *
  **/
 
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -49,9 +52,11 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.ShortObjectInspec
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.TimestampObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableConstantBooleanObjectInspector;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -69,15 +74,28 @@ import org.joda.time.format.ISODateTimeFormat;
  *            "color_list":[ "red", "yellow", "green" ],
  *            "inner_map":{ "a":1, "b":2, "c":3 } }' 
  *              
+ *   If the binary flag is set, the JSON is returned as UTF-8 bytes,
+ *    rather than as a string.
+ *
+ *   Struct field names are encoded once, when the UDF is initialized,
+ *    and the same output buffer and JsonGenerator are reused for every row.
  *
  */
 @Description(name="to_json",
-    value = "_FUNC_(struct, convert_to_camel_case) - Returns a JSON string from an arbitrary Hive structure."
+    value = "_FUNC_(struct, convert_to_camel_case, binary) - Returns a JSON string from an arbitrary Hive structure."
+    + " If binary is true, returns the JSON as UTF-8 bytes instead."
 )
 public class ToJsonUDF extends GenericUDF {
+	/// Limit on the converted map keys remembered by each map handle
+	private static final int MAX_CONVERTED_KEYS = 10000;
+
 	private InspectorHandle inspHandle;
 	private Boolean convertFlag = Boolean.FALSE;
+	private boolean binaryFlag = false;
 	private JsonFactory jsonFactory;
+	private JsonGenerator generator;
+	private RowCharBuffer charBuffer;
+	private RowByteBuffer byteBuffer;
 	
 	
 	private interface  InspectorHandle {
@@ -89,6 +107,8 @@ public class ToJsonUDF extends GenericUDF {
 		private MapObjectInspector mapInspector;
 		private StringObjectInspector keyObjectInspector;
 		private InspectorHandle valueInspector;
+		/// Map keys tend to repeat from row to row, so remember their camel case names
+		private Map<String,SerializedString> convertedKeys = new HashMap<String,SerializedString>();
 
 
 		public MapInspectorHandle( MapObjectInspector mInsp) throws UDFArgumentException {
@@ -113,7 +133,7 @@ public class ToJsonUDF extends GenericUDF {
 					Map.Entry entry = iter.next();
 					String keyJson = keyObjectInspector.getPrimitiveJavaObject(entry.getKey());
 					if( convertFlag) {
-						gen.writeFieldName( FromJsonUDF.ToCamelCase(keyJson));
+						gen.writeFieldName( getConvertedKey( keyJson));
 					} else {
 						gen.writeFieldName( keyJson);
 					}
@@ -123,21 +143,35 @@ public class ToJsonUDF extends GenericUDF {
 			}
 		}
 
+		private SerializedString getConvertedKey( String key) {
+			SerializedString converted = convertedKeys.get( key);
+			if( converted == null) {
+				converted = new SerializedString( FromJsonUDF.ToCamelCase( key));
+				if( convertedKeys.size() < MAX_CONVERTED_KEYS) {
+					convertedKeys.put( key, converted);
+				}
+			}
+			return converted;
+		}
+
 	}
 	
 	
 	private class StructInspectorHandle implements InspectorHandle {
 		private StructObjectInspector structInspector;
-		private List<String> fieldNames;
+		/// Field names, converted and encoded once rather than for every row
+		private SerializedString[] fieldNames;
 		private List<InspectorHandle> fieldInspectorHandles;
 		
 		public StructInspectorHandle(StructObjectInspector insp) throws UDFArgumentException {
 			structInspector = insp;
 			List<? extends StructField> fieldList = insp.getAllStructFieldRefs();
-			this.fieldNames = new ArrayList<String>();
+			this.fieldNames = new SerializedString[ fieldList.size()];
 			this.fieldInspectorHandles = new ArrayList<InspectorHandle>();
-			for(StructField sf : fieldList) {
-			   fieldNames.add( sf.getFieldName());
+			for(int i=0; i<fieldList.size(); ++i) {
+			   StructField sf = fieldList.get(i);
+			   String fieldName = convertFlag ? FromJsonUDF.ToCamelCase( sf.getFieldName()) : sf.getFieldName();
+			   fieldNames[i] = new SerializedString( fieldName);
 			   fieldInspectorHandles.add( GenerateInspectorHandle( sf.getFieldObjectInspector() ));
 			}
 		}
@@ -151,13 +185,8 @@ public class ToJsonUDF extends GenericUDF {
 				gen.writeStartObject();
 				List structObjs = structInspector.getStructFieldsDataAsList(obj);
 
-				for(int i=0; i<fieldNames.size(); ++i) {
-					String fieldName = fieldNames.get(i);
-					if( convertFlag) {
-						gen.writeFieldName( FromJsonUDF.ToCamelCase(fieldName)) ;
-					} else {
-						gen.writeFieldName( fieldName);
-					}
+				for(int i=0; i<fieldNames.length; ++i) {
+					gen.writeFieldName( fieldNames[i]);
 					fieldInspectorHandles.get(i).generateJson( gen, structObjs.get(i));
 				}
 				gen.writeEndObject();
@@ -410,16 +439,53 @@ public class ToJsonUDF extends GenericUDF {
 	
 
 
+  /**
+   *  Output buffers which are reset for every row.
+   *
+   *  Jackson writes a space between consecutive root-level values,
+   *   so every row after the first starts with one, which is skipped here.
+   */
+  static private class RowCharBuffer extends CharArrayWriter {
+	  public String toRowString() {
+		  int start = (count > 0 && buf[0] == ' ') ? 1 : 0;
+		  return new String( buf, start, count - start);
+	  }
+  }
+
+  static private class RowByteBuffer extends ByteArrayOutputStream {
+	  public byte[] toRowBytes() {
+		  int start = (count > 0 && buf[0] == ' ') ? 1 : 0;
+		  return Arrays.copyOfRange( buf, start, count);
+	  }
+  }
+
+  private JsonGenerator createGenerator() throws IOException {
+	  if( binaryFlag) {
+		  byteBuffer = new RowByteBuffer();
+		  return jsonFactory.createJsonGenerator( byteBuffer, JsonEncoding.UTF8);
+	  } else {
+		  charBuffer = new RowCharBuffer();
+		  return jsonFactory.createJsonGenerator( charBuffer);
+	  }
+  }
+
   @Override
   public Object evaluate(DeferredObject[] args) throws HiveException {
 	  try { 
-		  StringWriter writer = new StringWriter();
-		  JsonGenerator gen = jsonFactory.createJsonGenerator( writer);
-		  inspHandle.generateJson(gen,  args[0].get() );
-		  gen.close();
-		  writer.close();
-		  return writer.toString();
+		  if( generator == null) {
+			  generator = createGenerator();
+		  }
+		  if( binaryFlag) {
+			  byteBuffer.reset();
+		  } else {
+			  charBuffer.reset();
+		  }
+		  inspHandle.generateJson( generator,  args[0].get() );
+		  generator.flush();
+		  return binaryFlag ? byteBuffer.toRowBytes() : charBuffer.toRowString();
 	  } catch(  IOException io ) {
+		 /// The generator may be left part way through a value, so start over with a new one
+		 generator = null;
 		 throw new HiveException(io);
 	  }
 	  
@@ -433,27 +499,39 @@ public class ToJsonUDF extends GenericUDF {
   @Override
   public ObjectInspector initialize(ObjectInspector[] args)
       throws UDFArgumentException {
-    if(args.length != 1 && args.length != 2 ) {
-      throw new UDFArgumentException(" ToJson takes an object as an argument, and an optional to_camel_case flag");
+    if(args.length < 1 || args.length > 3 ) {
+      throw new UDFArgumentException(" ToJson takes an object as an argument, and optional to_camel_case and binary flags");
     }
     ObjectInspector oi= args[0];
-    inspHandle = GenerateInspectorHandle( oi);
     
-    if(args.length == 2 ) {
-    	ObjectInspector flagInsp = args[1];
-    	if( flagInsp.getCategory() != Category.PRIMITIVE 
-   		  || ((PrimitiveObjectInspector)flagInsp).getPrimitiveCategory()
-   		      != PrimitiveCategory.BOOLEAN
-   		  || !(flagInsp instanceof ConstantObjectInspector )) {
-    		throw new UDFArgumentException(" ToJson takes an object as an argument, and an optional to_camel_case flag");
-    	}
-    	WritableConstantBooleanObjectInspector constInsp= (WritableConstantBooleanObjectInspector) flagInsp;
-    	convertFlag = constInsp.getWritableConstantValue().get();
+    /// The flags are needed before the handles are generated, since field names are converted up front
+    if(args.length > 1 ) {
+    	convertFlag = GetConstantFlag( args[1]);
     }
+    if(args.length > 2 ) {
+    	binaryFlag = GetConstantFlag( args[2]);
+    }
+    inspHandle = GenerateInspectorHandle( oi);
     
     jsonFactory = new JsonFactory();
+    generator = null;
+
+    if( binaryFlag) {
+      return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+    } else {
+      return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+    }
+  }
 
-    return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+  static private boolean GetConstantFlag( ObjectInspector flagInsp) throws UDFArgumentException {
+	if( flagInsp.getCategory() != Category.PRIMITIVE 
+		  || ((PrimitiveObjectInspector)flagInsp).getPrimitiveCategory()
+		      != PrimitiveCategory.BOOLEAN
+		  || !(flagInsp instanceof ConstantObjectInspector )) {
+		throw new UDFArgumentException(" ToJson takes an object as an argument, and optional to_camel_case and binary flags");
+	}
+	WritableConstantBooleanObjectInspector constInsp= (WritableConstantBooleanObjectInspector) flagInsp;
+	return constInsp.getWritableConstantValue().get();
   }
 
 }
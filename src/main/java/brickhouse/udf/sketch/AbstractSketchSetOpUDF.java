@@ -0,0 +1,131 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.io.IntWritable;
+
+import brickhouse.analytics.uniques.SketchHash;
+import brickhouse.analytics.uniques.SketchSetAlgebra;
+
+/**
+ *  Base class for UDFs which compare two sketch sets
+ *   directly from their hashes.
+ *
+ *  Sketches may be binary sketches from sketch_set_bin,
+ *   arrays of hashes from sketch_hashes, or, as a convenience,
+ *   the array of strings from sketch_set ( which must be hashed ).
+ *  An optional constant int gives the sketch size for array arguments,
+ *   and an optional constant string the hash they were built with
+ *   ( ie. 'xxhash64'), which defaults to MD5.
+ */
+public abstract class AbstractSketchSetOpUDF extends GenericUDF {
+	private SketchArgument[] sketchArgs = new SketchArgument[2];
+	private int sketchSetSize = SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE;
+	private SketchHash declaredHash;
+
+
+	abstract protected String getFuncName();
+
+	abstract protected ObjectInspector getReturnInspector();
+
+	abstract protected Object evaluateAlgebra( SketchSetAlgebra algebra);
+
+
+	@Override
+	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		Object aObj = arg0[0].get();
+		Object bObj = arg0[1].get();
+		if( aObj == null || bObj == null) {
+			return null;
+		}
+		try {
+			checkSketchHashes( aObj, bObj);
+			int aMax = sketchArgs[0].getMaxItems( aObj, sketchSetSize);
+			long[] a = sketchArgs[0].getHashes( aObj);
+			int bMax = sketchArgs[1].getMaxItems( bObj, sketchSetSize);
+			long[] b = sketchArgs[1].getHashes( bObj);
+			return evaluateAlgebra( new SketchSetAlgebra( a, aMax, b, bMax));
+		} catch(IllegalArgumentException illArg) {
+			throw new HiveException( illArg);
+		}
+	}
+
+	/**
+	 *  Make sure both sketches were built with the same hash,
+	 *   and with the declared one, if there is one.
+	 *   Only arrays of hashes without a declared hash can't be checked.
+	 */
+	private void checkSketchHashes( Object aObj, Object bObj) throws HiveException {
+		SketchHash aHash = sketchArgs[0].getSketchHash( aObj);
+		SketchHash bHash = sketchArgs[1].getSketchHash( bObj);
+		if( aHash != null && bHash != null && aHash != bHash) {
+			throw new HiveException( getFuncName() + " can not compare a sketch hashed with " + aHash + " to one hashed with " + bHash
+					+ " ; pass the hash of array sketches as the fourth argument");
+		}
+	}
+
+	@Override
+	public String getDisplayString(String[] arg0) {
+		StringBuilder sb = new StringBuilder( getFuncName() + "( ");
+		for(int i=0; i<arg0.length - 1; ++i) {
+			sb.append( arg0[i]);
+			sb.append(" , ");
+		}
+		sb.append(arg0[arg0.length -1 ]);
+		sb.append(" )");
+		return sb.toString();
+	}
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		String usage = getFuncName() + " takes two binary sketches, or two arrays of hashes or sketch strings, and an optional sketch size and hash";
+		if( arg0.length < 2 || arg0.length > 4) {
+			throw new UDFArgumentException( usage);
+		}
+		for(int i=0; i<2; ++i) {
+			sketchArgs[i] = SketchArgument.ForInspector( arg0[i]);
+			if( sketchArgs[i] == null) {
+				throw new UDFArgumentException( usage);
+			}
+		}
+		if( arg0.length > 2) {
+			if( !(arg0[2] instanceof ConstantObjectInspector)
+					|| arg0[2].getCategory() != Category.PRIMITIVE
+					|| ((PrimitiveObjectInspector) arg0[2]).getPrimitiveCategory() != PrimitiveCategory.INT) {
+				throw new UDFArgumentException(" Sketch set size must be a constant int");
+			}
+			this.sketchSetSize = ((IntWritable)((ConstantObjectInspector) arg0[2]).getWritableConstantValue()).get();
+		}
+		if( arg0.length > 3) {
+			this.declaredHash = SketchSetUDAF.GetSketchHash( arg0[3]);
+			for( SketchArgument sketchArg : sketchArgs) {
+				sketchArg.setDeclaredHash( declaredHash);
+			}
+		}
+		return getReturnInspector();
+	}
+
+}
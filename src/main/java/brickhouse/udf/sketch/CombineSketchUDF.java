@@ -29,10 +29,13 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 
+import brickhouse.analytics.uniques.BinarySketchSet;
+import brickhouse.analytics.uniques.LongSketchSet;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -43,6 +46,9 @@ import brickhouse.analytics.uniques.SketchSet;
  *    the original sketch_set values; if array<bigint> is used, then
  *     it is assumed to be the KMin hash values created with sketch_values
  *
+ *  If binary sketches created with sketch_set_bin are passed in,
+ *    they are merged without re-hashing, and a binary sketch is returned.
+ *
  */
 @Description(name="combine_sketch",
     value = "_FUNC_(x) - Combine two sketch sets. "
@@ -50,10 +56,14 @@ import brickhouse.analytics.uniques.SketchSet;
 public class CombineSketchUDF extends GenericUDF {
 	private ListObjectInspector listInspectors[];
 	private PrimitiveCategory elemCategory;
+	private BinaryObjectInspector binaryInspectors[];
 	private int sketchSetSize = SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE;
 	
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		if( binaryInspectors != null) {
+			return evaluateBinary( arg0);
+		}
 		SketchSet ss = new SketchSet(sketchSetSize);
 		for( int i=0; i< arg0.length; ++i) {
 			Object listObj = arg0[i].get();
@@ -85,6 +95,30 @@ public class CombineSketchUDF extends GenericUDF {
 	    }
 	}
 
+	private Object evaluateBinary(DeferredObject[] arg0) throws HiveException {
+		LongSketchSet ss = null;
+		try {
+			for( int i=0; i< arg0.length; ++i) {
+				Object binObj = arg0[i].get();
+				if( binObj == null) {
+					continue;
+				}
+				byte[] sketchBytes = binaryInspectors[i].getPrimitiveJavaObject( binObj);
+				if( ss == null) {
+					ss = BinarySketchSet.FromBytes( sketchBytes);
+				} else {
+					BinarySketchSet.MergeBytes( ss, sketchBytes);
+				}
+			}
+		} catch(IllegalArgumentException illArg) {
+			throw new HiveException( illArg);
+		}
+		if( ss == null) {
+			return null;
+		}
+		return BinarySketchSet.ToBytes( ss);
+	}
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		return "combine_sketch";
@@ -96,6 +130,16 @@ public class CombineSketchUDF extends GenericUDF {
 		if( arg0.length < 2 ) {
 			throw new UDFArgumentException("combine_sketch takes at least two arguments; a set of array<string> or a set of array<bigint>");
 		}
+		if( arg0[0] instanceof BinaryObjectInspector) {
+			this.binaryInspectors = new BinaryObjectInspector[ arg0.length];
+			for(int i=0; i< arg0.length; ++i) {
+				if( !(arg0[i] instanceof BinaryObjectInspector)) {
+					throw new UDFArgumentException("combine_sketch takes either all binary sketches, or all arrays");
+				}
+				this.binaryInspectors[i] = (BinaryObjectInspector) arg0[i];
+			}
+			return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+		}
 		if(arg0[0].getCategory() != Category.LIST) {
 			throw new UDFArgumentException("combine_sketch takes at least two arguments; a set of array<string> or a set of array<bigint>");
 		}
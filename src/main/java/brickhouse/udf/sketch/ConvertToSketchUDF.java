@@ -37,7 +37,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
-import brickhouse.analytics.uniques.SketchSet;
+import brickhouse.analytics.uniques.LongSketchSet;
+import brickhouse.analytics.uniques.SketchHash;
 
 /*
  *  Take an array of strings, and convert to a truncated array,
@@ -47,7 +48,8 @@ import brickhouse.analytics.uniques.SketchSet;
  *    and converting to sketch sets.
  */
 @Description(name="convert_to_sketch",
-value = "_FUNC_(x) - Truncate a large array of strings, and return a list of strings representing a sketch of those items "
+value = "_FUNC_(x, size, hash) - Truncate a large array of strings, and return a list of strings representing a sketch of those items. "
+    + " The optional hash is one of 'md5' ( the default ), 'murmur3_128' or 'xxhash64'. "
 )
 public class ConvertToSketchUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( ConvertToSketchUDF.class);
@@ -55,6 +57,7 @@ public class ConvertToSketchUDF extends GenericUDF {
 	private StringObjectInspector listElemInspector;
 	private StandardListObjectInspector retInspector;
 	private int sketchSetSize = SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE;
+	private SketchHash sketchHash = SketchHash.DEFAULT;
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
@@ -63,7 +66,7 @@ public class ConvertToSketchUDF extends GenericUDF {
 			return null;
 		}
 		List oldList = listInspector.getList(obj);
-		SketchSet sketchSet  = new SketchSet( sketchSetSize);
+		LongSketchSet sketchSet  = new LongSketchSet( sketchSetSize, true, sketchHash);
 		for( Object oldObj : oldList) {
 			if( oldObj == null) {
 				LOG.warn(" Object in uninspected List is null");
@@ -83,8 +86,8 @@ public class ConvertToSketchUDF extends GenericUDF {
 	@Override
 	public ObjectInspector initialize(ObjectInspector[] arg0)
 			throws UDFArgumentException {
-	    if(arg0.length > 2) {
-	       throw new UDFArgumentException("convert_to_sketch takes an array of strings, and an optional sketch set size.");
+	    if(arg0.length > 3) {
+	       throw new UDFArgumentException("convert_to_sketch takes an array of strings, and an optional sketch set size and hash.");
 	    }
 	    if(arg0[0].getCategory() != Category.LIST) {
 	       throw new UDFArgumentException("convert_to_sketch takes an array of strings, and an optional sketch set size.");
@@ -104,6 +107,9 @@ public class ConvertToSketchUDF extends GenericUDF {
 		   IntWritable sizeInt = (IntWritable)((ConstantObjectInspector)arg0[1]).getWritableConstantValue();
 		   sketchSetSize = sizeInt.get();
 		}
+		if(arg0.length > 2) {
+		   sketchHash = SketchSetUDAF.GetSketchHash( arg0[2]);
+		}
 		
 		retInspector =  ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
 		return retInspector;
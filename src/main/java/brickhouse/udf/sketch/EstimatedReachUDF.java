@@ -28,21 +28,28 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.BinarySketchSet;
+import brickhouse.analytics.uniques.SketchHash;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
  *  Interpret a list of strings as a sketch_set
  *  and return an estimated reach number
  *
+ *  A binary sketch created with sketch_set_bin may also be passed.
+ *
+ *  If the sketch of strings was built with a hash other than MD5,
+ *   it must be passed as the third argument.
  */
 @Description(name="estimated_reach",
-    value = "_FUNC_(x) - Estimate reach from a  sketch set of Strings. "
+    value = "_FUNC_(x) - Estimate reach from a  sketch set of Strings, or a binary sketch set. "
 )
 public class EstimatedReachUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( EstimatedReachUDF.class);
@@ -51,10 +58,15 @@ public class EstimatedReachUDF extends GenericUDF {
 	private PrimitiveObjectInspector elemInspector;
 	private PrimitiveCategory elemCategory;
 	private IntObjectInspector lengthInspector;
+	private BinaryObjectInspector binaryInspector;
+	private SketchHash sketchHash = SketchHash.DEFAULT;
 	
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		if( binaryInspector != null) {
+			return evaluateBinary( arg0[0].get());
+		}
 		Object listObj = arg0[0].get();
 		int maxItems = SketchSet.DEFAULT_MAX_ITEMS;
 		if( arg0.length > 1) {
@@ -73,7 +85,7 @@ public class EstimatedReachUDF extends GenericUDF {
 		case STRING :
 			StringObjectInspector strInspector = (StringObjectInspector) elemInspector;
 			String lastItem = strInspector.getPrimitiveJavaObject(uninspMax);
-			double reach = SketchSet.EstimatedReach( lastItem, maxItems);
+			double reach = SketchSet.EstimatedReach( lastItem, maxItems, sketchHash);
 			if( reach > listLen)
 			   return (long)(reach);
 			else 
@@ -92,6 +104,21 @@ public class EstimatedReachUDF extends GenericUDF {
 		} 
 	}
 
+	private Object evaluateBinary( Object binObj) throws HiveException {
+		if( binObj == null) {
+			return null;
+		}
+		byte[] sketchBytes = binaryInspector.getPrimitiveJavaObject( binObj);
+		if( sketchBytes == null) {
+			return null;
+		}
+		try {
+			return (long) BinarySketchSet.EstimatedReach( sketchBytes);
+		} catch(IllegalArgumentException illArg) {
+			throw new HiveException( illArg);
+		}
+	}
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		StringBuilder sb = new StringBuilder("estimated_reach( ");
@@ -107,9 +134,16 @@ public class EstimatedReachUDF extends GenericUDF {
 	@Override
 	public ObjectInspector initialize(ObjectInspector[] arg0)
 			throws UDFArgumentException {
-		if( arg0.length != 1 && arg0.length != 2 ) {
+		if( arg0.length < 1 || arg0.length > 3 ) {
 			throw new UDFArgumentException("estimated_reach takes an array of strings or an array of hashes, and an optional sketch size");
 		}
+		if( arg0[0] instanceof BinaryObjectInspector) {
+			if( arg0.length > 1) {
+				throw new UDFArgumentException("estimated_reach takes the sketch size from the header of a binary sketch");
+			}
+			this.binaryInspector = (BinaryObjectInspector) arg0[0];
+			return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+		}
 		if( arg0[0].getCategory() != Category.LIST) {
 			throw new UDFArgumentException("estimated_reach takes an array of strings or an array of hashes, and an optional sketch size");
 		}
@@ -131,6 +165,9 @@ public class EstimatedReachUDF extends GenericUDF {
 			}
 			this.lengthInspector = (IntObjectInspector) arg0[1];
 		}
+		if( arg0.length > 2) {
+			this.sketchHash = SketchSetUDAF.GetSketchHash( arg0[2]);
+		}
 		
 		return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
 	}
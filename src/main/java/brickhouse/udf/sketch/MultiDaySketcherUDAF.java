@@ -43,6 +43,7 @@ import org.joda.time.Days;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import brickhouse.analytics.uniques.LongSketchSet;
 import brickhouse.analytics.uniques.SketchSet;
 
 
@@ -122,7 +123,7 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
 
         static class MultiDaySketchBuffer implements AggregationBuffer {
             long counts[];
-            SketchSet[] sketches;
+            LongSketchSet[] sketches;
         }
 
 
@@ -299,10 +300,10 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
             MultiDaySketchBuffer countBuff = (MultiDaySketchBuffer) buff;
             if (daysArr != null) {
                 countBuff.counts = new long[daysArr.length];
-                countBuff.sketches = new SketchSet[daysArr.length];
+                countBuff.sketches = new LongSketchSet[daysArr.length];
 
                 for (int i = 0; i < countBuff.sketches.length; ++i)
-                    countBuff.sketches[i] = new SketchSet(sketchSetSize);
+                    countBuff.sketches[i] = new LongSketchSet(sketchSetSize);
             }
         }
 
@@ -0,0 +1,165 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+
+import brickhouse.analytics.uniques.BinarySketchSet;
+import brickhouse.analytics.uniques.LongSketchSet;
+import brickhouse.analytics.uniques.SketchHash;
+
+/**
+ *  A sketch passed as a UDF argument, which may be a binary sketch
+ *   from sketch_set_bin, an array of hashes from sketch_hashes, or
+ *   the array of strings from sketch_set ( which must be hashed ).
+ *
+ *  Hashes of array<bigint> arguments are read into a buffer
+ *   which is reused between rows.
+ *
+ *  Arrays don't record how they were hashed. Strings are hashed with
+ *   the declared hash, or the default MD5 ( as sketch_set does), and
+ *   arrays of hashes are assumed to use the declared hash, if any.
+ */
+class SketchArgument {
+	private final ObjectInspector inspector;
+	private SketchHash declaredHash;
+	private long[] hashBuffer;
+
+
+	private SketchArgument( ObjectInspector inspector) {
+		this.inspector = inspector;
+	}
+
+	/**
+	 *  Return a SketchArgument for the inspector,
+	 *   or null if it is not a supported sketch type.
+	 */
+	public static SketchArgument ForInspector( ObjectInspector inspector) {
+		if( inspector instanceof BinaryObjectInspector) {
+			return new SketchArgument( inspector);
+		}
+		if( inspector.getCategory() == Category.LIST) {
+			ObjectInspector elemInspector = ((ListObjectInspector) inspector).getListElementObjectInspector();
+			if( elemInspector.getCategory() != Category.PRIMITIVE) {
+				return null;
+			}
+			PrimitiveCategory elemCategory = ((PrimitiveObjectInspector) elemInspector).getPrimitiveCategory();
+			if( elemCategory == PrimitiveCategory.STRING
+					|| elemCategory == PrimitiveCategory.LONG) {
+				return new SketchArgument( inspector);
+			}
+		}
+		return null;
+	}
+
+	public boolean isBinary() {
+		return inspector instanceof BinaryObjectInspector;
+	}
+
+	private boolean isStringArray() {
+		return !isBinary()
+				&& ((ListObjectInspector) inspector).getListElementObjectInspector() instanceof StringObjectInspector;
+	}
+
+	/**
+	 *  Set the hash which array arguments were built with
+	 */
+	public void setDeclaredHash( SketchHash declaredHash) {
+		this.declaredHash = declaredHash;
+	}
+
+	/**
+	 *  Return the hash of a sketch; recorded for binary sketches,
+	 *   and the hash used for arrays of strings. For arrays of hashes,
+	 *   this is the declared hash, or null if none was given.
+	 */
+	public SketchHash getSketchHash( Object sketchObj) {
+		if( isBinary()) {
+			return BinarySketchSet.GetSketchHash( ((BinaryObjectInspector) inspector).getPrimitiveJavaObject( sketchObj));
+		}
+		if( isStringArray()) {
+			return getStringHash();
+		}
+		return declaredHash;
+	}
+
+	private SketchHash getStringHash() {
+		return declaredHash != null ? declaredHash : SketchHash.DEFAULT;
+	}
+
+	/**
+	 *  Return the max items of a binary sketch,
+	 *   or the default size for arrays.
+	 */
+	public int getMaxItems( Object sketchObj, int defaultSize) {
+		if( isBinary()) {
+			return BinarySketchSet.GetMaxItems( ((BinaryObjectInspector) inspector).getPrimitiveJavaObject( sketchObj));
+		}
+		return defaultSize;
+	}
+
+	/**
+	 *  Return the sorted hashes of a sketch argument
+	 */
+	public long[] getHashes( Object sketchObj) {
+		if( isBinary()) {
+			byte[] bytes = ((BinaryObjectInspector) inspector).getPrimitiveJavaObject( sketchObj);
+			return BinarySketchSet.GetHashes( bytes);
+		}
+		ListObjectInspector listInspector = (ListObjectInspector) inspector;
+		ObjectInspector elemInspector = listInspector.getListElementObjectInspector();
+		int listLen = listInspector.getListLength( sketchObj);
+		if( elemInspector instanceof StringObjectInspector) {
+			StringObjectInspector strInspector = (StringObjectInspector) elemInspector;
+			LongSketchSet sketch = new LongSketchSet( Math.max( listLen, 1), false, getStringHash());
+			for(int i=0; i<listLen; ++i) {
+				String item = strInspector.getPrimitiveJavaObject( listInspector.getListElement( sketchObj, i));
+				if( item != null) {
+					sketch.addItem( item);
+				}
+			}
+			return sketch.toHashArray();
+		}
+		LongObjectInspector longInspector = (LongObjectInspector) elemInspector;
+		long[] hashes = hashBuffer;
+		if( hashes == null || hashes.length != listLen) {
+			hashes = new long[ listLen];
+			hashBuffer = hashes;
+		}
+		boolean sorted = true;
+		for(int i=0; i<listLen; ++i) {
+			hashes[i] = longInspector.get( listInspector.getListElement( sketchObj, i));
+			if( i > 0 && hashes[i] < hashes[i-1]) {
+				sorted = false;
+			}
+		}
+		if( !sorted) {
+			Arrays.sort( hashes);
+		}
+		return hashes;
+	}
+
+}
@@ -0,0 +1,49 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import brickhouse.analytics.uniques.SketchSetAlgebra;
+
+/**
+ *  Estimate the size of the intersection of two sketch sets,
+ *   from the hashes they share below the smaller of their thresholds.
+ */
+@Description(name="sketch_intersect",
+    value = "_FUNC_(a, b) - Estimate the size of the intersection of two sketch sets. "
+)
+public class SketchIntersectUDF extends AbstractSketchSetOpUDF {
+
+	@Override
+	protected String getFuncName() {
+		return "sketch_intersect";
+	}
+
+	@Override
+	protected ObjectInspector getReturnInspector() {
+		return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+	}
+
+	@Override
+	protected Object evaluateAlgebra( SketchSetAlgebra algebra) {
+		return (long) algebra.estimateIntersection();
+	}
+
+}
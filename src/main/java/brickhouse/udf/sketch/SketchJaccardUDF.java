@@ -0,0 +1,52 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import brickhouse.analytics.uniques.SketchSetAlgebra;
+
+/**
+ *  Compute the Jaccard similarity of two sketch sets,
+ *   as the fraction of the hashes below the smaller of their thresholds
+ *   which are found in both.
+ *
+ *  Unlike set_similarity, binary sketches and arrays of hashes are not re-hashed.
+ */
+@Description(name="sketch_jaccard",
+    value = "_FUNC_(a, b) - Compute the Jaccard set similarity of two sketch sets, without re-hashing. "
+)
+public class SketchJaccardUDF extends AbstractSketchSetOpUDF {
+
+	@Override
+	protected String getFuncName() {
+		return "sketch_jaccard";
+	}
+
+	@Override
+	protected ObjectInspector getReturnInspector() {
+		return PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+	}
+
+	@Override
+	protected Object evaluateAlgebra( SketchSetAlgebra algebra) {
+		return algebra.jaccard();
+	}
+
+}
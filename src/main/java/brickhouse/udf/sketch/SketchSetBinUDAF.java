@@ -0,0 +1,175 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.log4j.Logger;
+
+import brickhouse.analytics.uniques.SketchHash;
+
+
+/**
+ *  Construct a sketch set by aggregating over a a set of ID's,
+ *   and return it in the compact binary format,
+ *   rather than as an array of strings.
+ *
+ *  Partial results are passed in the binary format as well,
+ *   so that the shuffle does not carry a map of boxed hashes.
+ *
+ */
+
+@Description(name="sketch_set_bin",
+    value = "_FUNC_(x, size, keep_items, hash) - Constructs a binary sketch set to estimate reach for large values. "
+    + " If keep_items is true, the original strings are retained along with the hashes. "
+    + " The optional hash is one of 'md5' ( the default ), 'murmur3_128' or 'xxhash64'. "
+    + " x may be a string, bigint, int or binary; numbers hash the same as their string form. "
+)
+public class SketchSetBinUDAF extends AbstractGenericUDAFResolver {
+  private static final Logger LOG = Logger.getLogger(SketchSetBinUDAF.class);
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+          throws SemanticException {
+
+      String typeName = parameters[0].getTypeName();
+      if( !typeName.equals("string") && !typeName.equals("bigint")
+              && !typeName.equals("int") && !typeName.equals("binary")) {
+          throw new SemanticException("sketch_set_bin UDAF only takes String, bigint, int or binary as values; not " + typeName);
+      }
+      if((parameters.length > 1) && !parameters[1].getTypeName().equals("int")) {
+          throw new SemanticException("Size of sketch must be an int; Got " + parameters[1].getTypeName());
+      }
+      if((parameters.length > 2) && !parameters[2].getTypeName().equals("boolean")) {
+          throw new SemanticException("keep_items flag must be a boolean; Got " + parameters[2].getTypeName());
+      }
+      if((parameters.length > 3) && !parameters[3].getTypeName().equals("string")) {
+          throw new SemanticException("Sketch hash must be a string; Got " + parameters[3].getTypeName());
+      }
+      return new SketchSetBinUDAFEvaluator();
+  }
+
+
+  public static class SketchSetBinUDAFEvaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+	  private PrimitiveObjectInspector inputOI;
+	  private BinaryObjectInspector partialOI;
+	  private int sketchSetSize = -1;
+	  private boolean keepItems = false;
+	  private SketchHash sketchHash = SketchHash.DEFAULT;
+
+
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+        throws HiveException {
+      super.init(m, parameters);
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+    	  //// iterate() gets called.. string, number or binary is passed in
+    	  this.inputOI = (PrimitiveObjectInspector) parameters[0];
+    	  if( parameters.length > 1) {
+    	    if(!( parameters[1] instanceof ConstantObjectInspector ) ) {
+    	        throw new HiveException("Sketch Set size must be a constant");
+    	    }
+    	    ConstantObjectInspector sizeOI = (ConstantObjectInspector) parameters[1];
+            this.sketchSetSize = ((IntWritable) sizeOI.getWritableConstantValue()).get();
+    	  } else {
+    	    sketchSetSize = SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE;
+    	  }
+    	  if( parameters.length > 2) {
+    	    if(!( parameters[2] instanceof ConstantObjectInspector ) ) {
+    	        throw new HiveException("keep_items flag must be a constant");
+    	    }
+    	    ConstantObjectInspector keepOI = (ConstantObjectInspector) parameters[2];
+            this.keepItems = ((BooleanWritable) keepOI.getWritableConstantValue()).get();
+    	  }
+    	  if( parameters.length > 3) {
+    	    this.sketchHash = SketchSetUDAF.GetSketchHash( parameters[3]);
+    	  }
+      } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
+    	   /// merge() gets called ... binary sketch is passed in ..
+    	  this.partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      /// Both the intermediate and the final result are binary sketches
+      return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      SketchSetBuffer buff= new SketchSetBuffer();
+      buff.init(sketchSetSize, keepItems, sketchHash);
+      return buff;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+        throws HiveException {
+      Object strObj = parameters[0];
+
+      if (strObj != null) {
+          SketchSetBuffer myagg = (SketchSetBuffer) agg;
+          myagg.addItem( strObj, inputOI);
+      }
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+        throws HiveException {
+        SketchSetBuffer myagg = (SketchSetBuffer) agg;
+        if( partial != null) {
+            byte[] partialBytes = partialOI.getPrimitiveJavaObject( partial);
+            if( partialBytes != null) {
+                myagg.mergeBytes( partialBytes);
+            }
+        }
+    }
+
+    @Override
+    public void reset(AggregationBuffer buff) throws HiveException {
+      SketchSetBuffer sketchBuff = (SketchSetBuffer) buff;
+      sketchBuff.reset();
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SketchSetBuffer myagg = (SketchSetBuffer) agg;
+      if( myagg.getSize() == -1) {
+          /// No partials were merged
+          return null;
+      }
+      return myagg.getBytes();
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate( agg);
+    }
+  }
+
+
+}
@@ -3,18 +3,37 @@ package brickhouse.udf.sketch;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
 
-import brickhouse.analytics.uniques.SketchSet;
+import brickhouse.analytics.uniques.BinarySketchSet;
+import brickhouse.analytics.uniques.LongSketchSet;
+import brickhouse.analytics.uniques.SketchHash;
 
 class SketchSetBuffer implements AggregationBuffer {
-	private SketchSet sketchSet = null;
-	
+	private LongSketchSet sketchSet = null;
+
 
 	public void init(int size) {
-		if( sketchSet == null || 
-		    ((sketchSet.getMaxItems() != size) && (size != -1))) {
-			sketchSet = new SketchSet( size);
+		init( size, true);
+	}
+
+	public void init(int size, boolean keepItems) {
+		init( size, keepItems, SketchHash.DEFAULT);
+	}
+
+	public void init(int size, boolean keepItems, SketchHash sketchHash) {
+		if( sketchSet == null ||
+		    ((sketchSet.getMaxItems() != size) && (size != -1))
+		    || sketchSet.isKeepItems() != keepItems
+		    || sketchSet.getSketchHash() != sketchHash) {
+			sketchSet = new LongSketchSet( size, keepItems, sketchHash);
 		} else {
 			sketchSet.clear();
 		}
@@ -22,7 +41,7 @@ class SketchSetBuffer implements AggregationBuffer {
 	public void reset() {
 	  sketchSet.clear();
 	}
-	
+
 	public int getSize() {
 	  if ( sketchSet != null) {
 	      return sketchSet.getMaxItems();
@@ -30,21 +49,101 @@ class SketchSetBuffer implements AggregationBuffer {
 	    return -1;
 	  }
 	}
-	
+
+	public SketchHash getSketchHash() {
+	  return sketchSet.getSketchHash();
+	}
+
 	public List<String> getSketchItems() {
        return sketchSet.getMinHashItems();
 	}
-	
+
     public Map<Long,String> getPartialMap() {
 	    Map<Long,String> partial =  sketchSet.getHashItemMap();
 	    partial.put( (long)sketchSet.getMaxItems(), SketchSetUDAF.SKETCH_SIZE_STR);
+	    if( sketchSet.getSketchHash() != SketchHash.MD5) {
+	        /// Only record non-default hashes, so MD5 partials are unchanged
+	        partial.put( (long)sketchSet.getSketchHash().getId(), SketchSetUDAF.SKETCH_HASH_STR);
+	    }
 	    return partial;
     }
-    
+
+    /**
+     *  Merge a partial map of hashes to items,
+     *   initializing the buffer from the size and hash markers if necessary.
+     */
+    public void mergePartialMap( Map<Object,Object> partialResult, LongObjectInspector hashOI, StringObjectInspector strOI) throws HiveException {
+        int partialSize = -1;
+        SketchHash partialHash = SketchHash.MD5;
+        for( Map.Entry entry : partialResult.entrySet()) {
+            String item = strOI.getPrimitiveJavaObject( entry.getValue());
+            if( SketchSetUDAF.SKETCH_SIZE_STR.equals( item)) {
+                partialSize = (int) hashOI.get( entry.getKey());
+            } else if( SketchSetUDAF.SKETCH_HASH_STR.equals( item)) {
+                partialHash = SketchHash.FromId( (int) hashOI.get( entry.getKey()));
+            }
+        }
+        if( getSize() == -1) {
+            init( partialSize != -1 ? partialSize : SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE, true, partialHash);
+        } else if( sketchSet.getSketchHash() != partialHash) {
+            throw new HiveException("Can not merge a sketch hashed with " + partialHash
+                    + " into a sketch hashed with " + sketchSet.getSketchHash());
+        }
+        for( Map.Entry entry : partialResult.entrySet()) {
+            String item = strOI.getPrimitiveJavaObject( entry.getValue());
+            if( !SketchSetUDAF.SKETCH_SIZE_STR.equals( item)
+                    && !SketchSetUDAF.SKETCH_HASH_STR.equals( item)) {
+                addHash( hashOI.get( entry.getKey()), item);
+            }
+        }
+    }
+
     public void addItem( String str) {
        sketchSet.addItem( str) ;
     }
-    public void addHash( Long hash, String str) {
+
+    /**
+     *  Add a string, bigint, int or binary value, read directly
+     *   through its inspector. Numbers hash the same as their
+     *   decimal strings, but without creating the string.
+     */
+    public void addItem( Object obj, PrimitiveObjectInspector inputOI) {
+       switch( inputOI.getPrimitiveCategory()) {
+       case LONG:
+          sketchSet.addLongItem( ((LongObjectInspector) inputOI).get( obj));
+          break;
+       case INT:
+          sketchSet.addLongItem( ((IntObjectInspector) inputOI).get( obj));
+          break;
+       case BINARY:
+          BytesWritable bytes = ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject( obj);
+          sketchSet.addBytesItem( bytes.getBytes(), 0, bytes.getLength());
+          break;
+       default:
+          sketchSet.addItem( ((StringObjectInspector) inputOI).getPrimitiveJavaObject( obj));
+       }
+    }
+
+    public void addHash( long hash, String str) {
     	sketchSet.addHashItem( hash, str );
     }
-}
\ No newline at end of file
+
+    public byte[] getBytes() {
+    	return BinarySketchSet.ToBytes( sketchSet);
+    }
+
+    /**
+     *  Merge a sketch in the binary format,
+     *   initializing the buffer from its header if necessary.
+     */
+    public void mergeBytes( byte[] bytes) throws HiveException {
+    	try {
+    		if( getSize() == -1) {
+    			init( BinarySketchSet.GetMaxItems( bytes), BinarySketchSet.HasItems( bytes), BinarySketchSet.GetSketchHash( bytes));
+    		}
+    		BinarySketchSet.MergeBytes( sketchSet, bytes);
+    	} catch(IllegalArgumentException illArg) {
+    		throw new HiveException( illArg);
+    	}
+    }
+}
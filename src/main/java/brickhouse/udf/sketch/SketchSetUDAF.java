@@ -21,6 +21,7 @@ package brickhouse.udf.sketch;
 import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
@@ -29,6 +30,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
@@ -37,6 +39,8 @@ import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.SketchHash;
+
 
 /**
  *  Construct a sketch set by aggregating over a a set of ID's
@@ -45,12 +49,32 @@ import org.apache.log4j.Logger;
  */
 
 @Description(name="sketch_set",
-    value = "_FUNC_(x) - Constructs a sketch set to estimate reach for large values  "
+    value = "_FUNC_(x, size, hash) - Constructs a sketch set to estimate reach for large values. "
+    + " The optional hash is one of 'md5' ( the default ), 'murmur3_128' or 'xxhash64'. "
+    + " x may be a string, bigint or int; numbers hash the same as their string form. "
 )
 public class SketchSetUDAF extends AbstractGenericUDAFResolver {
   private static final Logger LOG = Logger.getLogger(SketchSetUDAF.class);
   public static int DEFAULT_SKETCH_SET_SIZE =  5000;
   static String SKETCH_SIZE_STR = "SKETCH_SIZE";
+  static String SKETCH_HASH_STR = "SKETCH_HASH";
+
+
+  /**
+   *  Return the SketchHash named by a constant string argument
+   */
+  static SketchHash GetSketchHash( ObjectInspector hashOI) throws UDFArgumentException {
+      if(!( hashOI instanceof ConstantObjectInspector )
+              || !( hashOI instanceof StringObjectInspector)) {
+          throw new UDFArgumentException("Sketch hash must be a constant string");
+      }
+      String hashName = ((ConstantObjectInspector) hashOI).getWritableConstantValue().toString();
+      try {
+          return SketchHash.FromName( hashName);
+      } catch(IllegalArgumentException illArg) {
+          throw new UDFArgumentException( illArg.getMessage());
+      }
+  }
 
 
   @Override
@@ -58,23 +82,28 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
           throws SemanticException {
 
       if( !parameters[0].getTypeName().equals("string") 
-              && !parameters[0].getTypeName().equals("bigint")) {
-          throw new SemanticException("sketch_set UDAF only takes String or longs as values; not " + parameters[0].getTypeName());
+              && !parameters[0].getTypeName().equals("bigint")
+              && !parameters[0].getTypeName().equals("int")) {
+          throw new SemanticException("sketch_set UDAF only takes String, bigint or int as values; not " + parameters[0].getTypeName());
       }
       if((parameters.length > 1) && !parameters[1].getTypeName().equals("int")) {
           throw new SemanticException("Size of sketch must be an int; Got " + parameters[1].getTypeName());
       }
+      if((parameters.length > 2) && !parameters[2].getTypeName().equals("string")) {
+          throw new SemanticException("Sketch hash must be a string; Got " + parameters[2].getTypeName());
+      }
       return new SketchSetUDAFEvaluator();
   }
 
 
   public static class SketchSetUDAFEvaluator extends GenericUDAFEvaluator {
     // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
-	  private StringObjectInspector inputStrOI;
+	  private PrimitiveObjectInspector inputOI;
 	  private MapObjectInspector partialMapOI;
 	  private LongObjectInspector partialMapHashOI;
 	  private StringObjectInspector partialMapStrOI;
 	  private int sketchSetSize = -1;
+	  private SketchHash sketchHash = SketchHash.DEFAULT;
 
 
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -82,8 +111,8 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
       super.init(m, parameters);
       /// 
       if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
-    	  //// iterate() gets called.. string is passed in
-    	  this.inputStrOI = (StringObjectInspector) parameters[0];
+    	  //// iterate() gets called.. string, bigint or int is passed in
+    	  this.inputOI = (PrimitiveObjectInspector) parameters[0];
     	  if( parameters.length > 1 && m == Mode.PARTIAL1) {
     	     //// get the sketch set size from the second parameters
     	    if(!( parameters[1] instanceof ConstantObjectInspector ) ) {
@@ -94,6 +123,9 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
     	  } else {
     	    sketchSetSize = DEFAULT_SKETCH_SET_SIZE;
     	  }
+    	  if( parameters.length > 2) {
+    	    this.sketchHash = GetSketchHash( parameters[2]);
+    	  }
       } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
     	   /// merge() gets called ... map is passed in ..
     	  this.partialMapOI = (MapObjectInspector) parameters[0];
@@ -118,7 +150,7 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
       SketchSetBuffer buff= new SketchSetBuffer();
-      buff.init(sketchSetSize);
+      buff.init(sketchSetSize, true, sketchHash);
       return buff;
     }
 
@@ -128,9 +160,8 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
       Object strObj = parameters[0];
 
       if (strObj != null) {
-    	  String str = inputStrOI.getPrimitiveJavaObject( strObj);
           SketchSetBuffer myagg = (SketchSetBuffer) agg;
-          myagg.addItem(str);
+          myagg.addItem( strObj, inputOI);
 
       }
     }
@@ -144,25 +175,10 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
         if( partial != null) {
             Map<Object,Object> partialResult = (Map<Object,Object>)  this.partialMapOI.getMap(partial);
             if( partialResult !=null) {
-                //// Place SKETCH_SIZE into the partial map ...
-                if(myagg.getSize() == -1) {
-                  for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(item.equals(SKETCH_SIZE_STR)) {
-                      this.sketchSetSize = (int)hash.intValue();
-                      myagg.init(sketchSetSize);
-                      break;
-                    }
-                  }
-                }
-                for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(!item.equals(SKETCH_SIZE_STR)) {
-                      myagg.addHash(hash, item);
-                    }
-                }
+                //// SKETCH_SIZE and SKETCH_HASH are placed in the partial map ...
+                myagg.mergePartialMap( partialResult, partialMapHashOI, partialMapStrOI);
+                this.sketchSetSize = myagg.getSize();
+                this.sketchHash = myagg.getSketchHash();
             }
         }
     }
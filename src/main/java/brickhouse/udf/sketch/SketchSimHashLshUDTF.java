@@ -0,0 +1,135 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+
+import brickhouse.analytics.uniques.SimHash;
+import brickhouse.analytics.uniques.SketchHash;
+
+/**
+ *  Emit the locality sensitive hashing band keys of a sketch's SimHash.
+ *
+ *  Sketches whose SimHashes differ in fewer bits than the number of bands
+ *   must share at least one band key, so near-duplicate sets can be
+ *   found by grouping on ( band, band_key ), rather than comparing all pairs.
+ *   The simhash column can then be used to check the Hamming distance
+ *   of the candidates.
+ */
+@Description(name="sketch_simhash_lsh",
+    value = "_FUNC_(sketch, num_bands, hash) - Emits a row of ( band, band_key, simhash ) for each of num_bands bands "
+    + " of the SimHash of a sketch. The sketch may be a binary sketch, an array of hashes, or an array of sketch strings. "
+    + " num_bands defaults to " + SketchSimHashLshUDTF.DEFAULT_NUM_BANDS
+    + " ; the optional hash is the one an array sketch was built with, and defaults to 'md5'. "
+)
+public class SketchSimHashLshUDTF extends GenericUDTF {
+	public static final int DEFAULT_NUM_BANDS = 4;
+
+	private SketchArgument sketchArg;
+	private int numBands = DEFAULT_NUM_BANDS;
+	private SketchHash declaredHash;
+
+	/// Reused between rows, so that each sketch doesn't allocate
+	private final long[] simHashPlanes = new long[ SimHash.MAX_PLANES];
+	private final Object[] forwardObj = new Object[3];
+
+
+	@Override
+	public StructObjectInspector initialize(ObjectInspector[] argOIs)
+			throws UDFArgumentException {
+		String usage = "sketch_simhash_lsh takes a binary sketch, or an array of hashes or sketch strings, and an optional constant number of bands and hash";
+		if( argOIs.length < 1 || argOIs.length > 3) {
+			throw new UDFArgumentException( usage);
+		}
+		sketchArg = SketchArgument.ForInspector( argOIs[0]);
+		if( sketchArg == null) {
+			throw new UDFArgumentException( usage);
+		}
+		if( argOIs.length > 1) {
+			if( !(argOIs[1] instanceof ConstantObjectInspector)
+					|| argOIs[1].getCategory() != Category.PRIMITIVE
+					|| ((PrimitiveObjectInspector) argOIs[1]).getPrimitiveCategory() != PrimitiveCategory.INT) {
+				throw new UDFArgumentException("Number of bands must be a constant int");
+			}
+			numBands = ((IntWritable)((ConstantObjectInspector) argOIs[1]).getWritableConstantValue()).get();
+			if( numBands < 1 || numBands > 64) {
+				throw new UDFArgumentException("Number of bands must be between 1 and 64; got " + numBands);
+			}
+		}
+		if( argOIs.length > 2) {
+			declaredHash = SketchSetUDAF.GetSketchHash( argOIs[2]);
+			sketchArg.setDeclaredHash( declaredHash);
+		}
+
+		ArrayList<String> fieldNames = new ArrayList<String>();
+		fieldNames.add("band");
+		fieldNames.add("band_key");
+		fieldNames.add("simhash");
+		ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+		fieldOIs.add( PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+		fieldOIs.add( PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+		fieldOIs.add( PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+
+		return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames,
+				fieldOIs);
+	}
+
+	@Override
+	public void process(Object[] args) throws HiveException {
+		if( args[0] == null) {
+			return;
+		}
+		if( declaredHash != null && sketchArg.isBinary()
+				&& sketchArg.getSketchHash( args[0]) != declaredHash) {
+			throw new HiveException("sketch_simhash_lsh was given a sketch hashed with " + sketchArg.getSketchHash( args[0])
+					+ " , but declared " + declaredHash);
+		}
+		long simHash;
+		try {
+			long[] hashes = sketchArg.getHashes( args[0]);
+			simHash = SimHash.Calculate( hashes, 0, hashes.length, simHashPlanes);
+		} catch(IllegalArgumentException illArg) {
+			throw new HiveException( illArg);
+		}
+		forwardObj[2] = simHash;
+		for(int band=0; band<numBands; ++band) {
+			forwardObj[0] = band;
+			forwardObj[1] = SimHash.BandKey( simHash, band, numBands);
+			forward( forwardObj);
+		}
+	}
+
+	@Override
+	public void close() throws HiveException {
+
+	}
+
+}
@@ -0,0 +1,113 @@
+package brickhouse.udf.sketch;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.log4j.Logger;
+
+/**
+ *  UDAF to collect the union of multiple binary sketch sets,
+ *    created with sketch_set_bin, and return a binary sketch
+ *    representing the union of all the sketches.
+ *
+ *  The size of the union is the size of the first sketch seen.
+ */
+@Description(name="union_sketch_bin",
+    value = "_FUNC_(x) - Constructs a binary sketch set by collecting multiple binary sketches "
+)
+public class UnionSketchSetBinUDAF extends AbstractGenericUDAFResolver {
+  private static final Logger LOG = Logger.getLogger(UnionSketchSetBinUDAF.class);
+
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+      throws SemanticException {
+      if( !parameters[0].getTypeName().equals("binary")) {
+          throw new SemanticException("union_sketch_bin UDAF only takes binary sketches; not " + parameters[0].getTypeName());
+      }
+      return new UnionSketchSetBinUDAFEvaluator();
+  }
+
+
+  public static class UnionSketchSetBinUDAFEvaluator extends GenericUDAFEvaluator {
+	  /// Input and partial results are both binary sketches
+	  private BinaryObjectInspector sketchOI;
+
+
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+        throws HiveException {
+      super.init(m, parameters);
+      this.sketchOI = (BinaryObjectInspector) parameters[0];
+      return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      SketchSetBuffer buff= new SketchSetBuffer();
+      buff.init(-1);
+      return buff;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+        throws HiveException {
+      merge( agg, parameters[0]);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+        throws HiveException {
+        SketchSetBuffer myagg = (SketchSetBuffer) agg;
+        if( partial != null) {
+            byte[] sketchBytes = sketchOI.getPrimitiveJavaObject( partial);
+            if( sketchBytes != null) {
+                myagg.mergeBytes( sketchBytes);
+            }
+        }
+    }
+
+    @Override
+    public void reset(AggregationBuffer buff) throws HiveException {
+      SketchSetBuffer sketchBuff = (SketchSetBuffer) buff;
+      sketchBuff.reset();
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SketchSetBuffer myagg = (SketchSetBuffer) agg;
+      if( myagg.getSize() == -1) {
+          return null;
+      }
+      return myagg.getBytes();
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate( agg);
+    }
+  }
+
+
+}
@@ -43,6 +43,7 @@ import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.SketchHash;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -54,7 +55,8 @@ import brickhouse.analytics.uniques.SketchSet;
 
 import java.util.List;
 @Description(name="union_sketch",
-    value = "_FUNC_(x) - Constructs a sketch set to estimate reach for large values by collecting multiple sketches "
+    value = "_FUNC_(x, size, hash) - Constructs a sketch set to estimate reach for large values by collecting multiple sketches. "
+    + " The optional hash is one of 'md5' ( the default ), 'murmur3_128' or 'xxhash64'. "
 )
 public class UnionSketchSetUDAF extends AbstractGenericUDAFResolver {
   private static final Logger LOG = Logger.getLogger(UnionSketchSetUDAF.class);
@@ -76,6 +78,7 @@ public class UnionSketchSetUDAF extends AbstractGenericUDAFResolver {
 	  private LongObjectInspector partialMapHashOI;
 	  private StringObjectInspector partialMapStrOI;
 	  private int sketchSetSize = -1;
+	  private SketchHash sketchHash = SketchHash.DEFAULT;
 
 
 
@@ -104,6 +107,9 @@ public class UnionSketchSetUDAF extends AbstractGenericUDAFResolver {
            } else {
              sketchSetSize = DEFAULT_SKETCH_SET_SIZE;
            }
+          if( parameters.length > 2) {
+             this.sketchHash = SketchSetUDAF.GetSketchHash( parameters[2]);
+          }
     	  
       } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
     	   /// merge() gets called ... map is passed in ..
@@ -129,7 +135,7 @@ public class UnionSketchSetUDAF extends AbstractGenericUDAFResolver {
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
       SketchSetBuffer buff= new SketchSetBuffer();
-      buff.init(sketchSetSize);
+      buff.init(sketchSetSize, true, sketchHash);
       return buff;
     }
 
@@ -157,25 +163,10 @@ public class UnionSketchSetUDAF extends AbstractGenericUDAFResolver {
         if( partial != null) {
             Map<Object,Object> partialResult = (Map<Object,Object>)  this.partialMapOI.getMap(partial);
             if( partialResult !=null) {
-                //// Place SKETCH_SIZE into the partial map ...
-                if(myagg.getSize() == -1) {
-                  for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(item.equals(SketchSetUDAF.SKETCH_SIZE_STR)) {
-                      this.sketchSetSize = (int)hash.intValue();
-                      myagg.init(sketchSetSize);
-                      break;
-                    }
-                  }
-                }
-                for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(!item.equals(SketchSetUDAF.SKETCH_SIZE_STR)) {
-                      myagg.addHash(hash, item);
-                    }
-                }
+                //// SKETCH_SIZE and SKETCH_HASH are placed in the partial map ...
+                myagg.mergePartialMap( partialResult, partialMapHashOI, partialMapStrOI);
+                this.sketchSetSize = myagg.getSize();
+                this.sketchHash = myagg.getSketchHash();
             }
         }
     }
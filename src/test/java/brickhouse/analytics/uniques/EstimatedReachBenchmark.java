@@ -0,0 +1,50 @@
+package brickhouse.analytics.uniques;
+
+import java.util.Random;
+
+/**
+ *  Compares the time per call of the double precision reach estimate
+ *   against the BigDecimal one. Not a unit test; run it by hand, ie.
+ *   java -cp ... brickhouse.analytics.uniques.EstimatedReachBenchmark [numHashes] [numRuns]
+ */
+public class EstimatedReachBenchmark {
+
+	public static void main(String[] args) {
+		int numHashes = args.length > 0 ? Integer.parseInt( args[0]) : 200000;
+		int numRuns = args.length > 1 ? Integer.parseInt( args[1]) : 10;
+
+		Random rand = new Random( 12345);
+		long[] maxHashes = new long[ numHashes];
+		int[] sizes = new int[ numHashes];
+		for(int i=0; i<numHashes; ++i) {
+			maxHashes[i] = Long.MIN_VALUE + 2 + (long)( rand.nextDouble()*( (double)Long.MAX_VALUE*2.0 - 4.0));
+			sizes[i] = 1 + rand.nextInt( 20000);
+		}
+
+		/// One untimed pass of each, to warm up the JIT
+		double sum = 0;
+		for(int i=0; i<numHashes; ++i) {
+			sum += SketchSet.EstimatedReachBigDecimal( maxHashes[i], sizes[i]);
+			sum -= SketchSet.EstimatedReach( maxHashes[i], sizes[i]);
+		}
+
+		long start = System.nanoTime();
+		for(int j=0; j<numRuns; ++j) {
+			for(int i=0; i<numHashes; ++i) {
+				sum += SketchSet.EstimatedReachBigDecimal( maxHashes[i], sizes[i]);
+			}
+		}
+		long bigDecimalNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(int j=0; j<numRuns; ++j) {
+			for(int i=0; i<numHashes; ++i) {
+				sum -= SketchSet.EstimatedReach( maxHashes[i], sizes[i]);
+			}
+		}
+		long doubleNanos = System.nanoTime() - start;
+		long numCalls = (long)numRuns*numHashes;
+		System.out.println(" BigDecimal estimate took " + bigDecimalNanos/numCalls + " ns per call; double took "
+				+ doubleNanos/numCalls + " ns per call ; checksum " + sum);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.SortedMap;
 import java.util.UUID;
 
@@ -386,4 +387,302 @@ public class SketchSetTest {
 
 
 
+	@Test
+	public void testLongSketchSetMatchesSketchSet() {
+		SketchSet ss = new SketchSet();
+		LongSketchSet lss = new LongSketchSet();
+		int numHashes = 5000 + (int)(Math.random()*20000);
+		for(int i=0; i<numHashes; ++i) {
+			String item = UUID.randomUUID().toString();
+			ss.addItem( item);
+			lss.addItem( item);
+			/// add some duplicates
+			if( i % 7 == 0) {
+				lss.addItem( item);
+			}
+		}
+		Assert.assertEquals( ss.getMinHashes(), lss.getMinHashes());
+		Assert.assertEquals( ss.getMinHashItems(), lss.getMinHashItems());
+		Assert.assertEquals( ss.estimateReach(), lss.estimateReach(), 0.0);
+		Assert.assertEquals( ss.calculateSimHash(), lss.calculateSimHash());
+	}
+
+	@Test
+	public void testLongSketchSetCombine() {
+		LongSketchSet a = new LongSketchSet(100);
+		LongSketchSet b = new LongSketchSet(100);
+		SketchSet c = new SketchSet(100);
+		for(int i=0; i<1000; ++i) {
+			a.addHash( i*2);
+			b.addHash( i*3);
+			c.addHash( i*2);
+			c.addHash( i*3);
+		}
+		a.combine( b);
+		Assert.assertEquals( 100, a.size());
+		Assert.assertEquals( c.getMinHashes(), a.getMinHashes());
+		Assert.assertEquals( c.estimateReach(), a.estimateReach(), 0.0);
+	}
+
+	@Test
+	public void testLongSketchSetWithoutItems() {
+		LongSketchSet lss = new LongSketchSet( 3, false);
+		lss.addHash( 5);
+		lss.addHash( -2);
+		lss.addHash( 9);
+		lss.addHash( 7);
+		Assert.assertFalse( lss.isKeepItems());
+		Assert.assertEquals( 3, lss.size());
+		Assert.assertEquals( 7, lss.lastHash());
+		Assert.assertEquals( "-2", lss.getMinHashItems().get(0));
+	}
+
+	@Test
+	public void testBinarySketchSetRoundTrip() {
+		LongSketchSet lss = new LongSketchSet();
+		LongSketchSet hashOnly = new LongSketchSet( SketchSet.DEFAULT_MAX_ITEMS, false);
+		int numHashes = 5000 + (int)(Math.random()*20000);
+		for(int i=0; i<numHashes; ++i) {
+			String item = UUID.randomUUID().toString();
+			lss.addItem( item);
+			hashOnly.addItem( item);
+		}
+		lss.addHash( Long.MIN_VALUE);
+		hashOnly.addHash( Long.MIN_VALUE);
+
+		byte[] bytes = BinarySketchSet.ToBytes( lss);
+		LongSketchSet copy = BinarySketchSet.FromBytes( bytes);
+		Assert.assertEquals( lss.getMinHashes(), copy.getMinHashes());
+		Assert.assertEquals( lss.getMinHashItems(), copy.getMinHashItems());
+		Assert.assertEquals( lss.estimateReach(), BinarySketchSet.EstimatedReach( bytes), 0.0);
+
+		byte[] hashBytes = BinarySketchSet.ToBytes( hashOnly);
+		System.out.println(" Binary sketch size = " + bytes.length + " ; without items = " + hashBytes.length);
+		Assert.assertTrue( hashBytes.length < 8*hashOnly.size());
+		Assert.assertFalse( BinarySketchSet.HasItems( hashBytes));
+		Assert.assertEquals( lss.getMinHashes(), BinarySketchSet.FromBytes( hashBytes).getMinHashes());
+	}
+
+	@Test
+	public void testBinarySketchSetMerge() {
+		LongSketchSet a = new LongSketchSet(100);
+		LongSketchSet b = new LongSketchSet(100);
+		for(int i=0; i<1000; ++i) {
+			a.addHash( i*2);
+			b.addHash( i*3);
+		}
+		LongSketchSet merged = BinarySketchSet.FromBytes( BinarySketchSet.ToBytes( a));
+		BinarySketchSet.MergeBytes( merged, BinarySketchSet.ToBytes( b));
+		a.combine( b);
+		Assert.assertEquals( a.getMinHashes(), merged.getMinHashes());
+		Assert.assertEquals( a.getMinHashItems(), merged.getMinHashItems());
+	}
+
+	/**
+	 *  The double precision estimate must agree with the BigDecimal
+	 *   estimate to within a relative 1e-14, including very large
+	 *   reach from hashes near -Long.MAX_VALUE.
+	 */
+	@Test
+	public void testEstimatedReachMatchesBigDecimal() {
+		Random rand = new Random( 12345);
+		int numHashes = 200000;
+		long[] maxHashes = new long[ numHashes];
+		int[] sizes = new int[ numHashes];
+		for(int i=0; i<numHashes; ++i) {
+			/// Keep away from -Long.MAX_VALUE, where the estimate is unbounded
+			maxHashes[i] = Long.MIN_VALUE + 2 + (long)( rand.nextDouble()*( (double)Long.MAX_VALUE*2.0 - 4.0));
+			sizes[i] = 1 + rand.nextInt( 20000);
+		}
+		maxHashes[0] = Long.MAX_VALUE;
+		maxHashes[1] = 0;
+		maxHashes[2] = -Long.MAX_VALUE + 1;
+		maxHashes[3] = -Long.MAX_VALUE + 1000;
+		maxHashes[4] = -Long.MAX_VALUE + 123456789L;
+		maxHashes[5] = Long.MIN_VALUE + ( 1L << 40);
+
+		double[] reach = new double[ numHashes];
+		SketchSet.EstimatedReach( maxHashes, sizes, reach);
+		for(int i=0; i<numHashes; ++i) {
+			double exact = SketchSet.EstimatedReachBigDecimal( maxHashes[i], sizes[i]);
+			double fast = SketchSet.EstimatedReach( maxHashes[i], sizes[i]);
+			Assert.assertEquals( fast, reach[i], 0.0);
+			Assert.assertEquals( exact, fast, Math.max( 1.0, exact*1e-14));
+		}
+		double degenerate = SketchSet.EstimatedReach( Long.MIN_VALUE, 10);
+		Assert.assertFalse( Double.isInfinite( degenerate));
+		Assert.assertEquals( SketchSet.EstimatedReach( -Long.MAX_VALUE, 10), degenerate, 0.0);
+	}
+
+	@Test
+	public void testSketchSetAlgebra() {
+		LongSketchSet a = new LongSketchSet();
+		LongSketchSet b = new LongSketchSet();
+		int numShared = 100000;
+		int numOnlyA = 200000;
+		int numOnlyB = 100000;
+		for(int i=0; i<numShared; ++i) {
+			String item = UUID.randomUUID().toString();
+			a.addItem( item);
+			b.addItem( item);
+		}
+		for(int i=0; i<numOnlyA; ++i) {
+			a.addItem( UUID.randomUUID().toString());
+		}
+		for(int i=0; i<numOnlyB; ++i) {
+			b.addItem( UUID.randomUUID().toString());
+		}
+		SketchSetAlgebra algebra = new SketchSetAlgebra( a, b);
+		System.out.println(" Intersection = " + algebra.estimateIntersection() + " Difference = " + algebra.estimateDifference()
+				+ " Union = " + algebra.estimateUnion() + " Jaccard = " + algebra.jaccard());
+		Assert.assertEquals( numShared, algebra.estimateIntersection(), numShared*0.15);
+		Assert.assertEquals( numOnlyA, algebra.estimateDifference(), numOnlyA*0.1);
+		Assert.assertEquals( numShared + numOnlyA + numOnlyB, algebra.estimateUnion(), (numShared + numOnlyA + numOnlyB)*0.05);
+		Assert.assertEquals( 0.25, algebra.jaccard(), 0.03);
+
+		SketchSetAlgebra self = new SketchSetAlgebra( a, a);
+		Assert.assertEquals( 1.0, self.jaccard(), 0.0);
+		Assert.assertEquals( 0.0, self.estimateDifference(), 0.0);
+	}
+
+	@Test
+	public void testSketchSetAlgebraExact() {
+		/// Neither sketch is full, so counts are exact
+		long[] a = { 1, 2, 3, 5, 8};
+		long[] b = { 2, 3, 4, 8, 9, 10};
+		SketchSetAlgebra algebra = new SketchSetAlgebra( a, 100, b, 100);
+		Assert.assertEquals( 3.0, algebra.estimateIntersection(), 0.0);
+		Assert.assertEquals( 2.0, algebra.estimateDifference(), 0.0);
+		Assert.assertEquals( 8.0, algebra.estimateUnion(), 0.0);
+		Assert.assertEquals( 3.0/8.0, algebra.jaccard(), 0.0);
+	}
+
+	@Test
+	public void testXxHash64() throws Exception {
+		Assert.assertEquals( 0xEF46DB3751D8E999L, XxHash64.hash( new byte[0], 0, 0, 0));
+		byte[] abc = "abc".getBytes("UTF-8");
+		Assert.assertEquals( 0x44BC2CF5AD770999L, XxHash64.hash( abc, 0, abc.length, 0));
+		for(int len=0; len<100; ++len) {
+			StringBuilder sb = new StringBuilder();
+			for(int i=0; i<len; ++i) {
+				sb.append( (char)( 'a' + i + len*100));
+			}
+			String str = sb.toString();
+			byte[] utf16 = str.getBytes("UTF-16LE");
+			Assert.assertEquals( XxHash64.hash( utf16, 0, utf16.length, 0), XxHash64.hashChars( str, 0));
+		}
+	}
+
+	@Test
+	public void testSketchHashes() {
+		for( SketchHash sketchHash : SketchHash.values()) {
+			LongSketchSet lss = new LongSketchSet( 5000, false, sketchHash);
+			int numHashes = 200000;
+			for(int i=0; i<numHashes; ++i) {
+				lss.addItem( UUID.randomUUID().toString());
+			}
+			double ratio = lss.estimateReach()/numHashes;
+			System.out.println( sketchHash + " estimated reach ratio = " + ratio);
+			Assert.assertTrue( ratio > 0.95 && ratio < 1.05);
+
+			byte[] bytes = BinarySketchSet.ToBytes( lss);
+			Assert.assertEquals( sketchHash, BinarySketchSet.GetSketchHash( bytes));
+			Assert.assertEquals( sketchHash, BinarySketchSet.FromBytes( bytes).getSketchHash());
+			Assert.assertEquals( sketchHash, SketchHash.FromName( sketchHash.name().toLowerCase()));
+		}
+	}
+
+	@Test
+	public void testMixedSketchHashes() {
+		LongSketchSet md5 = new LongSketchSet( 100, true, SketchHash.MD5);
+		LongSketchSet xx = new LongSketchSet( 100, true, SketchHash.XXHASH64);
+		md5.addItem("a");
+		xx.addItem("a");
+		try {
+			md5.combine( xx);
+			Assert.fail("Sketches with different hashes should not combine");
+		} catch(IllegalArgumentException expected) {
+		}
+		try {
+			BinarySketchSet.MergeBytes( md5, BinarySketchSet.ToBytes( xx));
+			Assert.fail("Sketches with different hashes should not merge");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testSimHashMatchesSumTable() {
+		Random rand = new Random( 42);
+		for( int len : new int[] { 0, 1, 2, 3, 64, 1000, 4999, 5000 }) {
+			long[] hashes = new long[ len];
+			for(int i=0; i<len; ++i) {
+				/// Bias some of the bits, so that ties and majorities both occur
+				hashes[i] = rand.nextLong() & ( rand.nextBoolean() ? -1l : 0xFFFFFFFF0000FFFFl);
+			}
+			int[] sumTable = new int[64];
+			for( long hash : hashes) {
+				for(int pos=0; pos<64; ++pos) {
+					sumTable[pos] += ((hash >>> pos) & 1l) != 0 ? 1 : -1;
+				}
+			}
+			long expected = 0l;
+			for(int pos=0; pos<64; ++pos) {
+				if( sumTable[pos] > 0) {
+					expected |= 1l << pos;
+				}
+			}
+			Assert.assertEquals( expected, SimHash.Calculate( hashes));
+		}
+	}
+
+	@Test
+	public void testSimHashBandKeys() {
+		long simHash = 0x0123456789ABCDEFl;
+		Assert.assertEquals( 0xCDEFl, SimHash.BandKey( simHash, 0, 4));
+		Assert.assertEquals( 0x0123l, SimHash.BandKey( simHash, 3, 4));
+		Assert.assertEquals( simHash, SimHash.BandKey( simHash, 0, 1));
+		/// 64 bits in 3 bands gives 21, 21 and 22 bits
+		long rebuilt = SimHash.BandKey( simHash, 0, 3)
+				| ( SimHash.BandKey( simHash, 1, 3) << 21)
+				| ( SimHash.BandKey( simHash, 2, 3) << 42);
+		Assert.assertEquals( simHash, rebuilt);
+
+		/// Similar sets should share a band
+		LongSketchSet a = new LongSketchSet( 5000, false);
+		LongSketchSet b = new LongSketchSet( 5000, false);
+		for(int i=0; i<20000; ++i) {
+			a.addItem( Integer.toString( i));
+			b.addItem( Integer.toString( i + 100));
+		}
+		long aSim = a.calculateSimHash();
+		long bSim = b.calculateSimHash();
+		Assert.assertTrue( SimHash.HammingDistance( aSim, bSim) < 8);
+		boolean shared = false;
+		for(int band=0; band<8; ++band) {
+			shared |= SimHash.BandKey( aSim, band, 8) == SimHash.BandKey( bSim, band, 8);
+		}
+		Assert.assertTrue( shared);
+	}
+
+	@Test
+	public void testLongItemsMatchStrings() {
+		byte[] scratch = new byte[ SketchHash.LONG_BUFFER_SIZE];
+		long[] vals = { 0, 1, -1, 9, 10, 123456789, Long.MAX_VALUE, Long.MIN_VALUE, Integer.MIN_VALUE };
+		for( SketchHash sketchHash : SketchHash.values()) {
+			for( long val : vals) {
+				Assert.assertEquals( sketchHash.hashString( Long.toString( val)), sketchHash.hashLong( val, scratch));
+			}
+			LongSketchSet fromStrings = new LongSketchSet( 1000, true, sketchHash);
+			LongSketchSet fromLongs = new LongSketchSet( 1000, true, sketchHash);
+			Random rand = new Random( 7);
+			for(int i=0; i<20000; ++i) {
+				long val = rand.nextLong();
+				fromStrings.addItem( Long.toString( val));
+				fromLongs.addLongItem( val);
+			}
+			Assert.assertArrayEquals( fromStrings.toHashArray(), fromLongs.toHashArray());
+			Assert.assertEquals( fromStrings.getMinHashItems(), fromLongs.getMinHashItems());
+		}
+	}
+
 }
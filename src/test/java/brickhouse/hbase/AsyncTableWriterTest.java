@@ -0,0 +1,159 @@
+package brickhouse.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncTableWriterTest {
+
+	private static Map<String,String> asyncConfig( int numThreads, int queueSize) {
+		Map<String,String> configMap = new HashMap<String,String>();
+		configMap.put( HTableFactory.TABLE_NAME_TAG, "mytable");
+		configMap.put( HTableFactory.ZOOKEEPER_QUORUM_TAG, "localhost");
+		configMap.put( AsyncTableWriter.ASYNC_THREADS_TAG, Integer.toString( numThreads));
+		configMap.put( AsyncTableWriter.ASYNC_QUEUE_SIZE_TAG, Integer.toString( queueSize));
+		return configMap;
+	}
+
+	private static List<Put> batch( int start, int size) {
+		List<Put> puts = new ArrayList<Put>();
+		for( int i = start; i < start + size; ++i) {
+			puts.add( new Put( Bytes.toBytes( "row" + i)));
+		}
+		return puts;
+	}
+
+	@Test
+	public void testCloseWaitsForEveryBatch() throws Exception {
+		final List<Row> written = Collections.synchronizedList( new ArrayList<Row>());
+		AsyncTableWriter writer = new AsyncTableWriter( asyncConfig( 3, 2)) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) throws InterruptedException {
+				Thread.sleep( 5);
+				written.addAll( batch);
+			}
+		};
+		for( int i = 0; i < 20; ++i) {
+			writer.submit( batch( i*10, 10));
+		}
+		writer.submit( new ArrayList<Put>());
+		writer.close();
+
+		Assert.assertEquals( 200, written.size());
+		Assert.assertEquals( 200, writer.getNumRows());
+		Assert.assertEquals( 20, writer.getNumBatches());
+	}
+
+	@Test
+	public void testFailureIsRethrown() throws Exception {
+		final IOException failure = new IOException( "region server went away");
+		AsyncTableWriter writer = new AsyncTableWriter( asyncConfig( 1, 4)) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) throws IOException {
+				throw failure;
+			}
+		};
+		writer.submit( batch( 0, 5));
+		try {
+			writer.close();
+			Assert.fail( "close should throw the write failure");
+		} catch( IOException e) {
+			Assert.assertSame( failure, e);
+		}
+		Assert.assertEquals( 0, writer.getNumRows());
+		Assert.assertEquals( 0, writer.getNumBatches());
+	}
+
+	@Test
+	public void testFailureIsThrownFromSubmit() throws Exception {
+		AsyncTableWriter writer = new AsyncTableWriter( asyncConfig( 1, 4)) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) {
+				throw new IllegalStateException( "bad batch");
+			}
+		};
+		writer.submit( batch( 0, 5));
+		try {
+			writer.await();
+			Assert.fail( "await should throw the write failure");
+		} catch( IOException e) {
+			Assert.assertTrue( e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			writer.submit( batch( 5, 5));
+			Assert.fail( "submit should throw the earlier failure");
+		} catch( IOException expected) {
+		}
+		try {
+			writer.close();
+			Assert.fail( "close should throw the write failure");
+		} catch( IOException expected) {
+		}
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		AsyncTableWriter writer = new AsyncTableWriter( asyncConfig( 1, 1)) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) {
+			}
+		};
+		writer.submit( batch( 0, 5));
+		writer.close();
+		Assert.assertEquals( 1, writer.getNumBatches());
+		try {
+			writer.submit( batch( 5, 5));
+			Assert.fail( "submit after close should throw");
+		} catch( IOException expected) {
+		}
+	}
+
+	@Test
+	public void testSubmitBlocksWhenQueueIsFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch( 1);
+		final AsyncTableWriter writer = new AsyncTableWriter( asyncConfig( 1, 1)) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) throws InterruptedException {
+				release.await();
+			}
+		};
+		/// The flusher takes the first batch and waits, and the second fills the queue
+		writer.submit( batch( 0, 5));
+		writer.submit( batch( 5, 5));
+
+		final CountDownLatch submitted = new CountDownLatch( 1);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.submit( batch( 10, 5));
+					submitted.countDown();
+				} catch( IOException e) {
+					throw new RuntimeException( e);
+				}
+			}
+		};
+		submitter.start();
+		Assert.assertFalse( "submit should block while the queue is full", submitted.await( 200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		Assert.assertTrue( submitted.await( 5, TimeUnit.SECONDS));
+		submitter.join();
+		writer.close();
+		Assert.assertEquals( 3, writer.getNumBatches());
+		Assert.assertEquals( 15, writer.getNumRows());
+		Assert.assertTrue( writer.getBlockedMillis() >= 100);
+	}
+
+}
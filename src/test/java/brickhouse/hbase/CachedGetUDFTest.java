@@ -0,0 +1,250 @@
+package brickhouse.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachedGetUDFTest {
+
+	private static final byte[] FAMILY = Bytes.toBytes("f");
+	private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+	/**
+	 *  Serves values from a map rather than HBase, and records each multi-get
+	 */
+	private static class StubbedGetUDF extends CachedGetUDF {
+		final Map<String,String> table = new HashMap<String,String>();
+		final List<List<String>> fetches = Collections.synchronizedList( new ArrayList<List<String>>());
+
+		@Override
+		protected Result[] fetchBatch( List<String> batch) {
+			fetches.add( new ArrayList<String>( batch));
+			Result[] results = new Result[ batch.size()];
+			for( int i = 0; i < batch.size(); ++i) {
+				String value = table.get( batch.get(i));
+				if( value == null) {
+					results[i] = Result.create( new Cell[0]);
+				} else {
+					results[i] = Result.create( new Cell[] {
+							new KeyValue( Bytes.toBytes( batch.get(i)), FAMILY, QUALIFIER, Bytes.toBytes( value)) });
+				}
+			}
+			return results;
+		}
+
+		List<Integer> fetchSizes() {
+			List<Integer> sizes = new ArrayList<Integer>();
+			for( List<String> fetch : fetches) {
+				sizes.add( fetch.size());
+			}
+			return sizes;
+		}
+
+		int numFetched( String key) {
+			int num = 0;
+			for( List<String> fetch : fetches) {
+				num += Collections.frequency( fetch, key);
+			}
+			return num;
+		}
+	}
+
+	private static Map<String,String> config( String... kvs) {
+		Map<String,String> configMap = new HashMap<String,String>();
+		configMap.put( HTableFactory.TABLE_NAME_TAG, "mytable");
+		configMap.put( HTableFactory.ZOOKEEPER_QUORUM_TAG, "localhost");
+		configMap.put( HTableFactory.FAMILY_TAG, "f");
+		configMap.put( HTableFactory.QUALIFIER_TAG, "q");
+		for( int i = 0; i + 1 < kvs.length; i += 2) {
+			configMap.put( kvs[i], kvs[i+1]);
+		}
+		return configMap;
+	}
+
+	private static StubbedGetUDF arrayUdf( Map<String,String> configMap, ObjectInspector... template) throws Exception {
+		StubbedGetUDF udf = new StubbedGetUDF();
+		ObjectInspector configInsp = ObjectInspectorFactory.getStandardConstantMapObjectInspector(
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector, configMap);
+		ObjectInspector keysInsp = ObjectInspectorFactory.getStandardListObjectInspector(
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		if( template.length > 0) {
+			udf.initialize( new ObjectInspector[] { configInsp, keysInsp, template[0] });
+		} else {
+			udf.initialize( new ObjectInspector[] { configInsp, keysInsp });
+		}
+		return udf;
+	}
+
+	private static List<?> get( CachedGetUDF udf, String... keys) throws Exception {
+		return (List<?>) udf.evaluate( new DeferredObject[] { new DeferredJavaObject( null), new DeferredJavaObject( Arrays.asList( keys)) });
+	}
+
+	private static void addRows( StubbedGetUDF udf, String... keys) {
+		for( String key : keys) {
+			udf.table.put( key, "value-" + key);
+		}
+	}
+
+	@Test
+	public void testBatching() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config( "multiget_batch_size", "3"));
+		addRows( udf, "a", "b", "c", "d", "e", "f", "g", "h");
+
+		List<?> values = get( udf, "a", "b", "c", "d", "e", "f", "g", "h");
+		Assert.assertEquals( Arrays.asList( 3, 3, 2), udf.fetchSizes());
+		Assert.assertEquals( Arrays.asList( "value-a", "value-b", "value-c", "value-d", "value-e", "value-f", "value-g", "value-h"), values);
+
+		/// Only the keys which aren't cached are fetched
+		values = get( udf, "h", "i", "a");
+		Assert.assertEquals( Arrays.asList( 3, 3, 2, 1), udf.fetchSizes());
+		Assert.assertEquals( Arrays.asList( "i"), udf.fetches.get( 3));
+		Assert.assertEquals( Arrays.asList( "value-h", null, "value-a"), values);
+		udf.close();
+	}
+
+	@Test
+	public void testBatchingWithThreads() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config( "multiget_batch_size", "2", "multiget_threads", "3"));
+		addRows( udf, "a", "b", "c", "d", "e");
+
+		List<?> values = get( udf, "e", "d", "c", "b", "a");
+		Assert.assertEquals( 3, udf.fetches.size());
+		Assert.assertEquals( Arrays.asList( "value-e", "value-d", "value-c", "value-b", "value-a"), values);
+		udf.close();
+	}
+
+	@Test
+	public void testDuplicateAndNullKeys() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config());
+		addRows( udf, "a", "b", "c");
+
+		List<?> values = get( udf, "a", "b", "a", null, "b", "c");
+		Assert.assertEquals( 1, udf.fetches.size());
+		Assert.assertEquals( Arrays.asList( "a", "b", "c"), udf.fetches.get(0));
+		Assert.assertEquals( Arrays.asList( "value-a", "value-b", "value-a", null, "value-b", "value-c"), values);
+
+		values = get( udf, "c", "c", "a");
+		Assert.assertEquals( 1, udf.fetches.size());
+		Assert.assertEquals( Arrays.asList( "value-c", "value-c", "value-a"), values);
+		udf.close();
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config( "brickhouse.hbase.cache.maxSize", "2"));
+		addRows( udf, "a", "b", "c", "d");
+
+		/// Every value is returned, even though they don't all fit in the cache
+		List<?> values = get( udf, "a", "b", "c", "d");
+		Assert.assertEquals( Arrays.asList( "value-a", "value-b", "value-c", "value-d"), values);
+
+		/// At most two of them are still cached, so the rest are fetched again
+		values = get( udf, "a", "b", "c", "d");
+		Assert.assertEquals( Arrays.asList( "value-a", "value-b", "value-c", "value-d"), values);
+		Assert.assertEquals( 2, udf.fetches.size());
+		Assert.assertTrue( udf.fetches.get(1).size() >= 2);
+		udf.close();
+	}
+
+	@Test
+	public void testUnparseableValue() throws Exception {
+		ObjectInspector template = ObjectInspectorFactory.getStandardMapObjectInspector(
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+		StubbedGetUDF udf = arrayUdf( config(), template);
+		udf.table.put( "a", "{\"x\":1}");
+		udf.table.put( "b", "{\"x\":");
+		udf.table.put( "c", "{\"y\":2}");
+
+		/// A bad value is returned as null, rather than failing the whole array
+		List<?> values = get( udf, "a", "b", "c");
+		Assert.assertEquals( 3, values.size());
+		Assert.assertEquals( 1, ((Map<?,?>) values.get(0)).get( "x"));
+		Assert.assertNull( values.get(1));
+		Assert.assertEquals( 2, ((Map<?,?>) values.get(2)).get( "y"));
+
+		/// and isn't cached, so it's fetched again
+		get( udf, "a", "b", "c");
+		Assert.assertEquals( 2, udf.fetches.size());
+		Assert.assertEquals( Arrays.asList( "b"), udf.fetches.get(1));
+		udf.close();
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config());
+		addRows( udf, "a");
+
+		Assert.assertEquals( Arrays.asList( "value-a", null), get( udf, "a", "nothere"));
+		/// The missing row is cached as missing, and still returned as null
+		Assert.assertEquals( Arrays.asList( null, "value-a"), get( udf, "nothere", "a"));
+		Assert.assertEquals( 1, udf.fetches.size());
+		Assert.assertEquals( 1, udf.numFetched( "nothere"));
+		udf.close();
+	}
+
+	@Test
+	public void testNegativeCacheOff() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config( "brickhouse.hbase.cache.negative", "false"));
+		addRows( udf, "a");
+
+		Assert.assertEquals( Arrays.asList( "value-a", null), get( udf, "a", "nothere"));
+		Assert.assertEquals( Arrays.asList( null, "value-a"), get( udf, "nothere", "a"));
+		Assert.assertEquals( 2, udf.numFetched( "nothere"));
+		Assert.assertEquals( 1, udf.numFetched( "a"));
+		udf.close();
+	}
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		StubbedGetUDF udf = arrayUdf( config());
+		addRows( udf, "a", "b");
+
+		/// Null and repeated keys are neither hits nor misses
+		get( udf, "a", "a", null, "b", "a");
+		Assert.assertEquals( 2, udf.getNumCalls());
+		Assert.assertEquals( 2, udf.getNumMisses());
+
+		get( udf, "b", null, "b", "c");
+		Assert.assertEquals( 4, udf.getNumCalls());
+		Assert.assertEquals( 3, udf.getNumMisses());
+		udf.close();
+	}
+
+	@Test
+	public void testEstimateSize() {
+		Assert.assertEquals( 0, CachedGetUDF.EstimateSize( null));
+		Assert.assertEquals( 0, CachedGetUDF.EstimateSize( CachedGetUDF.MISSING));
+		Assert.assertEquals( 40 + 2*5, CachedGetUDF.EstimateSize( "hello"));
+		Assert.assertEquals( 16 + 10, CachedGetUDF.EstimateSize( new byte[10]));
+		Assert.assertEquals( 24, CachedGetUDF.EstimateSize( 3.5));
+		Assert.assertEquals( 40 + 2*(8 + 42), CachedGetUDF.EstimateSize( Arrays.asList( "a", "b")));
+
+		Map<String,Object> map = new HashMap<String,Object>();
+		map.put( "ab", 1L);
+		map.put( "c", Arrays.asList( "xyz"));
+		Assert.assertEquals( 48 + (32 + 44 + 24) + (32 + 42 + (40 + 8 + 46)),
+				CachedGetUDF.EstimateSize( map));
+
+		/// Larger values weigh more, so the cache can be bounded by heap
+		Assert.assertTrue( CachedGetUDF.EstimateSize( Collections.nCopies( 100, "word"))
+				> CachedGetUDF.EstimateSize( Collections.nCopies( 10, "word")));
+	}
+
+}
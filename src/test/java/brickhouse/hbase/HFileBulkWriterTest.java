@@ -0,0 +1,138 @@
+package brickhouse.hbase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HFileBulkWriterTest {
+
+	private static Map<String,String> bulkConfig( File dir) {
+		Map<String,String> configMap = new HashMap<String,String>();
+		configMap.put( HTableFactory.TABLE_NAME_TAG, "mytable");
+		configMap.put( HTableFactory.ZOOKEEPER_QUORUM_TAG, "localhost");
+		configMap.put( HFileBulkWriter.BULK_LOAD_DIR_TAG, dir.toURI().toString());
+		configMap.put( HFileBulkWriter.BULK_LOAD_SPLIT_KEYS_TAG, "m");
+		return configMap;
+	}
+
+	private static File tempDir() throws Exception {
+		File dir = File.createTempFile( "hfile_bulk_writer", "");
+		dir.delete();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	@Test
+	public void testPartition() throws Exception {
+		HFileBulkWriter writer = new HFileBulkWriter( bulkConfig( tempDir()));
+		Assert.assertEquals( 0, writer.getPartition( Bytes.toBytes("a")));
+		Assert.assertEquals( 0, writer.getPartition( Bytes.toBytes("lzzz")));
+		Assert.assertEquals( 1, writer.getPartition( Bytes.toBytes("m")));
+		Assert.assertEquals( 1, writer.getPartition( Bytes.toBytes("z")));
+	}
+
+	@Test
+	public void testWriteHFiles() throws Exception {
+		File dir = tempDir();
+		HFileBulkWriter writer = new HFileBulkWriter( bulkConfig( dir));
+
+		/// Add the rows out of order, so the writer has to sort them
+		List<Put> puts = new ArrayList<Put>();
+		for( char c = 'z'; c >= 'a'; --c) {
+			Put put = new Put( Bytes.toBytes( "" + c));
+			put.add( Bytes.toBytes("f"), Bytes.toBytes("q"), Bytes.toBytes( "value" + c));
+			puts.add( put);
+		}
+		writer.add( puts);
+		writer.flush();
+
+		Configuration config = new Configuration();
+		Path familyDir = new Path( dir.toURI().toString(), "f");
+		FileSystem fs = familyDir.getFileSystem( config);
+		FileStatus[] files = fs.listStatus( familyDir);
+		Assert.assertEquals( 2, files.length);
+
+		int numCells = 0;
+		for( FileStatus file : files) {
+			HFile.Reader reader = HFile.createReader( fs, file.getPath(), new CacheConfig( config), config);
+			reader.loadFileInfo();
+			HFileScanner scanner = reader.getScanner( false, false);
+			Assert.assertTrue( scanner.seekTo());
+			byte[] firstRow = scanner.getKeyValue().getRow();
+			boolean lowRegion = Bytes.compareTo( firstRow, Bytes.toBytes("m")) < 0;
+			byte[] lastRow = null;
+			do {
+				KeyValue kv = scanner.getKeyValue();
+				String row = Bytes.toString( kv.getRow());
+				/// Every row of a file is in the same region, in sorted order
+				Assert.assertEquals( lowRegion, row.compareTo("m") < 0);
+				if( lastRow != null) {
+					Assert.assertTrue( Bytes.compareTo( lastRow, kv.getRow()) < 0);
+				}
+				Assert.assertEquals( "value" + row, Bytes.toString( kv.getValue()));
+				lastRow = kv.getRow();
+				++numCells;
+			} while( scanner.next());
+			reader.close();
+			fs.delete( file.getPath(), false);
+		}
+		Assert.assertEquals( 26, numCells);
+	}
+
+	@Test
+	public void testFileContext() throws Exception {
+		/// Without the table, files are uncompressed, unencoded 64KB blocks
+		HFileBulkWriter writer = new HFileBulkWriter( bulkConfig( tempDir()));
+		HFileContext context = writer.getFileContext( Bytes.toBytes("f"));
+		Assert.assertEquals( Compression.Algorithm.NONE, context.getCompression());
+		Assert.assertEquals( DataBlockEncoding.NONE, context.getDataBlockEncoding());
+		Assert.assertEquals( 64*1024, context.getBlocksize());
+
+		File dir = tempDir();
+		Map<String,String> configMap = bulkConfig( dir);
+		configMap.put( HFileBulkWriter.BULK_LOAD_COMPRESSION_TAG, "GZ");
+		configMap.put( HFileBulkWriter.BULK_LOAD_ENCODING_TAG, "fast_diff");
+		configMap.put( HFileBulkWriter.BULK_LOAD_BLOCK_SIZE_TAG, "16384");
+		writer = new HFileBulkWriter( configMap);
+		context = writer.getFileContext( Bytes.toBytes("f"));
+		Assert.assertEquals( Compression.Algorithm.GZ, context.getCompression());
+		Assert.assertEquals( DataBlockEncoding.FAST_DIFF, context.getDataBlockEncoding());
+		Assert.assertEquals( 16384, context.getBlocksize());
+
+		List<Put> puts = new ArrayList<Put>();
+		Put put = new Put( Bytes.toBytes( "a"));
+		put.add( Bytes.toBytes("f"), Bytes.toBytes("q"), Bytes.toBytes( "value"));
+		puts.add( put);
+		writer.add( puts);
+		writer.flush();
+
+		Configuration config = new Configuration();
+		Path familyDir = new Path( dir.toURI().toString(), "f");
+		FileSystem fs = familyDir.getFileSystem( config);
+		FileStatus[] files = fs.listStatus( familyDir);
+		Assert.assertEquals( 1, files.length);
+		HFile.Reader reader = HFile.createReader( fs, files[0].getPath(), new CacheConfig( config), config);
+		Assert.assertEquals( Compression.Algorithm.GZ, reader.getCompressionAlgorithm());
+		reader.close();
+		fs.delete( files[0].getPath(), false);
+	}
+
+}
@@ -0,0 +1,131 @@
+package brickhouse.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegionBatcherTest {
+
+	/// Regions [,g) [g,p) [p,) ; the first and last on server 0, the middle on server 1
+	private static final byte[][] START_KEYS = { new byte[0], Bytes.toBytes( "g"), Bytes.toBytes( "p") };
+	private static final int[] REGION_SERVERS = { 0, 1, 0 };
+
+	/**
+	 *  Records each sub-batch, rather than writing it to HBase
+	 */
+	private static class RecordingBatcher extends RegionBatcher {
+		final List<List<String>> batches = new ArrayList<List<String>>();
+
+		RecordingBatcher( int subBatchSize) {
+			super( START_KEYS, REGION_SERVERS, 2, subBatchSize);
+		}
+
+		@Override
+		protected void batch( HTable htable, List<Row> serverBatch) throws IOException {
+			batches.add( rowKeys( serverBatch));
+		}
+	}
+
+	private static List<String> rowKeys( List<? extends Row> rows) {
+		List<String> keys = new ArrayList<String>();
+		for( Row row : rows) {
+			keys.add( Bytes.toString( row.getRow()));
+		}
+		return keys;
+	}
+
+	private static List<Put> puts( String... keys) {
+		List<Put> puts = new ArrayList<Put>();
+		for( String key : keys) {
+			puts.add( new Put( Bytes.toBytes( key)));
+		}
+		return puts;
+	}
+
+	@Test
+	public void testFindRegion() {
+		Assert.assertEquals( 0, RegionBatcher.findRegion( START_KEYS, new byte[0]));
+		Assert.assertEquals( 0, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "a")));
+		Assert.assertEquals( 0, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "fzzz")));
+		Assert.assertEquals( 1, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "g")));
+		Assert.assertEquals( 1, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "g0")));
+		Assert.assertEquals( 1, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "ozzz")));
+		Assert.assertEquals( 2, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "p")));
+		Assert.assertEquals( 2, RegionBatcher.findRegion( START_KEYS, Bytes.toBytes( "zzz")));
+		/// Row keys compare as unsigned bytes
+		Assert.assertEquals( 2, RegionBatcher.findRegion( START_KEYS, new byte[] { (byte) 0xff }));
+	}
+
+	@Test
+	public void testGetServerIndex() {
+		RegionBatcher batcher = new RecordingBatcher( 10);
+		Assert.assertEquals( 0, batcher.getServerIndex( Bytes.toBytes( "b")));
+		Assert.assertEquals( 1, batcher.getServerIndex( Bytes.toBytes( "h")));
+		Assert.assertEquals( 0, batcher.getServerIndex( Bytes.toBytes( "q")));
+
+		RegionBatcher noRegions = new RegionBatcher( new byte[0][], new int[0], 0, 10);
+		Assert.assertEquals( 0, noRegions.getServerIndex( Bytes.toBytes( "h")));
+	}
+
+	@Test
+	public void testSubBatchesAndFlush() throws Exception {
+		RecordingBatcher batcher = new RecordingBatcher( 3);
+		batcher.write( puts( "z", "h", "a", "i"), false, null, null);
+		Assert.assertEquals( 0, batcher.batches.size());
+		Assert.assertEquals( 4, batcher.getNumHeld());
+		Assert.assertEquals( 0, batcher.getNumRows());
+
+		/// Server 0 fills its sub-batch, which is written sorted; "h" and "i" are still held
+		batcher.write( puts( "q"), false, null, null);
+		Assert.assertEquals( 1, batcher.batches.size());
+		Assert.assertEquals( Arrays.asList( "a", "q", "z"), batcher.batches.get( 0));
+		Assert.assertEquals( 2, batcher.getNumHeld());
+		Assert.assertEquals( 3, batcher.getNumRows());
+		Assert.assertEquals( 1, batcher.getNumBatches());
+
+		/// Held rows are only counted once a flush writes them
+		batcher.write( Collections.<Put>emptyList(), true, null, null);
+		Assert.assertEquals( 2, batcher.batches.size());
+		Assert.assertEquals( Arrays.asList( "h", "i"), batcher.batches.get( 1));
+		Assert.assertEquals( 0, batcher.getNumHeld());
+		Assert.assertEquals( 5, batcher.getNumRows());
+		Assert.assertEquals( 2, batcher.getNumBatches());
+	}
+
+	@Test
+	public void testFlushToAsyncWriter() throws Exception {
+		final List<List<String>> submitted = Collections.synchronizedList( new ArrayList<List<String>>());
+		Map<String,String> configMap = new HashMap<String,String>();
+		configMap.put( AsyncTableWriter.ASYNC_THREADS_TAG, "1");
+		AsyncTableWriter writer = new AsyncTableWriter( configMap) {
+			@Override
+			protected void writeBatch( List<? extends Row> batch) {
+				submitted.add( rowKeys( batch));
+			}
+		};
+		RecordingBatcher batcher = new RecordingBatcher( 2);
+		batcher.write( puts( "k", "b", "j"), false, null, writer);
+		Assert.assertEquals( 1, batcher.getNumHeld());
+		batcher.write( Collections.<Put>emptyList(), true, null, writer);
+		writer.close();
+
+		Assert.assertEquals( 0, batcher.batches.size());
+		Assert.assertEquals( 2, submitted.size());
+		Assert.assertTrue( submitted.contains( Arrays.asList( "j", "k")));
+		Assert.assertTrue( submitted.contains( Arrays.asList( "b")));
+		Assert.assertEquals( 3, batcher.getNumRows());
+		Assert.assertEquals( 3, writer.getNumRows());
+	}
+
+}
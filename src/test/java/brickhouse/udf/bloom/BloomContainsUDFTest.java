@@ -0,0 +1,56 @@
+package brickhouse.udf.bloom;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BloomContainsUDFTest {
+
+	private Text bloomText;
+
+	private ObjectInspector constantBloomInspector() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+		bloom.add( new Key( "12345".getBytes()));
+		bloom.add( new Key( "-67890".getBytes()));
+		bloomText = new Text( BloomFactory.WriteBloomToString( bloom));
+		return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.stringTypeInfo, bloomText);
+	}
+
+	private Object contains( BloomContainsUDF udf, Object key) throws Exception {
+		return udf.evaluate( new DeferredObject[] { new DeferredJavaObject( key), new DeferredJavaObject( bloomText) });
+	}
+
+	@Test
+	public void testBigintKey() throws Exception {
+		BloomContainsUDF udf = new BloomContainsUDF();
+		udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaLongObjectInspector, constantBloomInspector() });
+
+		Assert.assertEquals( Boolean.TRUE, contains( udf, 12345L));
+		Assert.assertEquals( Boolean.TRUE, contains( udf, -67890L));
+		Assert.assertEquals( Boolean.FALSE, contains( udf, 11111L));
+		Assert.assertNull( contains( udf, null));
+	}
+
+	@Test
+	public void testIntAndStringKeys() throws Exception {
+		BloomContainsUDF intUdf = new BloomContainsUDF();
+		intUdf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.writableIntObjectInspector, constantBloomInspector() });
+		Assert.assertEquals( Boolean.TRUE, contains( intUdf, new IntWritable( 12345)));
+		Assert.assertEquals( Boolean.FALSE, contains( intUdf, new IntWritable( 54321)));
+
+		BloomContainsUDF strUdf = new BloomContainsUDF();
+		strUdf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector, constantBloomInspector() });
+		Assert.assertEquals( Boolean.TRUE, contains( strUdf, "12345"));
+		Assert.assertEquals( Boolean.FALSE, contains( strUdf, "54321"));
+	}
+
+}
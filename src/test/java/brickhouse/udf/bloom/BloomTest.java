@@ -2,6 +2,9 @@ package brickhouse.udf.bloom;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.UUID;
@@ -91,4 +94,291 @@ public class BloomTest {
 	
 	}
 
+	@Test
+	public void testBlockedBloom() throws Exception {
+		int numElems = 100000;
+		double pct = 0.01;
+		Filter bloom = BloomFactory.NewBloomInstance( numElems, pct);
+		Assert.assertTrue( bloom instanceof BlockedBloomFilter);
+
+		for( int i = 0; i< numElems; ++i ) {
+			Key key =  new Key( ("key" + i).getBytes() );
+			bloom.add( key );
+		}
+
+		Filter copy = BloomFactory.ReadBloomFromString( BloomFactory.WriteBloomToString( bloom));
+		Assert.assertTrue( copy instanceof BlockedBloomFilter);
+		for( int i = 0; i< numElems; ++i ) {
+			Assert.assertTrue( copy.membershipTest( new Key( ("key" + i).getBytes())));
+		}
+
+		int numHits = 0;
+		for( int i=0; i< numElems; ++i) {
+			if( copy.membershipTest( new Key( ("other" + i).getBytes()))) {
+				numHits++;
+			}
+		}
+		System.out.println("Blocked bloom false positives = " + numHits + " out of " + numElems);
+		Assert.assertTrue( numHits <= numElems*pct*1.5);
+	}
+
+	@Test
+	public void testBlockedBloomAnd() {
+		Filter bloom1 = BloomFactory.NewBloomInstance( 1000, 0.01);
+		Filter bloom2 = BloomFactory.NewBloomInstance( 1000, 0.01);
+		Key shared = new Key( "shared".getBytes());
+		Key only1 = new Key( "only1".getBytes());
+		bloom1.add( shared);
+		bloom1.add( only1);
+		bloom2.add( shared);
+
+		bloom1.and( bloom2);
+		Assert.assertTrue( bloom1.membershipTest( shared));
+		Assert.assertFalse( bloom1.membershipTest( only1));
+
+		try {
+			bloom1.or( BloomFactory.NewBloomInstance( 100000, 0.01));
+			Assert.fail("Blooms of different sizes should not combine");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testBlockedBloomSizeLimit() throws Exception {
+		/// Rounding Integer.MAX_VALUE bits up to whole blocks used to overflow to a single block
+		try {
+			new BlockedBloomFilter( Integer.MAX_VALUE, 8);
+			Assert.fail("Blocked bloom larger than an int vector size should be rejected");
+		} catch(IllegalArgumentException expected) {
+		}
+
+		byte[] bytes = ((BlockedBloomFilter) BloomFactory.NewBloomInstance( 1000, 0.01)).toBytes();
+		ByteBuffer.wrap( bytes).putInt( 8, BlockedBloomFilter.MAX_BLOCKS + 1);
+		try {
+			BlockedBloomFilter.FromBytes( bytes);
+			Assert.fail("Blocked bloom with too many blocks should be rejected");
+		} catch(IOException expected) {
+		}
+	}
+
+	@Test
+	public void testBinaryBloom() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+		for( int i = 0; i< 1000; ++i ) {
+			bloom.add( new Key( ("key" + i).getBytes()));
+		}
+		byte[] bytes = BloomFactory.WriteBloomToBytes( bloom);
+		Assert.assertEquals( ((BlockedBloomFilter) bloom).getSerializedSize(), bytes.length);
+
+		/// Binary is the same as the decoded string format
+		Filter fromString = BloomFactory.ReadBloomFromString( BloomFactory.WriteBloomToString( bloom));
+		Assert.assertArrayEquals( bytes, BloomFactory.WriteBloomToBytes( fromString));
+
+		byte[] padded = new byte[ bytes.length + 3];
+		System.arraycopy( bytes, 0, padded, 3, bytes.length);
+		Filter fromBytes = BloomFactory.ReadBloomFromBytes( padded, 3, bytes.length);
+		for( int i = 0; i< 1000; ++i ) {
+			Assert.assertTrue( fromBytes.membershipTest( new Key( ("key" + i).getBytes())));
+		}
+	}
+
+	@Test
+	public void testMappedBloom() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+		for( int i = 0; i< 1000; ++i ) {
+			bloom.add( new Key( ("key" + i).getBytes()));
+		}
+		File rawFile = File.createTempFile("bloom", ".bloom");
+		rawFile.deleteOnExit();
+		MappedBloomFilter.WriteRawBloomFile( (BlockedBloomFilter) bloom, rawFile);
+		Assert.assertTrue( MappedBloomFilter.IsRawBloomFile( rawFile));
+
+		MappedBloomFilter mapped = MappedBloomFilter.Map( rawFile);
+		for( int i = 0; i< 1000; ++i ) {
+			Key key = new Key( ("key" + i).getBytes());
+			Assert.assertTrue( mapped.membershipTest( key));
+			Key other = new Key( ("other" + i).getBytes());
+			Assert.assertEquals( bloom.membershipTest( other), mapped.membershipTest( other));
+		}
+		Assert.assertArrayEquals( BloomFactory.WriteBloomToBytes( bloom), BloomFactory.WriteBloomToBytes( mapped));
+
+		try {
+			mapped.add( new Key( "new".getBytes()));
+			Assert.fail("Mapped blooms should be read-only");
+		} catch(UnsupportedOperationException expected) {
+		}
+	}
+
+	@Test
+	public void testDecodedBloomCache() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+		bloom.add( new Key( "key".getBytes()));
+		String bloomStr = BloomFactory.WriteBloomToString( bloom);
+
+		long misses = BloomFactory.GetCacheMisses();
+		long hits = BloomFactory.GetCacheHits();
+		Filter first = BloomFactory.GetBloomFilter( new String( bloomStr));
+		for( int i = 0; i< 10; ++i ) {
+			Filter cached = BloomFactory.GetBloomFilter( new String( bloomStr));
+			Assert.assertSame( first, cached);
+			Assert.assertTrue( cached.membershipTest( new Key( "key".getBytes())));
+		}
+		Assert.assertEquals( misses + 1, BloomFactory.GetCacheMisses());
+		Assert.assertEquals( hits + 10, BloomFactory.GetCacheHits());
+
+		/// Copies are decoded fresh, so they can be modified
+		Filter copy = BloomFactory.GetBloomFilterCopy( bloomStr);
+		Assert.assertNotSame( first, copy);
+		copy.not();
+		Assert.assertTrue( first.membershipTest( new Key( "key".getBytes())));
+	}
+
+	@Test
+	public void testScalableBloom() throws Exception {
+		int numElems = 300000;
+		double pct = 0.01;
+		ScalableBloomFilter bloom = new ScalableBloomFilter( 10000, pct);
+		for( int i = 0; i< numElems; ++i ) {
+			bloom.add( new Key( ("key" + i).getBytes()));
+		}
+		Assert.assertTrue( bloom.getNumSlices() > 1);
+
+		Filter copy = BloomFactory.ReadBloomFromBytes( BloomFactory.WriteBloomToBytes( bloom));
+		Assert.assertTrue( copy instanceof ScalableBloomFilter);
+		int numHits = 0;
+		for( int i = 0; i< numElems; ++i ) {
+			Assert.assertTrue( copy.membershipTest( new Key( ("key" + i).getBytes())));
+			if( copy.membershipTest( new Key( ("other" + i).getBytes()))) {
+				numHits++;
+			}
+		}
+		System.out.println("Scalable bloom with " + bloom.getNumSlices() + " slices; false positives = " + numHits + " out of " + numElems);
+		Assert.assertTrue( numHits <= numElems*pct);
+
+		/// A small bloom merged with a larger one takes its slices
+		ScalableBloomFilter small = new ScalableBloomFilter( 10000, pct);
+		small.add( new Key( "small".getBytes()));
+		small.or( copy);
+		Assert.assertTrue( small.getNumSlices() >= bloom.getNumSlices());
+		Assert.assertTrue( small.membershipTest( new Key( "small".getBytes())));
+		Assert.assertTrue( small.membershipTest( new Key( ("key" + (numElems - 1)).getBytes())));
+	}
+
+	@Test
+	public void testMergedBloomFalsePositives() throws Exception {
+		int numPartials = 4;
+		int keysPerPartial = 15000;
+		int numTests = 100000;
+		double pct = 0.01;
+		Filter fixed = BloomFactory.ReadBloomFromBytes( BloomFactory.WriteBloomToBytes(
+				BloomFactory.NewBloomInstance( numPartials*keysPerPartial, pct)));
+		ScalableBloomFilter scalable = null;
+		for( int p = 0; p < numPartials; ++p) {
+			/// Each partial fills the first slice of its scalable bloom
+			Filter fixedPartial = BloomFactory.NewBloomInstance( numPartials*keysPerPartial, pct);
+			ScalableBloomFilter scalablePartial = new ScalableBloomFilter( 10000, pct);
+			for( int i = 0; i < keysPerPartial; ++i) {
+				Key key = new Key( ("key" + p + "_" + i).getBytes());
+				fixedPartial.add( key);
+				scalablePartial.add( key);
+			}
+			Assert.assertTrue( scalablePartial.getNumSlices() > 1);
+			fixed.or( BloomFactory.ReadBloomFromBytes( BloomFactory.WriteBloomToBytes( fixedPartial)));
+			if( scalable == null) {
+				scalable = scalablePartial;
+			} else {
+				scalable.or( BloomFactory.ReadBloomFromBytes( BloomFactory.WriteBloomToBytes( scalablePartial)));
+			}
+		}
+		for( int p = 0; p < numPartials; ++p) {
+			for( int i = 0; i < keysPerPartial; ++i) {
+				Key key = new Key( ("key" + p + "_" + i).getBytes());
+				Assert.assertTrue( fixed.membershipTest( key));
+				Assert.assertTrue( scalable.membershipTest( key));
+			}
+		}
+		int fixedHits = 0;
+		int scalableHits = 0;
+		for( int i = 0; i < numTests; ++i) {
+			Key key = new Key( ("other" + i).getBytes());
+			if( fixed.membershipTest( key)) {
+				fixedHits++;
+			}
+			if( scalable.membershipTest( key)) {
+				scalableHits++;
+			}
+		}
+		System.out.println("Merged " + numPartials + " partials; fixed false positives = " + fixedHits
+				+ " scalable false positives = " + scalableHits + " with " + scalable.getNumSlices() + " slices out of " + numTests);
+		/// A fixed bloom sized for all the keys stays within its rate
+		Assert.assertTrue( fixedHits <= numTests*pct);
+		/// Slices which would be overfilled are appended, rather than or-ed,
+		///  so the scalable bloom is within the sum of its partials' rates
+		Assert.assertTrue( scalableHits <= numTests*pct*numPartials);
+		Assert.assertTrue( scalable.getNumSlices() > 2);
+	}
+
+	@Test
+	public void testCountingBloom() throws Exception {
+		CountingBloomFilter bloom = BloomFactory.NewCountingBloomInstance( 10000, 0.01);
+		for( int i = 0; i< 1000; ++i ) {
+			bloom.add( new Key( ("key" + i).getBytes()));
+		}
+		bloom.add( new Key( "key0".getBytes()));
+		Assert.assertTrue( bloom.approximateCount( new Key( "key0".getBytes())) >= 2);
+
+		bloom.delete( new Key( "key1".getBytes()));
+		Assert.assertFalse( bloom.membershipTest( new Key( "key1".getBytes())));
+		Assert.assertTrue( bloom.membershipTest( new Key( "key2".getBytes())));
+
+		/// Remove a delta of keys, built as a separate bloom
+		CountingBloomFilter delta = BloomFactory.NewCountingBloomInstance( 10000, 0.01);
+		for( int i = 500; i< 1000; ++i ) {
+			delta.add( new Key( ("key" + i).getBytes()));
+		}
+		CountingBloomFilter copy = (CountingBloomFilter) BloomFactory.ReadBloomFromBytes( BloomFactory.WriteBloomToBytes( bloom));
+		copy.subtract( delta);
+		for( int i = 2; i< 500; ++i ) {
+			Assert.assertTrue( copy.membershipTest( new Key( ("key" + i).getBytes())));
+		}
+		int numHits = 0;
+		for( int i = 500; i< 1000; ++i ) {
+			if( copy.membershipTest( new Key( ("key" + i).getBytes()))) {
+				numHits++;
+			}
+		}
+		Assert.assertTrue( numHits < 10);
+
+		/// Or-ing adds the delta back
+		copy.or( delta);
+		for( int i = 2; i< 1000; ++i ) {
+			Assert.assertTrue( copy.membershipTest( new Key( ("key" + i).getBytes())));
+		}
+	}
+
+	@Test
+	public void testCountingBloomSizeLimit() throws Exception {
+		/// Saturating the counter count used to overflow to a negative array size
+		try {
+			BloomFactory.NewCountingBloomInstance( 200000000, 0.005);
+			Assert.fail("Counting bloom larger than an int vector size should be rejected");
+		} catch(IllegalArgumentException expected) {
+		}
+		Assert.assertEquals( Integer.MAX_VALUE/CountingBloomFilter.COUNTERS_PER_LONG + 1, CountingBloomFilter.NumWords( Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testAddContainsBytes() throws Exception {
+		Filter[] blooms = { BloomFactory.NewBloomInstance(), BloomFactory.NewBloomInstance( 1000, 0.01),
+				BloomFactory.NewCountingBloomInstance( 1000, 0.01) };
+		byte[] buffer = "xxkey1yy".getBytes();
+		for( Filter bloom : blooms) {
+			BloomFactory.AddBytes( bloom, buffer, 2, 4);
+			/// Same hash as the Key for the bytes alone
+			Assert.assertTrue( bloom.membershipTest( new Key( "key1".getBytes())));
+			Assert.assertTrue( BloomFactory.ContainsBytes( bloom, buffer, 2, 4));
+			Assert.assertFalse( BloomFactory.ContainsBytes( bloom, buffer, 0, 4));
+		}
+	}
+
 }
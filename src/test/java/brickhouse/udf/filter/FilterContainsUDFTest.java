@@ -0,0 +1,47 @@
+package brickhouse.udf.filter;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FilterContainsUDFTest {
+
+	private static long hash( String key) {
+		byte[] bytes = key.getBytes();
+		return XorFilter.HashKey( bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void testConstantFilter() throws Exception {
+		long[] hashes = new long[1000];
+		for( int i = 0; i< hashes.length; ++i ) {
+			hashes[i] = hash( Long.toString( i*7L));
+		}
+		Text filterText = new Text( Base64.encodeBase64( XorFilter.Build( hashes, hashes.length).toBytes()));
+		ObjectInspector filterInsp = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.stringTypeInfo, filterText);
+
+		FilterContainsUDF udf = new FilterContainsUDF();
+		udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaLongObjectInspector, filterInsp });
+		for( int i = 0; i< hashes.length; ++i ) {
+			Object contains = udf.evaluate( new DeferredObject[] { new DeferredJavaObject( i*7L), new DeferredJavaObject( filterText) });
+			Assert.assertEquals( Boolean.TRUE, contains);
+		}
+		int numHits = 0;
+		for( int i = 0; i< hashes.length; ++i ) {
+			Object contains = udf.evaluate( new DeferredObject[] { new DeferredJavaObject( i*7L + 1), new DeferredJavaObject( filterText) });
+			if( Boolean.TRUE.equals( contains)) {
+				numHits++;
+			}
+		}
+		Assert.assertTrue( numHits < 20);
+		Assert.assertNull( udf.evaluate( new DeferredObject[] { new DeferredJavaObject( null), new DeferredJavaObject( filterText) }));
+	}
+
+}
@@ -0,0 +1,120 @@
+package brickhouse.udf.filter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import brickhouse.udf.bloom.MappedBloomFilter;
+
+public class XorFilterTest {
+
+	private static long hash( String key) {
+		byte[] bytes = key.getBytes();
+		return XorFilter.HashKey( bytes, 0, bytes.length);
+	}
+
+	private static XorFilter buildFilter( int numKeys) {
+		long[] hashes = new long[ numKeys + 100];
+		for( int i = 0; i< numKeys; ++i ) {
+			hashes[i] = hash( "key" + i);
+		}
+		/// Duplicates are removed before building
+		for( int i = 0; i< 100; ++i ) {
+			hashes[ numKeys + i] = hash( "key" + i);
+		}
+		return XorFilter.Build( hashes, hashes.length);
+	}
+
+	@Test
+	public void testXorFilter() throws Exception {
+		int numKeys = 100000;
+		XorFilter filter = buildFilter( numKeys);
+		System.out.println(" XOR filter size = " + filter.getSerializedSize() + " bytes for " + numKeys + " keys");
+		Assert.assertTrue( filter.getSerializedSize() < numKeys*10/8 + 100);
+
+		byte[] bytes = filter.toBytes();
+		XorFilter copy = XorFilter.FromBytes( bytes, 0, bytes.length);
+		int numHits = 0;
+		for( int i = 0; i< numKeys; ++i ) {
+			Assert.assertTrue( copy.containsHash( hash( "key" + i)));
+			if( copy.containsHash( hash( "other" + i))) {
+				numHits++;
+			}
+		}
+		System.out.println(" XOR filter false positives = " + numHits + " out of " + numKeys);
+		Assert.assertTrue( numHits < numKeys*0.006);
+	}
+
+	@Test
+	public void testEmptyFilter() throws Exception {
+		XorFilter filter = XorFilter.Build( new long[0], 0);
+		byte[] bytes = filter.toBytes();
+		Assert.assertTrue( XorFilter.IsXorFilter( bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void testLoadFilter() throws Exception {
+		/// Keep the decoded raw copies out of java.io.tmpdir
+		File localDir = File.createTempFile("filter_local", "");
+		localDir.delete();
+		System.setProperty( MappedBloomFilter.LOCAL_DIR_PROPERTY, localDir.getPath());
+		try {
+			checkLoadFilter();
+		} finally {
+			System.clearProperty( MappedBloomFilter.LOCAL_DIR_PROPERTY);
+			File[] rawFiles = localDir.listFiles();
+			if( rawFiles != null) {
+				for( File rawFile : rawFiles) {
+					rawFile.delete();
+				}
+			}
+			localDir.delete();
+		}
+	}
+
+	private void checkLoadFilter() throws Exception {
+		XorFilter filter = buildFilter( 1000);
+
+		File rawFile = File.createTempFile("filter", ".xor");
+		rawFile.deleteOnExit();
+		FileOutputStream out = new FileOutputStream( rawFile);
+		out.write( filter.toBytes());
+		out.close();
+
+		File base64File = File.createTempFile("filter", ".txt");
+		base64File.deleteOnExit();
+		out = new FileOutputStream( base64File);
+		out.write( Base64.encodeBase64( filter.toBytes()));
+		out.write( '\n');
+		out.close();
+
+		XorFilter mapped = FilterFactory.LoadFilter( rawFile.getPath());
+		XorFilter decoded = FilterFactory.LoadFilter( base64File.getPath());
+		for( int i = 0; i< 1000; ++i ) {
+			Assert.assertTrue( mapped.containsHash( hash( "key" + i)));
+			Assert.assertTrue( decoded.containsHash( hash( "key" + i)));
+		}
+
+		/// A Base64 file which isn't a filter leaves no raw copy behind
+		File badFile = File.createTempFile("filter", ".txt");
+		badFile.deleteOnExit();
+		out = new FileOutputStream( badFile);
+		out.write( Base64.encodeBase64( "not a filter at all".getBytes()));
+		out.close();
+		try {
+			FilterFactory.LoadFilter( badFile.getPath());
+			Assert.fail("Expected an IOException");
+		} catch(IOException expected) {
+		}
+		try {
+			FilterFactory.LoadFilter( badFile.getPath());
+			Assert.fail("Expected an IOException");
+		} catch(IOException expected) {
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package brickhouse.udf.hll;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+
+public class HLLBufferTest {
+
+  @Test
+  public void testDecimalBytes() {
+    byte[][] buffers = new byte[21][];
+    long[] vals = { 0, 1, -1, 9, 10, -10, 99, 100, 123456789L, -987654321L,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+    for (long val : vals) {
+      Assert.assertArrayEquals(Long.toString(val).getBytes(), HLLBuffer.DecimalBytes(val, buffers));
+    }
+  }
+
+  /**
+   *  Numbers and offset byte ranges must hash the same as
+   *   the Long and byte[] objects offered before, so stored blobs stay compatible.
+   */
+  @Test
+  public void testLegacyMatchesStreamLib() throws Exception {
+    HLLBuffer buffer = new HLLBuffer();
+    buffer.init(12, 0);
+    HyperLogLogPlus expected = new HyperLogLogPlus(12, 0);
+    byte[] padded = new byte[16];
+    for (long i = -5000; i < 5000; ++i) {
+      long val = i * 7919L;
+      buffer.addLong(val);
+      expected.offer(Long.valueOf(val));
+
+      byte[] bytes = ("item" + i).getBytes();
+      System.arraycopy(bytes, 0, padded, 3, bytes.length);
+      buffer.addBytes(padded, 3, bytes.length);
+      expected.offer(Arrays.copyOf(bytes, bytes.length));
+    }
+    Assert.assertArrayEquals(expected.getBytes(), buffer.getPartial());
+  }
+
+}
@@ -0,0 +1,147 @@
+package brickhouse.udf.hll;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HLLRegistersTest {
+
+  private static void assertWithin(long expected, long actual, double maxError) {
+    double relDiff = Math.abs(actual - expected) / (double) expected;
+    System.out.println(" expected = " + expected + " actual = " + actual + " relDiff = " + relDiff);
+    Assert.assertTrue(relDiff < maxError);
+  }
+
+  @Test
+  public void testSparseIsExactForSmallSets() {
+    HLLRegisters hll = new HLLRegisters(12);
+    for (int i = 0; i < 500; ++i) {
+      hll.addItem(UUID.randomUUID().toString());
+    }
+    Assert.assertTrue(hll.isSparse());
+    assertWithin(500, hll.cardinality(), 0.01);
+
+    byte[] bytes = hll.getBytes();
+    Assert.assertTrue(HLLRegisters.IsHLLRegisters(bytes));
+    Assert.assertEquals(12, HLLRegisters.GetPrecision(bytes));
+    Assert.assertEquals(hll.cardinality(), HLLRegisters.Cardinality(bytes));
+  }
+
+  @Test
+  public void testPromotionToDense() {
+    HLLRegisters hll = new HLLRegisters(12);
+    int num = 1000000;
+    for (int i = 0; i < num; ++i) {
+      hll.addItem(Integer.toString(i));
+    }
+    Assert.assertFalse(hll.isSparse());
+    assertWithin(num, hll.cardinality(), 3 * 1.04 / Math.sqrt(1 << 12));
+    Assert.assertEquals(hll.cardinality(), HLLRegisters.Cardinality(hll.getBytes()));
+  }
+
+  @Test
+  public void testMergeMatchesSingleEstimator() {
+    for (int num : new int[] { 10, 3000, 200000 }) {
+      HLLRegisters all = new HLLRegisters(14);
+      HLLRegisters merged = new HLLRegisters(14);
+      for (int part = 0; part < 10; ++part) {
+        HLLRegisters partial = new HLLRegisters(14);
+        for (int i = 0; i < num; ++i) {
+          String item = part + ":" + i;
+          all.addItem(item);
+          partial.addItem(item);
+        }
+        merged.merge(partial.getBytes());
+      }
+      Assert.assertEquals(all.cardinality(), merged.cardinality());
+      Assert.assertEquals(all.isSparse(), merged.isSparse());
+      assertWithin(num * 10, merged.cardinality(), 3 * 1.04 / Math.sqrt(1 << 14));
+    }
+  }
+
+  @Test
+  public void testSparseIntoDenseMerge() {
+    HLLRegisters dense = new HLLRegisters(10);
+    HLLRegisters sparse = new HLLRegisters(10);
+    HLLRegisters all = new HLLRegisters(10);
+    for (int i = 0; i < 100000; ++i) {
+      dense.addItem("d" + i);
+      all.addItem("d" + i);
+    }
+    for (int i = 0; i < 50; ++i) {
+      sparse.addItem("s" + i);
+      all.addItem("s" + i);
+    }
+    Assert.assertTrue(sparse.isSparse());
+
+    HLLRegisters denseFirst = HLLRegisters.FromBytes(dense.getBytes());
+    denseFirst.merge(sparse.getBytes());
+    HLLRegisters sparseFirst = HLLRegisters.FromBytes(sparse.getBytes());
+    sparseFirst.merge(dense.getBytes());
+    Assert.assertArrayEquals(all.getBytes(), denseFirst.getBytes());
+    Assert.assertArrayEquals(all.getBytes(), sparseFirst.getBytes());
+  }
+
+  @Test
+  public void testMergeDifferentPrecisions() {
+    HLLRegisters fine = new HLLRegisters(16);
+    HLLRegisters coarse = new HLLRegisters(12);
+    HLLRegisters all = new HLLRegisters(12);
+    for (int i = 0; i < 200000; ++i) {
+      fine.addItem("f" + i);
+      all.addItem("f" + i);
+      coarse.addItem("c" + i);
+      all.addItem("c" + i);
+    }
+    HLLRegisters merged = HLLRegisters.FromBytes(fine.getBytes());
+    merged.merge(coarse.getBytes());
+    Assert.assertEquals(12, merged.getPrecision());
+    /// Folding the finer registers gives exactly the coarser ones
+    Assert.assertArrayEquals(all.getBytes(), merged.getBytes());
+
+    HLLRegisters reversed = HLLRegisters.FromBytes(coarse.getBytes());
+    reversed.merge(fine.getBytes());
+    Assert.assertArrayEquals(all.getBytes(), reversed.getBytes());
+  }
+
+  @Test
+  public void testHighPrecision() {
+    HLLRegisters hll = new HLLRegisters(18, 25);
+    int num = 2000000;
+    for (int i = 0; i < num; ++i) {
+      hll.addItem(Integer.toString(i));
+    }
+    Assert.assertFalse(hll.isSparse());
+    assertWithin(num, hll.cardinality(), 0.01);
+
+    HLLRegisters noSparse = new HLLRegisters(18, 0);
+    Assert.assertFalse(noSparse.isSparse());
+    noSparse.addItem("a");
+    Assert.assertEquals(1, noSparse.cardinality());
+  }
+
+  @Test
+  public void testMemoryBudget() {
+    /// Room for one set of registers at precision 14
+    HLLRegisters.MemoryBudget budget = new HLLRegisters.MemoryBudget(1 << 14);
+    HLLRegisters first = new HLLRegisters(14, 25, budget);
+    HLLRegisters second = new HLLRegisters(14, 25, budget);
+    for (int i = 0; i < 100000; ++i) {
+      first.addItem("a" + i);
+      second.addItem("b" + i);
+    }
+    Assert.assertEquals(14, first.getPrecision());
+    Assert.assertEquals(HLLRegisters.MIN_PRECISION, second.getPrecision());
+    Assert.assertEquals((1 << 14) + (1 << HLLRegisters.MIN_PRECISION), budget.getUsedBytes());
+
+    first.releaseBudget();
+    second.clear();
+    Assert.assertEquals(0, budget.getUsedBytes());
+    for (int i = 0; i < 100000; ++i) {
+      second.addItem("b" + i);
+    }
+    Assert.assertEquals(14, second.getPrecision());
+  }
+
+}
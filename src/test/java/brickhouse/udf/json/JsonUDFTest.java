@@ -2,12 +2,26 @@ package brickhouse.udf.json;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
 
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardStructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.Text;
 import org.junit.Test;
 
 import com.google.common.base.Splitter;
@@ -34,5 +48,172 @@ public class JsonUDFTest {
 		
 		Assert.assertEquals( "this_text_is_in_camel_case", under);
 	}
-	
+
+	@Test
+	public void testStreamingParseMatchesTree() throws Exception {
+		List<String> names = Arrays.asList( "name", "value", "colors", "inner_map");
+		List<ObjectInspector> inspectors = Arrays.<ObjectInspector>asList(
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+				ObjectInspectorFactory.getStandardMapObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+						PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+		InspectorHandle handle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle(
+				ObjectInspectorFactory.getStandardStructObjectInspector( names, inspectors));
+		handle.getReturnType();
+
+		String json = "{\"name\":\"Bob\",\"unknown\":{\"deep\":[1,2,{\"a\":3}]},\"value\":23,"
+				+ "\"colors\":[\"red\",7,{\"b\":true}],\"inner_map\":{\"a\":1,\"b\":2,\"c\":null}}";
+		Object fromTree = handle.parseJson( JsonMapperFactory.ReadTree( json));
+		Object fromStream = JsonMapperFactory.ParseJson( json, handle);
+		System.out.println( fromStream);
+
+		Assert.assertEquals( fromTree.toString(), fromStream.toString());
+		Assert.assertEquals( "Bob", ((List)fromStream).get(0));
+		Assert.assertEquals( 23.0, ((List)fromStream).get(1));
+	}
+
+	@Test
+	public void testParseCamelCaseKeys() throws Exception {
+		List<String> names = Arrays.asList( "user_id", "first_name");
+		List<ObjectInspector> inspectors = Arrays.<ObjectInspector>asList(
+				PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		InspectorHandle handle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle(
+				ObjectInspectorFactory.getStandardStructObjectInspector( names, inspectors), true);
+		handle.getReturnType();
+
+		String json = "{\"firstName\":\"Bob\",\"user_id\":1,\"userId\":23}";
+		List fromStream = (List) JsonMapperFactory.ParseJson( json, handle);
+		List fromTree = (List) handle.parseJson( JsonMapperFactory.ReadTree( json));
+
+		Assert.assertEquals( 23L, fromStream.get(0));
+		Assert.assertEquals( "Bob", fromStream.get(1));
+		Assert.assertEquals( fromTree, fromStream);
+	}
+
+	private static final Object FAIL = new Object();
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> void SneakyThrow( Throwable t) throws E {
+		throw (E) t;
+	}
+
+	/// Struct inspector which fails part way through writing a row
+	private static class FailingStructInspector extends StandardStructObjectInspector {
+		FailingStructInspector( List<String> names, List<ObjectInspector> inspectors) {
+			super( names, inspectors);
+		}
+
+		@Override
+		public List<Object> getStructFieldsDataAsList( Object data) {
+			if( data == FAIL) {
+				JsonUDFTest.<RuntimeException>SneakyThrow( new IOException("Broken row"));
+			}
+			return super.getStructFieldsDataAsList( data);
+		}
+	}
+
+	/**
+	 *  Run rows through one to_json instance, returning the JSON
+	 *   for each row, or "ERROR" for a row which failed.
+	 */
+	private static List<String> toJsonRows( boolean binary, Object... rows) throws Exception {
+		ObjectInspector innerInsp = new FailingStructInspector( Arrays.asList( "name", "value"),
+				Arrays.<ObjectInspector>asList( PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+						PrimitiveObjectInspectorFactory.javaIntObjectInspector));
+		ObjectInspector rowInsp = ObjectInspectorFactory.getStandardStructObjectInspector( Arrays.asList( "id", "inner_struct"),
+				Arrays.<ObjectInspector>asList( PrimitiveObjectInspectorFactory.javaIntObjectInspector, innerInsp));
+		ObjectInspector falseInsp = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.booleanTypeInfo, new BooleanWritable( false));
+		ObjectInspector binaryInsp = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.booleanTypeInfo, new BooleanWritable( binary));
+
+		ToJsonUDF udf = new ToJsonUDF();
+		udf.initialize( new ObjectInspector[] { rowInsp, falseInsp, binaryInsp });
+		List<String> jsonRows = new ArrayList<String>();
+		for( Object row : rows) {
+			try {
+				Object json = udf.evaluate( new DeferredObject[] { new DeferredJavaObject( row) });
+				jsonRows.add( binary ? new String( (byte[]) json, "UTF-8") : (String) json);
+			} catch( HiveException exc) {
+				Assert.assertTrue( exc.getCause() instanceof IOException);
+				jsonRows.add( "ERROR");
+			}
+		}
+		return jsonRows;
+	}
+
+	private void checkToJsonRows( boolean binary) throws Exception {
+		List<String> jsonRows = toJsonRows( binary,
+				Arrays.asList( 1, Arrays.asList( "a", 2)),
+				null,
+				Arrays.asList( 3, FAIL),
+				Arrays.asList( 4, Arrays.asList( "b", 5)),
+				Arrays.asList( 6, null));
+		System.out.println( jsonRows);
+
+		Assert.assertEquals( Arrays.asList(
+				"{\"id\":1,\"inner_struct\":{\"name\":\"a\",\"value\":2}}",
+				"null",
+				"ERROR",
+				"{\"id\":4,\"inner_struct\":{\"name\":\"b\",\"value\":5}}",
+				"{\"id\":6,\"inner_struct\":null}"), jsonRows);
+	}
+
+	@Test
+	public void testToJsonRows() throws Exception {
+		checkToJsonRows( false);
+	}
+
+	@Test
+	public void testToJsonBinaryRows() throws Exception {
+		checkToJsonRows( true);
+	}
+
+	private static List fromJson( String json, ObjectInspector... flagInspector) throws Exception {
+		List<String> names = Arrays.asList( "user_id", "first_name");
+		List<ObjectInspector> inspectors = Arrays.<ObjectInspector>asList(
+				PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		ObjectInspector template = ObjectInspectorFactory.getStandardStructObjectInspector( names, inspectors);
+		FromJsonUDF udf = new FromJsonUDF();
+		if( flagInspector.length > 0) {
+			udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector, template, flagInspector[0] });
+		} else {
+			udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector, template });
+		}
+		return (List) udf.evaluate( new DeferredObject[] { new DeferredJavaObject( json), new DeferredJavaObject( template) });
+	}
+
+	private static ObjectInspector constantFlag( boolean flag) {
+		return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.booleanTypeInfo, new BooleanWritable( flag));
+	}
+
+	/**
+	 *  from_json used to accept convert_flag and ignore it.
+	 *   It now reads camel case keys when the flag is true.
+	 */
+	@Test
+	public void testFromJsonConvertFlag() throws Exception {
+		String json = "{\"userId\":23,\"firstName\":\"Bob\",\"user_id\":1,\"first_name\":\"Al\"}";
+
+		Assert.assertEquals( Arrays.asList( 23L, "Bob"), fromJson( json, constantFlag( true)));
+		Assert.assertEquals( Arrays.asList( 1L, "Al"), fromJson( json, constantFlag( false)));
+		Assert.assertEquals( Arrays.asList( 1L, "Al"), fromJson( json));
+
+		try {
+			fromJson( json, PrimitiveObjectInspectorFactory.javaBooleanObjectInspector);
+			Assert.fail( "convert_flag must be a constant");
+		} catch( UDFArgumentException expected) {
+		}
+		try {
+			fromJson( json, PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+					TypeInfoFactory.stringTypeInfo, new Text( "true")));
+			Assert.fail( "convert_flag must be a boolean");
+		} catch( UDFArgumentException expected) {
+		}
+	}
+
 }